@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.NoCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link GifImageLoader#get(String, GifImageLoader.ImageListener, int, int)} on a cache
+ * hit, and the life of an in-flight request: creating and queueing it, coalescing more requests
+ * for the same image into it, and canceling it when all of them are canceled. Dispatched requests
+ * are dropped by the request queue instead of reaching the network.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CoalescingBenchmark {
+
+    private static final String URL = "https://example.com/images/animated-banner.gif";
+    private static final String CACHED_URL = "https://example.com/images/thumbnail.png";
+    private static final int SIZE = 256;
+
+    /** Number of requests for the same image while it is in flight */
+    @Param({"1", "2", "8"})
+    public int mRequestCount;
+
+    private GifImageLoader mLoader;
+    private GifImageLoader.ImageContainer[] mContainers;
+
+    private final GifImageLoader.ImageListener mListener = new GifImageLoader.ImageListener() {
+
+        @Override
+        public void onResponse(final GifImageLoader.ImageContainer response,
+                final boolean isImmediate) {
+        }
+
+        @Override
+        public void onErrorResponse(final VolleyError error) {
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        final DrawableImageCache cache = new DrawableImageCache(4 * 1024 * 1024);
+        mLoader = new GifImageLoader(new DroppingRequestQueue(), cache);
+        cache.putImage(GifImageLoader.getCacheKey(CACHED_URL, SIZE, SIZE),
+                new BitmapDrawable(null, Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.RGB_565)));
+        mContainers = new GifImageLoader.ImageContainer[mRequestCount];
+    }
+
+    @Benchmark
+    public GifImageLoader.ImageContainer getCached() {
+        return mLoader.get(CACHED_URL, mListener, SIZE, SIZE);
+    }
+
+    @Benchmark
+    public GifImageLoader.ImageContainer getCoalesceCancel() {
+        for (int i = 0; i < mRequestCount; i++) {
+            mContainers[i] = mLoader.get(URL, mListener, SIZE, SIZE);
+        }
+        for (int i = 0; i < mRequestCount; i++) {
+            mContainers[i].cancelRequest();
+        }
+        return mContainers[0];
+    }
+
+    /**
+     * A request queue that drops requests instead of performing them
+     */
+    private static final class DroppingRequestQueue extends RequestQueue {
+
+        DroppingRequestQueue() {
+            super(new NoCache(), new Network() {
+                @Override
+                public NetworkResponse performRequest(final Request<?> request) {
+                    throw new UnsupportedOperationException();
+                }
+            });
+        }
+
+        @Override
+        public <T> Request<T> add(final Request<T> request) {
+            return request;
+        }
+    }
+}
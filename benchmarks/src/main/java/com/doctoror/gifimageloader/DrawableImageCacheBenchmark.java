@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the L1 cache as used by the loader: lookups on every bind, and puts that evict the
+ * least recently used entries once the cache is full
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DrawableImageCacheBenchmark {
+
+    /** Size of the cached thumbnails */
+    private static final int THUMBNAIL_SIZE = 128;
+
+    /** Number of distinct images cycled through; the cache holds half of them */
+    @Param({"64", "1024"})
+    public int mImageCount;
+
+    private DrawableImageCache mCache;
+    private String[] mKeys;
+    private Drawable[] mImages;
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        mKeys = new String[mImageCount];
+        mImages = new Drawable[mImageCount];
+        for (int i = 0; i < mImageCount; i++) {
+            mKeys[i] = GifImageLoader.getCacheKey("https://example.com/thumbnails/" + i + ".png",
+                    THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+            mImages[i] = new BitmapDrawable(null, Bitmap.createBitmap(THUMBNAIL_SIZE,
+                    THUMBNAIL_SIZE, Bitmap.Config.RGB_565));
+        }
+        final int imageSize = DrawableImageCache.sizeOfDrawable(mImages[0]);
+        mCache = new DrawableImageCache(imageSize * mImageCount / 2, imageSize);
+        for (int i = 0; i < mImageCount / 2; i++) {
+            mCache.putImage(mKeys[i], mImages[i]);
+        }
+    }
+
+    /**
+     * Puts the next image, evicting the oldest one once the cache is full, and looks up the one
+     * put before it
+     */
+    @Benchmark
+    public Drawable putGetEvict() {
+        final int i = mIndex;
+        mIndex = (i + 1) % mImageCount;
+        mCache.putImage(mKeys[i], mImages[i]);
+        return mCache.getImage(mKeys[(i + mImageCount - 1) % mImageCount]);
+    }
+
+    /**
+     * Looks up cached and evicted images alternately
+     */
+    @Benchmark
+    public Drawable get() {
+        final int i = mIndex;
+        mIndex = (i + 1) % mImageCount;
+        return mCache.getImage(mKeys[i]);
+    }
+}
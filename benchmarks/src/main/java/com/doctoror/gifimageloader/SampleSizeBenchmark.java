@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the size computations that run before every decode
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SampleSizeBenchmark {
+
+    /** Natural image width; the height follows a 4:3 aspect ratio */
+    @Param({"320", "1920", "4096"})
+    public int mActualWidth;
+
+    /** Max width of the view; zero maintains the aspect ratio with the max height */
+    @Param({"0", "480"})
+    public int mMaxWidth;
+
+    private int mActualHeight;
+    private int mMaxHeight = 360;
+
+    @Setup
+    public void setUp() {
+        mActualHeight = mActualWidth * 3 / 4;
+    }
+
+    @Benchmark
+    public int getResizedDimension() {
+        return ImageRequest.getResizedDimension(mMaxWidth, mMaxHeight, mActualWidth,
+                mActualHeight);
+    }
+
+    @Benchmark
+    public int findBestSampleSize() {
+        return ImageRequest.findBestSampleSize(mActualWidth, mActualHeight,
+                mMaxWidth != 0 ? mMaxWidth : mMaxHeight * 4 / 3, mMaxHeight);
+    }
+
+    @Benchmark
+    public int getSampleSize() {
+        return ImageRequest.getSampleSize(mMaxWidth, mMaxHeight, mActualWidth, mActualHeight);
+    }
+}
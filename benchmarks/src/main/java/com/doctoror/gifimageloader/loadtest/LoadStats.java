@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader.loadtest;
+
+import com.android.volley.VolleyError;
+import com.doctoror.gifimageloader.EventListener;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Collects the loader's events, and the times from binding an item to the delivery of its image,
+ * of a load test run. Events come from both the main thread and the request threads.
+ */
+final class LoadStats extends EventListener {
+
+    private int mCacheHits;
+    private int mCacheMisses;
+    private int mCoalesced;
+    private int mNetworkResponses;
+    private long mNetworkBytes;
+    private int mFailures;
+
+    private final Samples mDeliveryNs = new Samples();
+    private final Samples mDecodeNs = new Samples();
+    private final Samples mBudgetWaitNs = new Samples();
+
+    @Override
+    public synchronized void cacheHit(@NonNull final String url) {
+        mCacheHits++;
+    }
+
+    @Override
+    public synchronized void cacheMiss(@NonNull final String url) {
+        mCacheMisses++;
+    }
+
+    @Override
+    public synchronized void requestCoalesced(@NonNull final String url) {
+        mCoalesced++;
+    }
+
+    @Override
+    public synchronized void networkEnd(@NonNull final String url, final long networkNs,
+            final long bytes) {
+        mNetworkResponses++;
+        mNetworkBytes += bytes;
+    }
+
+    @Override
+    public synchronized void decodeEnd(@NonNull final String url, final long budgetWaitNs,
+            final long decodeNs) {
+        mBudgetWaitNs.add(budgetWaitNs);
+        mDecodeNs.add(decodeNs);
+    }
+
+    @Override
+    public synchronized void requestFailed(@NonNull final String url,
+            @NonNull final VolleyError error) {
+        mFailures++;
+    }
+
+    /**
+     * Records the time from binding an item to the delivery of its final image
+     */
+    synchronized void delivered(final long timeToDeliveryNs) {
+        mDeliveryNs.add(timeToDeliveryNs);
+    }
+
+    synchronized int getCacheHits() {
+        return mCacheHits;
+    }
+
+    synchronized int getCacheMisses() {
+        return mCacheMisses;
+    }
+
+    synchronized int getCoalesced() {
+        return mCoalesced;
+    }
+
+    synchronized int getNetworkResponses() {
+        return mNetworkResponses;
+    }
+
+    synchronized long getNetworkBytes() {
+        return mNetworkBytes;
+    }
+
+    synchronized int getFailures() {
+        return mFailures;
+    }
+
+    synchronized Samples getDeliveryNs() {
+        return mDeliveryNs.copy();
+    }
+
+    synchronized Samples getDecodeNs() {
+        return mDecodeNs.copy();
+    }
+
+    synchronized Samples getBudgetWaitNs() {
+        return mBudgetWaitNs.copy();
+    }
+
+    /**
+     * A growable list of durations with percentiles
+     */
+    static final class Samples {
+
+        private long[] mValues = new long[64];
+        private int mSize;
+        private boolean mSorted = true;
+
+        void add(final long value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+            mSorted = false;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        /**
+         * Returns the number of samples greater than the given value
+         */
+        int countAbove(final long value) {
+            int count = 0;
+            for (int i = 0; i < mSize; i++) {
+                if (mValues[i] > value) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Returns the nearest-rank percentile, or zero if there are no samples
+         *
+         * @param percentile The percentile, in 0..100
+         */
+        long percentile(final double percentile) {
+            if (mSize == 0) {
+                return 0;
+            }
+            if (!mSorted) {
+                Arrays.sort(mValues, 0, mSize);
+                mSorted = true;
+            }
+            final int rank = (int) Math.ceil(percentile / 100d * mSize);
+            return mValues[Math.max(0, Math.min(mSize - 1, rank - 1))];
+        }
+
+        Samples copy() {
+            final Samples copy = new Samples();
+            copy.mValues = Arrays.copyOf(mValues, Math.max(1, mSize));
+            copy.mSize = mSize;
+            copy.mSorted = mSorted;
+            return copy;
+        }
+    }
+}
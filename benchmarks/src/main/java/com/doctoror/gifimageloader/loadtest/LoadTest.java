@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader.loadtest;
+
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.NoCache;
+import com.doctoror.gifimageloader.DrawableImageCache;
+import com.doctoror.gifimageloader.GifImageLoader;
+import com.doctoror.gifimageloader.StreamingNetwork;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Replays a scroll trace through a {@link GifImageLoader} that loads the images of a
+ * {@link MockImageServer} over real sockets, on a plain JVM, and reports throughput, time to
+ * delivery, decode budget waits, memory cache hit rate and peak heap.
+ * <p>
+ * Options are given as --name=value:
+ * <pre>
+ * --images=200          Number of distinct images served
+ * --gif-interval=5      Every n-th image is an animated GIF, 0 for none
+ * --latency-ms=100      Server latency of each request
+ * --bandwidth-kbps=2000 Bandwidth of each response, 0 for unlimited
+ * --threads=4           Network threads of the request queue
+ * --cache-mb=16         Memory cache size
+ * --view-size=256       Width and height of the views the images are loaded for
+ * --visible=8           Items on screen, for the generated trace
+ * --speed=20            Scroll speed in items per second, for the generated trace
+ * --passes=2            Scrolls down and back up, for the generated trace
+ * --trace=file          Replay a trace file instead, see {@link ScrollTrace}
+ * --drain-ms=10000      Maximum time to wait for pending images after the trace ends
+ * --max-age-s=-1        Max-age the server sends, -1 for none
+ * --revalidate=0        1 to revalidate stale images, 2 to also deliver them while revalidating
+ * </pre>
+ * Item n shows image n modulo the number of images.
+ */
+public final class LoadTest {
+
+    private static final long NS_PER_MS = 1000000L;
+
+    private static final long DRAIN_CHECK_INTERVAL_MS = 50;
+
+    private final MockImageServer mServer;
+    private final ScrollTrace mTrace;
+    private final GifImageLoader mLoader;
+    private final int mViewSize;
+    private final long mDrainMs;
+    private final LoadStats mStats;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Items bound to views, by position. Accessed on the main thread only. */
+    private final Binding[] mBindings;
+
+    private int mBindCount;
+    private int mPendingCount;
+    private int mUnboundBeforeDeliveryCount;
+
+    private LoadTest(final MockImageServer server,
+            final ScrollTrace trace, final GifImageLoader loader, final int viewSize,
+            final long drainMs, final LoadStats stats) {
+        mServer = server;
+        mTrace = trace;
+        mLoader = loader;
+        mViewSize = viewSize;
+        mDrainMs = drainMs;
+        mStats = stats;
+        mBindings = new Binding[trace.getItemCount()];
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = parseOptions(args);
+        final int threads = getInt(options, "threads", 4);
+        final int cacheBytes = getInt(options, "cache-mb", 16) * 1024 * 1024;
+        final int viewSize = getInt(options, "view-size", 256);
+        final long drainMs = getInt(options, "drain-ms", 10000);
+
+        final ScrollTrace trace;
+        final String traceFile = options.remove("trace");
+        final int images = getInt(options, "images", 200);
+        if (traceFile != null) {
+            trace = ScrollTrace.read(new File(traceFile));
+        } else {
+            trace = ScrollTrace.fling(images, getInt(options, "visible", 8),
+                    getInt(options, "speed", 20), getInt(options, "passes", 2));
+        }
+        final MockImageServer server = MockImageServer.generate(images,
+                getInt(options, "gif-interval", 5), getInt(options, "latency-ms", 100),
+                getInt(options, "bandwidth-kbps", 2000) * 1000L / 8);
+        server.setMaxAge(getInt(options, "max-age-s", -1));
+        final int revalidate = getInt(options, "revalidate", 0);
+        if (!options.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options " + options.keySet());
+        }
+
+        Looper.prepareMainLooper();
+        server.start();
+        final File spoolDir = Files.createTempDirectory("gifimageloader-loadtest").toFile();
+        final RequestQueue queue = new RequestQueue(new NoCache(),
+                new StreamingNetwork(new UnsupportedNetwork(), spoolDir), threads);
+        final DrawableImageCache cache = new DrawableImageCache(cacheBytes);
+        final GifImageLoader loader = new GifImageLoader(queue, cache);
+        loader.setStreamingEnabled(true);
+        loader.setRevalidationEnabled(revalidate > 0);
+        loader.setStaleWhileRevalidate(revalidate > 1);
+        final LoadStats stats = new LoadStats();
+        loader.setEventListener(stats);
+        final HeapSampler heapSampler = new HeapSampler();
+        queue.start();
+        try {
+            final LoadTest test = new LoadTest(server, trace, loader, viewSize, drainMs, stats);
+            heapSampler.start();
+            final long startNs = System.nanoTime();
+            test.replay();
+            Looper.loop();
+            final long durationNs = System.nanoTime() - startNs;
+            heapSampler.interrupt();
+            heapSampler.join();
+            test.report(durationNs, cache, heapSampler.getPeakBytes());
+        } finally {
+            queue.stop();
+            server.stop();
+            deleteRecursively(spoolDir);
+        }
+    }
+
+    /**
+     * Posts the steps of the trace, and the check for the end of the run, to the main looper
+     */
+    private void replay() {
+        for (final ScrollTrace.Step step : mTrace.getSteps()) {
+            mHandler.postDelayed(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (step.mBind) {
+                        bind(step.mPosition);
+                    } else {
+                        unbind(step.mPosition);
+                    }
+                }
+            }, step.mTimeMs);
+        }
+        final long endMs = mTrace.getDurationMs() + mDrainMs;
+        final long startNs = System.nanoTime();
+        mHandler.postDelayed(new Runnable() {
+
+            @Override
+            public void run() {
+                if (mPendingCount == 0 || (System.nanoTime() - startNs) / NS_PER_MS >= endMs) {
+                    for (int i = 0; i < mBindings.length; i++) {
+                        unbind(i);
+                    }
+                    Looper.getMainLooper().quit();
+                } else {
+                    mHandler.postDelayed(this, DRAIN_CHECK_INTERVAL_MS);
+                }
+            }
+        }, mTrace.getDurationMs());
+    }
+
+    private void bind(final int position) {
+        unbind(position);
+        final Binding binding = new Binding();
+        mBindings[position] = binding;
+        mBindCount++;
+        mPendingCount++;
+        binding.mContainer = mLoader.get(mServer.getUrl(position % mServer.getImageCount()),
+                binding, mViewSize, mViewSize);
+    }
+
+    private void unbind(final int position) {
+        final Binding binding = mBindings[position];
+        if (binding == null) {
+            return;
+        }
+        mBindings[position] = null;
+        if (!binding.mDone) {
+            binding.mDone = true;
+            mPendingCount--;
+            mUnboundBeforeDeliveryCount++;
+        }
+        // A recycled view cancels its request, which also releases a delivered image.
+        binding.mContainer.cancelRequest();
+    }
+
+    private void report(final long durationNs, final DrawableImageCache cache,
+            final long peakHeapBytes) {
+        final LoadStats.Samples delivery = mStats.getDeliveryNs();
+        final LoadStats.Samples decode = mStats.getDecodeNs();
+        final LoadStats.Samples budgetWait = mStats.getBudgetWaitNs();
+        final int hits = mStats.getCacheHits();
+        final int lookups = hits + mStats.getCacheMisses();
+
+        print("Duration", "%.1f s", durationNs / 1e9);
+        print("Binds", "%d (%d delivered, %d unbound before delivery, %d failed)",
+                mBindCount, delivery.size(), mUnboundBeforeDeliveryCount, mStats.getFailures());
+        print("Throughput", "%.1f images/s", delivery.size() / (durationNs / 1e9));
+        print("Time to delivery", "p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+                ms(delivery.percentile(50)), ms(delivery.percentile(99)),
+                ms(delivery.percentile(100)));
+        print("Memory cache", "%.1f%% hit rate (%d of %d), %d coalesced, %d evicted",
+                lookups == 0 ? 0d : hits * 100d / lookups, hits, lookups,
+                mStats.getCoalesced(), cache.imageEvictionCount());
+        print("Network", "%d responses, %.1f MB, %d server requests, %d not modified",
+                mStats.getNetworkResponses(), mStats.getNetworkBytes() / 1048576d,
+                mServer.getRequestCount(), mServer.getNotModifiedCount());
+        print("Decode", "%d decodes, p50 %.1f ms, p99 %.1f ms",
+                decode.size(), ms(decode.percentile(50)), ms(decode.percentile(99)));
+        print("Decode budget wait", "%d of %d waited over 1 ms, p99 %.1f ms, max %.1f ms",
+                budgetWait.countAbove(NS_PER_MS), budgetWait.size(),
+                ms(budgetWait.percentile(99)), ms(budgetWait.percentile(100)));
+        print("Peak heap", "%.1f MB", peakHeapBytes / 1048576d);
+    }
+
+    private static void print(final String label, final String format, final Object... args) {
+        System.out.println(String.format(Locale.US, "%-20s" + format, concat(label, args)));
+    }
+
+    private static Object[] concat(final Object first, final Object[] rest) {
+        final Object[] all = new Object[rest.length + 1];
+        all[0] = first;
+        System.arraycopy(rest, 0, all, 1, rest.length);
+        return all;
+    }
+
+    private static double ms(final long ns) {
+        return ns / (double) NS_PER_MS;
+    }
+
+    private static Map<String, String> parseOptions(final String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (final String arg : args) {
+            final int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        return options;
+    }
+
+    private static int getInt(final Map<String, String> options, final String name,
+            final int defaultValue) {
+        final String value = options.remove(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private static void deleteRecursively(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /**
+     * The view of a bound item, waiting for its image
+     */
+    private final class Binding implements GifImageLoader.ImageListener {
+
+        final long mBindNs = System.nanoTime();
+
+        GifImageLoader.ImageContainer mContainer;
+
+        /** Whether the image was delivered, failed or the item was unbound */
+        boolean mDone;
+
+        @Override
+        public void onResponse(final GifImageLoader.ImageContainer response,
+                final boolean isImmediate) {
+            if (mDone || response.getImage() == null || response.isPreview()) {
+                return;
+            }
+            mDone = true;
+            mPendingCount--;
+            // Like a NetworkGifImageView showing the image.
+            response.acquire();
+            mStats.delivered(System.nanoTime() - mBindNs);
+        }
+
+        @Override
+        public void onErrorResponse(final VolleyError error) {
+            if (!mDone) {
+                mDone = true;
+                mPendingCount--;
+            }
+        }
+    }
+
+    /**
+     * Samples the used heap until interrupted
+     */
+    private static final class HeapSampler extends Thread {
+
+        private static final long INTERVAL_MS = 5;
+
+        private volatile long mPeakBytes;
+
+        HeapSampler() {
+            super("HeapSampler");
+            setDaemon(true);
+        }
+
+        long getPeakBytes() {
+            return mPeakBytes;
+        }
+
+        @Override
+        public void run() {
+            final Runtime runtime = Runtime.getRuntime();
+            while (!isInterrupted()) {
+                mPeakBytes = Math.max(mPeakBytes, runtime.totalMemory() - runtime.freeMemory());
+                try {
+                    Thread.sleep(INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * The network for non-streaming requests. The loader streams every image request.
+     */
+    private static final class UnsupportedNetwork implements Network {
+
+        @Override
+        public NetworkResponse performRequest(final Request<?> request) throws VolleyError {
+            throw new UnsupportedOperationException("Only streaming requests are expected");
+        }
+    }
+}
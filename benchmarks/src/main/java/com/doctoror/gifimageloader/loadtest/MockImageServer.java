@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * A local HTTP server of generated JPEG and animated GIF images, which answers after a fixed
+ * latency and sends the body no faster than the given bandwidth, to stand in for a slow network.
+ * Images have an ETag and, if set, a max-age, and conditional requests are answered with 304 Not
+ * Modified.
+ */
+final class MockImageServer {
+
+    private static final String PATH = "/images/";
+
+    private static final int CHUNK_SIZE = 4096;
+
+    private final byte[][] mImages;
+    private final boolean[] mAnimated;
+    private final int mLatencyMs;
+    private final long mBandwidthBytesPerSecond;
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mNotModifiedCount = new AtomicInteger();
+
+    /** The max-age of responses in seconds, or -1 to send no Cache-Control */
+    private volatile int mMaxAgeSeconds = -1;
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    private HttpServer mServer;
+    private ExecutorService mExecutor;
+
+    /**
+     * @param images                  The images to serve, encoded
+     * @param animated                Whether each of the images is an animated GIF
+     * @param latencyMs               Time to wait before answering each request
+     * @param bandwidthBytesPerSecond Maximum rate to send each response body at, or zero for
+     *                                unlimited
+     */
+    MockImageServer(final byte[][] images, final boolean[] animated, final int latencyMs,
+            final long bandwidthBytesPerSecond) {
+        mImages = images;
+        mAnimated = animated;
+        mLatencyMs = latencyMs;
+        mBandwidthBytesPerSecond = bandwidthBytesPerSecond;
+    }
+
+    /**
+     * Generates images of random rectangles, every gifInterval-th of them an animated GIF and
+     * the rest JPEGs.
+     *
+     * @param count       Number of images
+     * @param gifInterval Interval of animated GIFs, or zero for none
+     */
+    static MockImageServer generate(final int count, final int gifInterval, final int latencyMs,
+            final long bandwidthBytesPerSecond) throws IOException {
+        final byte[][] images = new byte[count][];
+        final boolean[] animated = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            final Random random = new Random(i);
+            animated[i] = gifInterval > 0 && i % gifInterval == 0;
+            images[i] = animated[i]
+                    ? encodeGif(random, 480, 360, 8)
+                    : encodeJpeg(random, 1024, 768);
+        }
+        return new MockImageServer(images, animated, latencyMs, bandwidthBytesPerSecond);
+    }
+
+    void start() throws IOException {
+        mServer = HttpServer.create(
+                new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        mExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mExecutor);
+        mServer.createContext(PATH, new ImageHandler());
+        mServer.start();
+    }
+
+    void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    void setMaxAge(final int maxAgeSeconds) {
+        mMaxAgeSeconds = maxAgeSeconds;
+    }
+
+    int getImageCount() {
+        return mImages.length;
+    }
+
+    String getUrl(final int index) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + PATH + index
+                + (mAnimated[index] ? ".gif" : ".jpg");
+    }
+
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    int getNotModifiedCount() {
+        return mNotModifiedCount.get();
+    }
+
+    long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    private final class ImageHandler implements HttpHandler {
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            try {
+                mRequestCount.incrementAndGet();
+                final String path = exchange.getRequestURI().getPath();
+                final byte[] image = findImage(path);
+                if (image == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+                if (mLatencyMs > 0) {
+                    Thread.sleep(mLatencyMs);
+                }
+                // Images never change, so the path serves as the entity tag.
+                final String eTag = '"' + path + '"';
+                exchange.getResponseHeaders().set("ETag", eTag);
+                final int maxAgeSeconds = mMaxAgeSeconds;
+                if (maxAgeSeconds >= 0) {
+                    exchange.getResponseHeaders().set("Cache-Control", "max-age=" + maxAgeSeconds);
+                }
+                if (eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    mNotModifiedCount.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+                exchange.sendResponseHeaders(200, image.length);
+                final OutputStream body = exchange.getResponseBody();
+                final long startNs = System.nanoTime();
+                for (int sent = 0; sent < image.length; ) {
+                    final int length = Math.min(CHUNK_SIZE, image.length - sent);
+                    body.write(image, sent, length);
+                    body.flush();
+                    sent += length;
+                    mBytesSent.addAndGet(length);
+                    if (mBandwidthBytesPerSecond > 0) {
+                        // Sleep until sending this much takes as long as the bandwidth allows.
+                        final long dueNs = sent * 1000000000L / mBandwidthBytesPerSecond;
+                        final long aheadMs = (dueNs - (System.nanoTime() - startNs)) / 1000000L;
+                        if (aheadMs > 0) {
+                            Thread.sleep(aheadMs);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // The client canceled the request and closed the connection.
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private byte[] findImage(final String path) {
+            final int dot = path.lastIndexOf('.');
+            if (dot <= PATH.length()) {
+                return null;
+            }
+            final int index;
+            try {
+                index = Integer.parseInt(path.substring(PATH.length(), dot));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return index >= 0 && index < mImages.length ? mImages[index] : null;
+        }
+    }
+
+    private static byte[] encodeJpeg(final Random random, final int width, final int height)
+            throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(drawFrame(random, width, height), "jpg", out);
+        return out.toByteArray();
+    }
+
+    private static byte[] encodeGif(final Random random, final int width, final int height,
+            final int frames) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+        final ImageOutputStream output = ImageIO.createImageOutputStream(out);
+        try {
+            writer.setOutput(output);
+            writer.prepareWriteSequence(null);
+            for (int i = 0; i < frames; i++) {
+                writer.writeToSequence(new IIOImage(drawFrame(random, width, height), null, null),
+                        null);
+            }
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+            output.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static BufferedImage drawFrame(final Random random, final int width,
+            final int height) {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D graphics = image.createGraphics();
+        try {
+            for (int i = 0; i < 64; i++) {
+                graphics.setColor(new Color(random.nextInt(0x1000000)));
+                graphics.fillRect(random.nextInt(width), random.nextInt(height),
+                        1 + random.nextInt(width / 4), 1 + random.nextInt(height / 4));
+            }
+        } finally {
+            graphics.dispose();
+        }
+        return image;
+    }
+}
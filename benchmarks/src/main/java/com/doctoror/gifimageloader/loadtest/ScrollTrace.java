@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader.loadtest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A script of list items being bound to and unbound from views while a list scrolls. A bound
+ * item requests its image and an unbound item cancels it, like a recycled NetworkGifImageView
+ * does.
+ * <p>
+ * A trace file has a step per line: the time in milliseconds since the start, "bind" or
+ * "unbind", and the item position, separated by spaces. Lines starting with # are ignored.
+ */
+final class ScrollTrace {
+
+    static final class Step {
+
+        final long mTimeMs;
+        final boolean mBind;
+        final int mPosition;
+
+        Step(final long timeMs, final boolean bind, final int position) {
+            mTimeMs = timeMs;
+            mBind = bind;
+            mPosition = position;
+        }
+    }
+
+    private final List<Step> mSteps;
+    private final int mItemCount;
+    private final long mDurationMs;
+
+    private ScrollTrace(final List<Step> steps) {
+        mSteps = Collections.unmodifiableList(steps);
+        int itemCount = 0;
+        long durationMs = 0;
+        for (final Step step : steps) {
+            itemCount = Math.max(itemCount, step.mPosition + 1);
+            durationMs = Math.max(durationMs, step.mTimeMs);
+        }
+        mItemCount = itemCount;
+        mDurationMs = durationMs;
+    }
+
+    List<Step> getSteps() {
+        return mSteps;
+    }
+
+    /**
+     * Returns the number of items, one more than the largest position
+     */
+    int getItemCount() {
+        return mItemCount;
+    }
+
+    /**
+     * Returns the time of the latest step
+     */
+    long getDurationMs() {
+        return mDurationMs;
+    }
+
+    /**
+     * Scrolls a list from the top to the bottom and back at a constant speed, the given number of
+     * times.
+     *
+     * @param itemCount      Number of items in the list
+     * @param visibleCount   Number of items on screen at a time
+     * @param itemsPerSecond Scroll speed
+     * @param passes         Number of times to scroll down and back up
+     */
+    static ScrollTrace fling(final int itemCount, final int visibleCount,
+            final float itemsPerSecond, final int passes) {
+        if (visibleCount <= 0 || visibleCount > itemCount) {
+            throw new IllegalArgumentException("visibleCount must be in 1.." + itemCount);
+        }
+        final List<Step> steps = new ArrayList<>();
+        for (int i = 0; i < visibleCount; i++) {
+            steps.add(new Step(0, true, i));
+        }
+        final float intervalMs = 1000f / itemsPerSecond;
+        final int lastTop = itemCount - visibleCount;
+        int scrolls = 0;
+        for (int pass = 0; pass < passes; pass++) {
+            for (int top = 0; top < lastTop; top++) {
+                final long timeMs = (long) (++scrolls * intervalMs);
+                steps.add(new Step(timeMs, false, top));
+                steps.add(new Step(timeMs, true, top + visibleCount));
+            }
+            for (int top = lastTop; top > 0; top--) {
+                final long timeMs = (long) (++scrolls * intervalMs);
+                steps.add(new Step(timeMs, false, top + visibleCount - 1));
+                steps.add(new Step(timeMs, true, top - 1));
+            }
+        }
+        return new ScrollTrace(steps);
+    }
+
+    /**
+     * Reads a trace file. See the class description for the format.
+     */
+    static ScrollTrace read(final File file) throws IOException {
+        final List<Step> steps = new ArrayList<>();
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split("\\s+");
+                if (fields.length != 3
+                        || !("bind".equals(fields[1]) || "unbind".equals(fields[1]))) {
+                    throw new IOException(file + ":" + lineNumber + ": malformed step: " + line);
+                }
+                try {
+                    steps.add(new Step(Long.parseLong(fields[0]), "bind".equals(fields[1]),
+                            Integer.parseInt(fields[2])));
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + ":" + lineNumber + ": malformed step: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return new ScrollTrace(steps);
+    }
+}
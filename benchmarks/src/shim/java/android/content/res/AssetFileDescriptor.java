@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.res;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Shim of the Android class, for running the library on the JVM
+ */
+public class AssetFileDescriptor implements Closeable {
+
+    private final ParcelFileDescriptor mFd;
+    private final long mStartOffset;
+    private final long mLength;
+
+    public AssetFileDescriptor(final ParcelFileDescriptor fd, final long startOffset,
+            final long length) {
+        mFd = fd;
+        mStartOffset = startOffset;
+        mLength = length;
+    }
+
+    public ParcelFileDescriptor getParcelFileDescriptor() {
+        return mFd;
+    }
+
+    public long getStartOffset() {
+        return mStartOffset;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFd.close();
+    }
+}
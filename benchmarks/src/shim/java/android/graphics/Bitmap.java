@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.graphics;
+
+import java.io.OutputStream;
+import java.nio.Buffer;
+
+/**
+ * Shim of the Android class. Bitmaps have a size and config but no pixels.
+ */
+public final class Bitmap {
+
+    public enum Config {
+        ALPHA_8(1), RGB_565(2), ARGB_4444(2), ARGB_8888(4);
+
+        final int mBytesPerPixel;
+
+        Config(final int bytesPerPixel) {
+            mBytesPerPixel = bytesPerPixel;
+        }
+    }
+
+    public enum CompressFormat {
+        JPEG, PNG, WEBP
+    }
+
+    private int mWidth;
+    private int mHeight;
+    private Config mConfig;
+    private final int mAllocationByteCount;
+    private boolean mRecycled;
+    private boolean mMutable = true;
+
+    private Bitmap(final int width, final int height, final Config config) {
+        mWidth = width;
+        mHeight = height;
+        mConfig = config;
+        mAllocationByteCount = getByteCount();
+    }
+
+    public static Bitmap createBitmap(final int width, final int height, final Config config) {
+        return new Bitmap(width, height, config);
+    }
+
+    public static Bitmap createScaledBitmap(final Bitmap src, final int dstWidth,
+            final int dstHeight, final boolean filter) {
+        return new Bitmap(dstWidth, dstHeight, src.mConfig);
+    }
+
+    public Bitmap copy(final Config config, final boolean isMutable) {
+        final Bitmap copy = new Bitmap(mWidth, mHeight, config);
+        copy.mMutable = isMutable;
+        return copy;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public Config getConfig() {
+        return mConfig;
+    }
+
+    public int getRowBytes() {
+        return mWidth * mConfig.mBytesPerPixel;
+    }
+
+    public int getByteCount() {
+        return getRowBytes() * mHeight;
+    }
+
+    public int getAllocationByteCount() {
+        return mAllocationByteCount;
+    }
+
+    public boolean isMutable() {
+        return mMutable;
+    }
+
+    public void reconfigure(final int width, final int height, final Config config) {
+        mWidth = width;
+        mHeight = height;
+        mConfig = config;
+    }
+
+    public void eraseColor(final int color) {
+    }
+
+    public void copyPixelsToBuffer(final Buffer dst) {
+    }
+
+    public void copyPixelsFromBuffer(final Buffer src) {
+        if (src.remaining() < getByteCount()) {
+            throw new RuntimeException("Buffer not large enough for pixels");
+        }
+    }
+
+    public boolean compress(final CompressFormat format, final int quality,
+            final OutputStream stream) {
+        return false;
+    }
+
+    public void recycle() {
+        mRecycled = true;
+    }
+
+    public boolean isRecycled() {
+        return mRecycled;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.graphics;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Shim of the Android class. Images are decoded with ImageIO, so decoding costs about as much
+ * CPU time as on a device, but the pixels are thrown away.
+ */
+public class BitmapFactory {
+
+    public static class Options {
+
+        public Bitmap inBitmap;
+        public boolean inJustDecodeBounds;
+        public boolean inMutable;
+        public Bitmap.Config inPreferredConfig;
+        public int inSampleSize;
+        public int outWidth;
+        public int outHeight;
+    }
+
+    public static Bitmap decodeFile(final String pathName, final Options opts) {
+        try {
+            return decode(ImageIO.createImageInputStream(new File(pathName)), opts);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static Bitmap decodeByteArray(final byte[] data, final int offset, final int length,
+            final Options opts) {
+        try {
+            return decode(ImageIO.createImageInputStream(
+                    new ByteArrayInputStream(data, offset, length)), opts);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Bitmap decode(final ImageInputStream input, final Options opts)
+            throws IOException {
+        if (input == null) {
+            return null;
+        }
+        try {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                final int sampleSize = opts != null && opts.inSampleSize > 1
+                        ? opts.inSampleSize : 1;
+                final int width = (reader.getWidth(0) + sampleSize - 1) / sampleSize;
+                final int height = (reader.getHeight(0) + sampleSize - 1) / sampleSize;
+                if (opts != null) {
+                    opts.outWidth = width;
+                    opts.outHeight = height;
+                    if (opts.inJustDecodeBounds) {
+                        return null;
+                    }
+                }
+                final ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+                reader.read(0, param);
+
+                final Bitmap.Config config = opts != null && opts.inPreferredConfig != null
+                        ? opts.inPreferredConfig : Bitmap.Config.ARGB_8888;
+                final Bitmap inBitmap = opts != null ? opts.inBitmap : null;
+                if (inBitmap != null) {
+                    if (inBitmap.getAllocationByteCount()
+                            < width * height * config.mBytesPerPixel) {
+                        throw new IllegalArgumentException(
+                                "Problem decoding into existing bitmap");
+                    }
+                    inBitmap.reconfigure(width, height, config);
+                    return inBitmap;
+                }
+                return Bitmap.createBitmap(width, height, config);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.graphics.drawable;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+
+/**
+ * Shim of the Android class, for running the library on the JVM
+ */
+public class BitmapDrawable extends Drawable {
+
+    private final Bitmap mBitmap;
+
+    public BitmapDrawable(final Resources res, final Bitmap bitmap) {
+        mBitmap = bitmap;
+    }
+
+    public final Bitmap getBitmap() {
+        return mBitmap;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * Shim of the Android class, for running Volley on the JVM
+ */
+
+public final class Uri {
+
+    private final String mHost;
+
+    private Uri(final String host) {
+        mHost = host;
+    }
+
+    public static Uri parse(final String uriString) {
+        try {
+            return new Uri(new URI(uriString).getHost());
+        } catch (URISyntaxException e) {
+            return new Uri(null);
+        }
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+}
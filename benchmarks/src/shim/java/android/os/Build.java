@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * Shim of the Android class, for compiling the library on the JVM. Reports the compile SDK
+ * version, so the newest code paths are measured. Like on Android, the version is not a compile
+ * time constant, and tests may lower it to run the code paths of older versions.
+ */
+public class Build {
+
+    public static class VERSION {
+
+        public static int SDK_INT = VERSION_CODES.LOLLIPOP_MR1;
+    }
+
+    public static class VERSION_CODES {
+
+        public static final int GINGERBREAD = 9;
+        public static final int HONEYCOMB = 11;
+        public static final int HONEYCOMB_MR1 = 12;
+        public static final int ICE_CREAM_SANDWICH = 14;
+        public static final int JELLY_BEAN = 16;
+        public static final int KITKAT = 19;
+        public static final int LOLLIPOP_MR1 = 22;
+    }
+}
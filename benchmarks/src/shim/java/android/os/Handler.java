@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * Shim of the Android class. Messages are run by {@link Looper#loop()}, or dropped if there is
+ * no main thread to run them.
+ */
+public class Handler {
+
+    private final Looper mLooper;
+
+    public Handler(final Looper looper) {
+        mLooper = looper;
+    }
+
+    public final boolean post(final Runnable r) {
+        return mLooper.enqueue(r, SystemClock.uptimeMillis());
+    }
+
+    public final boolean postDelayed(final Runnable r, final long delayMillis) {
+        return mLooper.enqueue(r, SystemClock.uptimeMillis() + delayMillis);
+    }
+
+    public final void removeCallbacks(final Runnable r) {
+        mLooper.remove(r);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Shim of the Android class. Until {@link #prepareMainLooper()} is called every thread counts as
+ * the main thread, so that main thread only code can be measured on the benchmark threads, and
+ * posted messages are dropped. After it is called, the calling thread is the main thread and
+ * {@link #loop()} runs the messages posted to it.
+ */
+public final class Looper {
+
+    private static final Looper MAIN = new Looper();
+
+    private static volatile Thread sMainThread;
+
+    private final PriorityQueue<Message> mQueue = new PriorityQueue<>();
+
+    private long mSequence;
+    private boolean mQuitting;
+
+    public static void prepareMainLooper() {
+        sMainThread = Thread.currentThread();
+    }
+
+    public static Looper getMainLooper() {
+        return MAIN;
+    }
+
+    public static Looper myLooper() {
+        final Thread mainThread = sMainThread;
+        return mainThread == null || mainThread == Thread.currentThread() ? MAIN : null;
+    }
+
+    /**
+     * Runs the messages of the main looper until {@link #quit()} is called.
+     */
+    public static void loop() {
+        MAIN.run();
+    }
+
+    public void quit() {
+        synchronized (mQueue) {
+            mQuitting = true;
+            mQueue.notifyAll();
+        }
+    }
+
+    /**
+     * Queues the runnable to run at the given {@link SystemClock#uptimeMillis()} time.
+     *
+     * @return false if there is no main thread to run it, or the looper is quitting
+     */
+    boolean enqueue(final Runnable callback, final long uptimeMillis) {
+        if (sMainThread == null) {
+            return false;
+        }
+        synchronized (mQueue) {
+            if (mQuitting) {
+                return false;
+            }
+            mQueue.add(new Message(callback, uptimeMillis, mSequence++));
+            mQueue.notifyAll();
+        }
+        return true;
+    }
+
+    void remove(final Runnable callback) {
+        synchronized (mQueue) {
+            final Iterator<Message> i = mQueue.iterator();
+            while (i.hasNext()) {
+                if (i.next().mCallback == callback) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    private void run() {
+        while (true) {
+            final Message message;
+            synchronized (mQueue) {
+                while (true) {
+                    if (mQuitting) {
+                        return;
+                    }
+                    final Message next = mQueue.peek();
+                    final long now = SystemClock.uptimeMillis();
+                    if (next != null && next.mWhen <= now) {
+                        message = mQueue.poll();
+                        break;
+                    }
+                    try {
+                        mQueue.wait(next != null ? next.mWhen - now : 0);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+            message.mCallback.run();
+        }
+    }
+
+    private static final class Message implements Comparable<Message> {
+
+        final Runnable mCallback;
+        final long mWhen;
+        final long mSequence;
+
+        Message(final Runnable callback, final long when, final long sequence) {
+            mCallback = callback;
+            mWhen = when;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(final Message another) {
+            if (mWhen != another.mWhen) {
+                return mWhen < another.mWhen ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+}
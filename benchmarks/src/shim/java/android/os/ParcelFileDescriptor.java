@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Shim of the Android class, for running the library on the JVM. Only read-only files are
+ * supported.
+ */
+public class ParcelFileDescriptor implements Closeable {
+
+    public static final int MODE_READ_ONLY = 0x10000000;
+
+    private final RandomAccessFile mFile;
+
+    private ParcelFileDescriptor(final RandomAccessFile file) {
+        mFile = file;
+    }
+
+    public static ParcelFileDescriptor open(final File file, final int mode)
+            throws FileNotFoundException {
+        if (mode != MODE_READ_ONLY) {
+            throw new FileNotFoundException("Only MODE_READ_ONLY is supported on the JVM");
+        }
+        return new ParcelFileDescriptor(new RandomAccessFile(file, "r"));
+    }
+
+    public FileDescriptor getFileDescriptor() {
+        try {
+            return mFile.getFD();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
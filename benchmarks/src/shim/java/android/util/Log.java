@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+/**
+ * Shim of the Android class. Logging is disabled.
+ */
+public final class Log {
+
+    public static final int VERBOSE = 2;
+
+    private Log() {
+    }
+
+    public static boolean isLoggable(final String tag, final int level) {
+        return false;
+    }
+
+    public static int v(final String tag, final String msg) {
+        return 0;
+    }
+
+    public static int d(final String tag, final String msg) {
+        return 0;
+    }
+
+    public static int e(final String tag, final String msg) {
+        return 0;
+    }
+
+    public static int e(final String tag, final String msg, final Throwable tr) {
+        return 0;
+    }
+
+    public static int wtf(final String tag, final String msg) {
+        return 0;
+    }
+
+    public static int wtf(final String tag, final String msg, final Throwable tr) {
+        return 0;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.view;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shim of the Android class. Frame callbacks run on the main looper at the next 60 fps frame
+ * boundary, or are dropped if there is no main thread to run them.
+ */
+public final class Choreographer {
+
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    private static final Choreographer INSTANCE = new Choreographer();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Map<FrameCallback, Runnable> mPosted = new HashMap<>();
+
+    public interface FrameCallback {
+
+        void doFrame(long frameTimeNanos);
+    }
+
+    public static Choreographer getInstance() {
+        return INSTANCE;
+    }
+
+    public void postFrameCallback(final FrameCallback callback) {
+        final long now = SystemClock.uptimeMillis();
+        final Runnable runnable = new Runnable() {
+
+            @Override
+            public void run() {
+                synchronized (mPosted) {
+                    mPosted.remove(callback);
+                }
+                callback.doFrame(System.nanoTime());
+            }
+        };
+        synchronized (mPosted) {
+            mPosted.put(callback, runnable);
+        }
+        mHandler.postDelayed(runnable, FRAME_INTERVAL_MS - now % FRAME_INTERVAL_MS);
+    }
+
+    public void removeFrameCallback(final FrameCallback callback) {
+        final Runnable runnable;
+        synchronized (mPosted) {
+            runnable = mPosted.remove(callback);
+        }
+        if (runnable != null) {
+            mHandler.removeCallbacks(runnable);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.http.impl.cookie;
+
+/**
+ * Shim of the Apache HttpClient class bundled with Android, for running Volley on the JVM
+ */
+public class DateParseException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public DateParseException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.http.impl.cookie;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Shim of the Apache HttpClient class bundled with Android. Parses and formats RFC 1123 dates
+ * only, which is what HTTP/1.1 servers send.
+ */
+public final class DateUtils {
+
+    private static final String PATTERN_RFC1123 = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private DateUtils() {
+    }
+
+    public static Date parseDate(final String dateValue) throws DateParseException {
+        try {
+            return newFormat().parse(dateValue);
+        } catch (ParseException e) {
+            throw new DateParseException("Unable to parse the date " + dateValue);
+        }
+    }
+
+    public static String formatDate(final Date date) {
+        return newFormat().format(date);
+    }
+
+    private static SimpleDateFormat newFormat() {
+        final SimpleDateFormat format = new SimpleDateFormat(PATTERN_RFC1123, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.droidsonroids.gif;
+
+import android.graphics.drawable.Drawable;
+
+/**
+ * Shim of the GIF library class. The drawable has a frame size but no pixels, and does not
+ * animate on its own. Frames are assumed to last 100 ms.
+ */
+public class GifDrawable extends Drawable {
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mNumberOfFrames;
+    private final long mInputSourceByteCount;
+    private boolean mRunning = true;
+    private int mCurrentFrame;
+
+    GifDrawable(final int width, final int height, final int numberOfFrames,
+            final long inputSourceByteCount) {
+        mWidth = width;
+        mHeight = height;
+        mNumberOfFrames = numberOfFrames;
+        mInputSourceByteCount = inputSourceByteCount;
+    }
+
+    public int getIntrinsicWidth() {
+        return mWidth;
+    }
+
+    public int getIntrinsicHeight() {
+        return mHeight;
+    }
+
+    public int getNumberOfFrames() {
+        return mNumberOfFrames;
+    }
+
+    public int getDuration() {
+        return mNumberOfFrames * 100;
+    }
+
+    public void start() {
+        mRunning = true;
+    }
+
+    public void stop() {
+        mRunning = false;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public int getCurrentFrameIndex() {
+        return mCurrentFrame;
+    }
+
+    public void seekToFrame(final int frame) {
+        if (frame < 0 || frame >= mNumberOfFrames) {
+            throw new IndexOutOfBoundsException("Frame index is out of bounds");
+        }
+        mCurrentFrame = frame;
+    }
+
+    public long getAllocationByteCount() {
+        // The frame buffer and the input source, like the library reports it.
+        return getFrameByteCount() + mInputSourceByteCount;
+    }
+
+    public long getInputSourceByteCount() {
+        return mInputSourceByteCount;
+    }
+
+    public int getFrameByteCount() {
+        return mWidth * mHeight * 4;
+    }
+}
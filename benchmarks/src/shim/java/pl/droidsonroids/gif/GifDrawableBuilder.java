@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package pl.droidsonroids.gif;
+
+import android.content.res.AssetFileDescriptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Shim of the GIF library class. The first frame is decoded with ImageIO and the frames are
+ * counted, which costs about as much CPU time as opening a GIF on a device. Asset file
+ * descriptors are read into memory and closed.
+ */
+public class GifDrawableBuilder {
+
+    private int mSampleSize = 1;
+    private byte[] mBytes;
+    private File mFile;
+    private AssetFileDescriptor mAssetFileDescriptor;
+
+    public GifDrawableBuilder sampleSize(final int sampleSize) {
+        mSampleSize = sampleSize;
+        return this;
+    }
+
+    public GifDrawableBuilder from(final byte[] bytes) {
+        mBytes = bytes;
+        mFile = null;
+        mAssetFileDescriptor = null;
+        return this;
+    }
+
+    public GifDrawableBuilder from(final File file) {
+        mFile = file;
+        mBytes = null;
+        mAssetFileDescriptor = null;
+        return this;
+    }
+
+    public GifDrawableBuilder from(final AssetFileDescriptor assetFileDescriptor) {
+        mAssetFileDescriptor = assetFileDescriptor;
+        mFile = null;
+        mBytes = null;
+        return this;
+    }
+
+    public GifDrawable build() throws IOException {
+        if (mAssetFileDescriptor != null) {
+            mBytes = readFully(mAssetFileDescriptor);
+            mAssetFileDescriptor = null;
+        }
+        final ImageInputStream input;
+        if (mBytes != null) {
+            input = ImageIO.createImageInputStream(new ByteArrayInputStream(mBytes));
+        } else if (mFile != null) {
+            input = ImageIO.createImageInputStream(mFile);
+        } else {
+            throw new IOException("Source is not set");
+        }
+        if (input == null) {
+            throw new IOException("Can not read the source");
+        }
+        try {
+            final Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("gif");
+            if (!readers.hasNext()) {
+                throw new IOException("No GIF decoder");
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, false, true);
+                final int sampleSize = mSampleSize > 1 ? mSampleSize : 1;
+                final ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+                reader.read(0, param);
+                final int frameCount = reader.getNumImages(true);
+                return new GifDrawable((reader.getWidth(0) + sampleSize - 1) / sampleSize,
+                        (reader.getHeight(0) + sampleSize - 1) / sampleSize, frameCount,
+                        mBytes != null ? mBytes.length : mFile.length());
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private static byte[] readFully(final AssetFileDescriptor afd) throws IOException {
+        try {
+            final FileChannel channel = new FileInputStream(
+                    afd.getParcelFileDescriptor().getFileDescriptor()).getChannel();
+            final ByteBuffer buffer = ByteBuffer.allocate((int) afd.getLength());
+            long position = afd.getStartOffset();
+            while (buffer.hasRemaining()) {
+                final int read = channel.read(buffer, position);
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                position += read;
+            }
+            return buffer.array();
+        } finally {
+            afd.close();
+        }
+    }
+}
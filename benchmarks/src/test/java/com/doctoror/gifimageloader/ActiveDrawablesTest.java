@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ActiveDrawablesTest {
+
+    /** Size of each drawable, so that the cache holds two of them */
+    private static final int SIZE = 100 * 100 * 4;
+
+    private final ActiveDrawables mActive = new ActiveDrawables();
+
+    private final BitmapPool mPool = new BitmapPool(SIZE * 10);
+
+    private DrawableImageCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new DrawableImageCache(SIZE * 2, SIZE);
+        mCache.setBitmapPool(mPool);
+        // Like GifImageLoader does.
+        mCache.setInUseTracker(new DrawableImageCache.InUseTracker() {
+            @Override
+            public boolean deferRecycle(@NonNull final String key,
+                    @NonNull final Drawable drawable) {
+                return mActive.markRemoved(key, drawable);
+            }
+        });
+    }
+
+    @Test
+    public void evictedDrawableIsPooledWhenReleased() {
+        final BitmapDrawable shown = newDrawable();
+        mCache.putImage("shown", shown);
+        mActive.acquire("shown", shown);
+        evictAll();
+        assertEquals(0, mPool.size());
+
+        assertTrue(mActive.release("shown", shown));
+        mCache.recycle(shown);
+        assertSame(shown.getBitmap(), mPool.get(100, 100, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void cachedDrawableIsNotRecycledWhenReleased() {
+        final BitmapDrawable shown = newDrawable();
+        mCache.putImage("shown", shown);
+        mActive.acquire("shown", shown);
+
+        assertFalse(mActive.release("shown", shown));
+        assertEquals(0, mActive.size());
+    }
+
+    @Test
+    public void drawableCachedAgainIsNotRecycledWhenReleased() {
+        final BitmapDrawable shown = newDrawable();
+        mCache.putImage("shown", shown);
+        mActive.acquire("shown", shown);
+        evictAll();
+        mCache.putImage("shown", shown);
+        mActive.markCached("shown", shown);
+
+        assertFalse(mActive.release("shown", shown));
+    }
+
+    @Test
+    public void drawableIsRecycledAfterLastRelease() {
+        final BitmapDrawable shown = newDrawable();
+        mCache.putImage("shown", shown);
+        mActive.acquire("shown", shown);
+        mActive.acquire("shown", shown);
+        evictAll();
+
+        assertFalse(mActive.release("shown", shown));
+        assertTrue(mActive.release("shown", shown));
+    }
+
+    @Test
+    public void unusedDrawableIsPooledWhenEvicted() {
+        final BitmapDrawable hidden = newDrawable();
+        mCache.putImage("hidden", hidden);
+        evictAll();
+
+        assertSame(hidden.getBitmap(), mPool.get(100, 100, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void replacedDrawableIsNotRecycled() {
+        final BitmapDrawable old = newDrawable();
+        mCache.putImage("shown", old);
+        mActive.acquire("shown", old);
+        // A new decode of the same key replaces the old one while it is still shown.
+        final BitmapDrawable decoded = newDrawable();
+        mCache.putImage("shown", decoded);
+        mActive.acquire("shown", decoded);
+
+        assertEquals(0, mPool.size());
+        assertFalse(mActive.release("shown", old));
+    }
+
+    private void evictAll() {
+        mCache.putImage("second", newDrawable());
+        mCache.putImage("third", newDrawable());
+    }
+
+    @NonNull
+    private static BitmapDrawable newDrawable() {
+        return new BitmapDrawable(Resources.getSystem(),
+                Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+
+import pl.droidsonroids.gif.GifDrawable;
+import pl.droidsonroids.gif.GifDrawableBuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AnimationSchedulerTest {
+
+    private static final long VSYNC_NS = 1000000000L / 60;
+
+    /** Frame duration of the GIF shim */
+    private static final long FRAME_NS = 100000000L;
+
+    /** Enough frames that skipping never lands on the frame shown */
+    private static final int FRAMES = 16;
+
+    /** Frame pixels a 40x30 GIF decodes per vsync at 10 fps, rounded up */
+    private static final long PIXELS_PER_VSYNC = 40 * 30 / 6;
+
+    /** Ticks of the timing tests, and the frames due in them */
+    private static final int TICKS = 600;
+    private static final long DUE = TICKS * VSYNC_NS / FRAME_NS;
+
+    private final AnimationScheduler mScheduler = new AnimationScheduler();
+
+    @Test
+    public void showsEveryFrameWithinBudget() throws IOException {
+        final GifDrawable gif = newGif();
+        mScheduler.setOnScreen(gif, this, true);
+        assertFalse(gif.isRunning());
+
+        final int[] shown = new int[1];
+        assertEquals(0, run(TICKS, new GifDrawable[] {gif}, shown));
+        assertEquals(DUE, shown[0]);
+        assertEquals(0, mScheduler.getDroppedFrameCount());
+        assertEquals(1f, mScheduler.getFrameRateFactor(), 0f);
+    }
+
+    @Test
+    public void skipsFramesEvenlyOverBudget() throws IOException {
+        final GifDrawable first = newGif();
+        final GifDrawable second = newGif();
+        mScheduler.setOnScreen(first, this, true);
+        mScheduler.setOnScreen(second, this, true);
+        // Both need twice the budget, so each shows a quarter of its frames.
+        mScheduler.setFrameBudget(PIXELS_PER_VSYNC / 2);
+        assertEquals(0.25f, mScheduler.getFrameRateFactor(), 0.01f);
+
+        final int[] shown = new int[2];
+        final long skipped = run(TICKS, new GifDrawable[] {first, second}, shown);
+        assertEquals(skipped, mScheduler.getDroppedFrameCount());
+        assertEquals(2 * DUE - shown[0] - shown[1], skipped);
+        assertEquals(DUE / 4, shown[0], 2);
+        assertEquals(DUE / 4, shown[1], 2);
+    }
+
+    @Test
+    public void fitsBudgetAgainWhenGifLeaves() throws IOException {
+        final GifDrawable first = newGif();
+        final GifDrawable second = newGif();
+        mScheduler.setOnScreen(first, this, true);
+        mScheduler.setOnScreen(second, this, true);
+        mScheduler.setFrameBudget(PIXELS_PER_VSYNC);
+        assertEquals(0.5f, mScheduler.getFrameRateFactor(), 0.01f);
+
+        mScheduler.setOnScreen(second, this, false);
+        assertEquals(1f, mScheduler.getFrameRateFactor(), 0f);
+        assertEquals(1, mScheduler.getRunningCount());
+    }
+
+    @Test
+    public void gifOffScreenStaysPut() throws IOException {
+        final GifDrawable shown = newGif();
+        final GifDrawable hidden = newGif();
+        mScheduler.setOnScreen(shown, this, true);
+        mScheduler.setOnScreen(hidden, this, true);
+        mScheduler.setOnScreen(hidden, this, false);
+
+        run(30, new GifDrawable[] {shown}, new int[1]);
+        assertEquals(0, hidden.getCurrentFrameIndex());
+        assertEquals(1, mScheduler.getRunningCount());
+    }
+
+    @Test
+    public void gifRunsWhileAnyOwnerShowsIt() throws IOException {
+        final GifDrawable gif = newGif();
+        final Object other = new Object();
+        mScheduler.setOnScreen(gif, this, true);
+        mScheduler.setOnScreen(gif, other, true);
+        mScheduler.setOnScreen(gif, this, false);
+        assertEquals(1, mScheduler.getRunningCount());
+
+        mScheduler.setOnScreen(gif, other, false);
+        assertEquals(0, mScheduler.getRunningCount());
+    }
+
+    @Test
+    public void pausedTimeIsNotPlayed() throws IOException {
+        final GifDrawable gif = newGif();
+        mScheduler.setOnScreen(gif, this, true);
+        mScheduler.onFrame(0);
+        mScheduler.pause();
+        mScheduler.onFrame(FRAME_NS * 10);
+        assertTrue(mScheduler.isPaused());
+        assertEquals(0, mScheduler.getRunningCount());
+
+        mScheduler.resume();
+        mScheduler.onFrame(FRAME_NS * 20);
+        mScheduler.onFrame(FRAME_NS * 21);
+        assertEquals(1, gif.getCurrentFrameIndex());
+        assertEquals(0, mScheduler.getDroppedFrameCount());
+    }
+
+    /**
+     * Ticks on vsync, checking that each GIF shows the frame that is due in wall-clock time
+     * whenever it changes frame.
+     *
+     * @param ticks The number of ticks after the first
+     * @param gifs  The GIFs on screen, which start at frame zero on the first tick
+     * @param shown Receives the number of frames each GIF showed
+     * @return The number of due frames that were not shown
+     */
+    private long run(final int ticks, @NonNull final GifDrawable[] gifs,
+            @NonNull final int[] shown) {
+        long skipped = 0;
+        mScheduler.onFrame(0);
+        for (int i = 1; i <= ticks; i++) {
+            final long due = i * VSYNC_NS / FRAME_NS - (i - 1) * VSYNC_NS / FRAME_NS;
+            final int[] before = new int[gifs.length];
+            for (int g = 0; g < gifs.length; g++) {
+                before[g] = gifs[g].getCurrentFrameIndex();
+            }
+            mScheduler.onFrame(i * VSYNC_NS);
+            for (int g = 0; g < gifs.length; g++) {
+                final int frame = gifs[g].getCurrentFrameIndex();
+                skipped += due;
+                if (frame != before[g]) {
+                    assertEquals(i * VSYNC_NS / FRAME_NS % FRAMES, frame);
+                    shown[g]++;
+                    skipped--;
+                }
+            }
+        }
+        return skipped;
+    }
+
+    @NonNull
+    private static GifDrawable newGif() throws IOException {
+        return new GifDrawableBuilder().from(ImageHeaderTest.encodeGif(FRAMES)).build();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import org.junit.After;
+import org.junit.Test;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BitmapPoolTest {
+
+    private static final int SDK_INT = Build.VERSION.SDK_INT;
+
+    private final BitmapPool mPool = new BitmapPool(1024 * 1024);
+
+    @After
+    public void tearDown() {
+        Build.VERSION.SDK_INT = SDK_INT;
+    }
+
+    @Test
+    public void exactHit() {
+        final Bitmap bitmap = newBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        assertTrue(mPool.put(bitmap));
+
+        assertSame(bitmap, mPool.get(100, 100, Bitmap.Config.ARGB_8888));
+        assertEquals(0, mPool.size());
+        assertEquals(1, mPool.hitCount());
+    }
+
+    @Test
+    public void ceilingHitUpToTwiceTheSize() {
+        final Bitmap bitmap = newBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        mPool.put(bitmap);
+
+        // 80x80 needs 25600 of the 40000 bytes.
+        assertSame(bitmap, mPool.get(80, 80, Bitmap.Config.ARGB_8888));
+        mPool.put(bitmap);
+        // Exactly twice the 20000 bytes needed.
+        assertSame(bitmap, mPool.get(100, 50, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void ceilingMissOverTwiceTheSize() {
+        mPool.put(newBitmap(100, 100, Bitmap.Config.ARGB_8888));
+
+        // 40000 bytes for the 19800 needed.
+        assertNull(mPool.get(99, 50, Bitmap.Config.ARGB_8888));
+        assertEquals(1, mPool.missCount());
+    }
+
+    @Test
+    public void smallestBitmapLargeEnoughIsPicked() {
+        final Bitmap large = newBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        final Bitmap medium = newBitmap(60, 60, Bitmap.Config.ARGB_8888);
+        final Bitmap small = newBitmap(40, 40, Bitmap.Config.ARGB_8888);
+        mPool.put(large);
+        mPool.put(medium);
+        mPool.put(small);
+
+        assertSame(medium, mPool.get(50, 50, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void smallerBitmapIsNotHandedOut() {
+        mPool.put(newBitmap(100, 100, Bitmap.Config.ARGB_8888));
+
+        assertNull(mPool.get(101, 100, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void configMismatchMisses() {
+        mPool.put(newBitmap(100, 100, Bitmap.Config.ARGB_8888));
+
+        assertNull(mPool.get(100, 100, Bitmap.Config.RGB_565));
+        // Same byte size in another config.
+        assertNull(mPool.get(200, 100, Bitmap.Config.RGB_565));
+        assertEquals(100 * 100 * 4, mPool.size());
+    }
+
+    @Test
+    public void configsAreBucketedSeparately() {
+        final Bitmap argb = newBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        final Bitmap rgb = newBitmap(200, 100, Bitmap.Config.RGB_565);
+        mPool.put(argb);
+        mPool.put(rgb);
+
+        assertSame(rgb, mPool.get(200, 100, Bitmap.Config.RGB_565));
+        assertSame(argb, mPool.get(100, 100, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void exactDimensionsBeforeKitKat() {
+        Build.VERSION.SDK_INT = Build.VERSION_CODES.JELLY_BEAN;
+        final Bitmap bitmap = newBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        mPool.put(bitmap);
+
+        assertNull(mPool.get(80, 80, Bitmap.Config.ARGB_8888));
+        // Same byte size, other dimensions.
+        assertNull(mPool.get(50, 200, Bitmap.Config.ARGB_8888));
+        assertSame(bitmap, mPool.get(100, 100, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void nothingIsPooledBeforeHoneycomb() {
+        Build.VERSION.SDK_INT = Build.VERSION_CODES.GINGERBREAD;
+
+        assertFalse(mPool.put(newBitmap(100, 100, Bitmap.Config.ARGB_8888)));
+        assertEquals(0, mPool.size());
+    }
+
+    @Test
+    public void immutableAndRecycledBitmapsAreRejected() {
+        final Bitmap recycled = newBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        recycled.recycle();
+
+        assertFalse(mPool.put(recycled));
+        assertFalse(mPool.put(newBitmap(100, 100, Bitmap.Config.ARGB_8888)
+                .copy(Bitmap.Config.ARGB_8888, false)));
+        assertEquals(0, mPool.size());
+    }
+
+    @Test
+    public void oldestBitmapsAreDroppedOverMaxSize() {
+        final BitmapPool pool = new BitmapPool(2 * 100 * 100 * 4);
+        final Bitmap first = newBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        final Bitmap second = newBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        final Bitmap third = newBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        pool.put(first);
+        pool.put(second);
+        pool.put(third);
+
+        assertEquals(2 * 100 * 100 * 4, pool.size());
+        assertSame(second, pool.get(100, 100, Bitmap.Config.ARGB_8888));
+        assertSame(third, pool.get(100, 100, Bitmap.Config.ARGB_8888));
+        assertNull(pool.get(100, 100, Bitmap.Config.ARGB_8888));
+    }
+
+    @NonNull
+    private static Bitmap newBitmap(final int width, final int height,
+            @NonNull final Bitmap.Config config) {
+        return Bitmap.createBitmap(width, height, config);
+    }
+}
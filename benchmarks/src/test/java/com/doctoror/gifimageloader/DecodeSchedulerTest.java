@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DecodeSchedulerTest {
+
+    /** How long a decode that should be waiting is given to start anyway */
+    private static final long BLOCKED_MS = 100;
+
+    /** How long a decode that should start is given to start */
+    private static final long STARTED_MS = 5000;
+
+    private final DecodeScheduler mScheduler = new DecodeScheduler(100);
+
+    /** Costs of the decodes started by {@link #startDecode(long, Request)}, in start order */
+    private final BlockingQueue<Long> mStarted = new LinkedBlockingQueue<>();
+
+    private final List<Thread> mThreads = new ArrayList<>();
+
+    @After
+    public void tearDown() throws InterruptedException {
+        for (final Thread thread : mThreads) {
+            thread.interrupt();
+            thread.join(STARTED_MS);
+        }
+    }
+
+    @Test
+    public void decodesRunInParallelWithinBudget() throws Exception {
+        assertTrue(mScheduler.acquire(40, null));
+        assertTrue(mScheduler.acquire(60, null));
+        assertEquals(100, mScheduler.getBytesInUse());
+
+        mScheduler.release(40);
+        mScheduler.release(60);
+        assertEquals(0, mScheduler.getBytesInUse());
+    }
+
+    @Test
+    public void decodeWaitsUntilItFits() throws Exception {
+        assertTrue(mScheduler.acquire(70, null));
+        startDecode(50, null);
+        assertNull(mStarted.poll(BLOCKED_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, mScheduler.getQueueDepth());
+
+        mScheduler.release(70);
+        assertEquals(50L, (long) mStarted.poll(STARTED_MS, TimeUnit.MILLISECONDS));
+        assertEquals(0, mScheduler.getQueueDepth());
+    }
+
+    @Test
+    public void waitingDecodesStartInArrivalOrder() throws Exception {
+        assertTrue(mScheduler.acquire(60, null));
+        startDecode(80, null);
+        awaitQueueDepth(1);
+        // Fits the 40 bytes left, but the older decode reserved them.
+        startDecode(30, null);
+        awaitQueueDepth(2);
+        assertNull(mStarted.poll(BLOCKED_MS, TimeUnit.MILLISECONDS));
+
+        mScheduler.release(60);
+        assertEquals(80L, (long) mStarted.poll(STARTED_MS, TimeUnit.MILLISECONDS));
+        // 20 bytes are left, not enough for the younger decode.
+        assertNull(mStarted.poll(BLOCKED_MS, TimeUnit.MILLISECONDS));
+
+        mScheduler.release(80);
+        assertEquals(30L, (long) mStarted.poll(STARTED_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void oversizeDecodeRunsAlone() throws Exception {
+        assertTrue(mScheduler.acquire(500, null));
+        assertEquals(500, mScheduler.getBytesInUse());
+
+        startDecode(10, null);
+        assertNull(mStarted.poll(BLOCKED_MS, TimeUnit.MILLISECONDS));
+
+        mScheduler.release(500);
+        assertEquals(10L, (long) mStarted.poll(STARTED_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void oversizeDecodeWaitsForRunningDecodes() throws Exception {
+        assertTrue(mScheduler.acquire(10, null));
+        startDecode(500, null);
+        assertNull(mStarted.poll(BLOCKED_MS, TimeUnit.MILLISECONDS));
+
+        mScheduler.release(10);
+        assertEquals(500L, (long) mStarted.poll(STARTED_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void canceledRequestStopsWaiting() throws Exception {
+        assertTrue(mScheduler.acquire(100, null));
+        final Request<Void> request = new TestRequest();
+        final BlockingQueue<Boolean> result = new LinkedBlockingQueue<>();
+        start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.add(mScheduler.acquire(50, request));
+                } catch (InterruptedException e) {
+                    // Torn down.
+                }
+            }
+        });
+        awaitQueueDepth(1);
+
+        request.cancel();
+        mScheduler.onRequestCanceled();
+        assertFalse(result.poll(STARTED_MS, TimeUnit.MILLISECONDS));
+        assertEquals(0, mScheduler.getQueueDepth());
+        assertEquals(100, mScheduler.getBytesInUse());
+    }
+
+    @Test
+    public void canceledHeadNoLongerReservesBudget() throws Exception {
+        assertTrue(mScheduler.acquire(60, null));
+        final Request<Void> request = new TestRequest();
+        startDecode(80, request);
+        awaitQueueDepth(1);
+        startDecode(30, null);
+        awaitQueueDepth(2);
+
+        request.cancel();
+        mScheduler.onRequestCanceled();
+        assertEquals(30L, (long) mStarted.poll(STARTED_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void tryAcquireTakesOnlyFreeBudget() throws Exception {
+        assertTrue(mScheduler.acquire(60, null));
+        assertTrue(mScheduler.tryAcquire(40));
+        assertFalse(mScheduler.tryAcquire(1));
+        assertEquals(100, mScheduler.getBytesInUse());
+
+        mScheduler.release(40);
+        assertEquals(60, mScheduler.getBytesInUse());
+    }
+
+    @Test
+    public void tryAcquireDoesNotGoAheadOfWaitingDecode() throws Exception {
+        assertTrue(mScheduler.acquire(60, null));
+        startDecode(80, null);
+        awaitQueueDepth(1);
+
+        // Fits the 40 bytes left, but the waiting decode reserved them.
+        assertFalse(mScheduler.tryAcquire(30));
+        assertEquals(1, mScheduler.getQueueDepth());
+    }
+
+    @Test
+    public void tryAcquireOfOversizeFails() {
+        assertFalse(mScheduler.tryAcquire(500));
+        assertEquals(0, mScheduler.getBytesInUse());
+    }
+
+    @Test
+    public void estimateDecodedBytes() {
+        assertEquals(400L * 300 * 4, DecodeScheduler.estimateDecodedBytes(400, 300, 4));
+        assertEquals(0, DecodeScheduler.estimateDecodedBytes(0, 300, 4));
+        assertEquals(0, DecodeScheduler.estimateDecodedBytes(-1, 300, 4));
+        // Does not overflow int.
+        assertEquals(50000L * 50000 * 4, DecodeScheduler.estimateDecodedBytes(50000, 50000, 4));
+    }
+
+    /**
+     * Acquires the cost on a new thread, and reports it to {@link #mStarted} once acquired
+     */
+    private void startDecode(final long cost, final Request<?> request) {
+        start(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mScheduler.acquire(cost, request)) {
+                        mStarted.add(cost);
+                    }
+                } catch (InterruptedException e) {
+                    // Torn down.
+                }
+            }
+        });
+    }
+
+    private void start(final Runnable runnable) {
+        final Thread thread = new Thread(runnable);
+        mThreads.add(thread);
+        thread.start();
+    }
+
+    private void awaitQueueDepth(final int depth) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + STARTED_MS;
+        while (mScheduler.getQueueDepth() != depth) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Queue depth " + mScheduler.getQueueDepth()
+                        + ", expected " + depth);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static final class TestRequest extends Request<Void> {
+
+        TestRequest() {
+            super(Method.GET, "http://localhost/", null);
+        }
+
+        @Override
+        protected Response<Void> parseNetworkResponse(final NetworkResponse response) {
+            return null;
+        }
+
+        @Override
+        protected void deliverResponse(final Void response) {
+        }
+    }
+}
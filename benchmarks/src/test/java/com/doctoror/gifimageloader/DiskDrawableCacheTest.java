@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import com.android.volley.Cache;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import pl.droidsonroids.gif.GifDrawable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskDrawableCacheTest {
+
+    private static final String URL = "http://localhost/image";
+
+    /** Offset of the bitmap config in a file without validators */
+    private static final int CONFIG_OFFSET = 36;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+
+    private DiskDrawableCache mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = mFolder.newFolder("cache");
+        mCache = new DiskDrawableCache(mDirectory, 1024 * 1024);
+    }
+
+    @Test
+    public void storedBitmapIsReadBack() {
+        mCache.putBitmap(URL, 100, 100, Bitmap.createBitmap(80, 60, Bitmap.Config.RGB_565),
+                newEntry(60000));
+
+        final Drawable drawable = mCache.get(URL, 100, 100);
+        assertTrue(drawable instanceof BitmapDrawable);
+        final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+        assertEquals(80, bitmap.getWidth());
+        assertEquals(60, bitmap.getHeight());
+        assertEquals(Bitmap.Config.RGB_565, bitmap.getConfig());
+    }
+
+    @Test
+    public void sizesAreStoredSeparately() {
+        mCache.putBitmap(URL, 100, 100, Bitmap.createBitmap(80, 60, Bitmap.Config.RGB_565),
+                newEntry(60000));
+
+        assertNull(mCache.get(URL, 200, 200));
+    }
+
+    @Test
+    public void expiredBitmapIsMissing() {
+        mCache.putBitmap(URL, 100, 100, Bitmap.createBitmap(80, 60, Bitmap.Config.RGB_565),
+                newEntry(-1));
+        assertTrue(mCache.size() > 0);
+
+        assertNull(mCache.get(URL, 100, 100));
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void storedGifIsReadBack() throws IOException {
+        mCache.putGif(URL, 0, 0, encodeGif(40, 30), newEntry(60000));
+
+        final Drawable drawable = mCache.get(URL, 0, 0);
+        assertTrue(drawable instanceof GifDrawable);
+        assertEquals(40, ((GifDrawable) drawable).getIntrinsicWidth());
+        assertEquals(30, ((GifDrawable) drawable).getIntrinsicHeight());
+    }
+
+    @Test
+    public void storedGifIsSampledForSize() throws IOException {
+        mCache.putGif(URL, 20, 15, encodeGif(40, 30), newEntry(60000));
+
+        final Drawable drawable = mCache.get(URL, 20, 15);
+        assertTrue(drawable instanceof GifDrawable);
+        assertEquals(20, ((GifDrawable) drawable).getIntrinsicWidth());
+    }
+
+    @Test
+    public void gifFileIsCopied() throws IOException {
+        final File gifFile = mFolder.newFile("spool");
+        write(gifFile, encodeGif(40, 30));
+
+        mCache.putGif(URL, 0, 0, gifFile, newEntry(60000));
+
+        assertTrue(gifFile.exists());
+        assertTrue(mCache.get(URL, 0, 0) instanceof GifDrawable);
+    }
+
+    @Test
+    public void expiredGifIsMissing() throws IOException {
+        mCache.putGif(URL, 0, 0, encodeGif(40, 30), newEntry(-1));
+
+        assertNull(mCache.get(URL, 0, 0));
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void validatorsAreReadBack() {
+        final Cache.Entry entry = newEntry(60000);
+        entry.etag = "\"v1\"";
+        entry.softTtl = System.currentTimeMillis() - 1;
+        mCache.putBitmap(URL, 0, 0, Bitmap.createBitmap(8, 8, Bitmap.Config.RGB_565), entry);
+
+        final DiskDrawableCache.Hit hit = mCache.getHit(URL, 0, 0);
+        assertTrue(hit != null && hit.mValidators != null);
+        assertTrue(hit.mValidators.isStale(System.currentTimeMillis()));
+        final Map<String, String> headers = new HashMap<>();
+        hit.mValidators.addConditionalHeaders(headers);
+        assertEquals("\"v1\"", headers.get("If-None-Match"));
+    }
+
+    @Test
+    public void imageWithoutValidatorsHasNone() {
+        mCache.putBitmap(URL, 0, 0, Bitmap.createBitmap(8, 8, Bitmap.Config.RGB_565),
+                newEntry(60000));
+
+        final DiskDrawableCache.Hit hit = mCache.getHit(URL, 0, 0);
+        assertTrue(hit != null);
+        assertNull(hit.mValidators);
+    }
+
+    @Test
+    public void refreshExtendsExpiry() throws IOException {
+        final Cache.Entry entry = newEntry(-1);
+        entry.etag = "\"v1\"";
+        mCache.putGif(URL, 0, 0, encodeGif(40, 30), entry);
+
+        mCache.refresh(URL, 0, 0, newEntry(60000));
+
+        final DiskDrawableCache.Hit hit = mCache.getHit(URL, 0, 0);
+        assertTrue(hit != null && hit.mDrawable instanceof GifDrawable);
+        assertFalse(hit.mValidators.isStale(System.currentTimeMillis()));
+    }
+
+    @Test
+    public void fileOfEarlierLayoutIsDropped() throws IOException {
+        // Earlier versions stored bare GIF data.
+        final File file = new File(mDirectory, DiskDrawableCache.getFileName(URL, 0, 0));
+        write(file, encodeGif(40, 30));
+
+        assertNull(mCache.get(URL, 0, 0));
+        assertFalse(file.exists());
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void fileWithUnknownConfigIsDropped() throws IOException {
+        mCache.putBitmap(URL, 0, 0, Bitmap.createBitmap(40, 30, Bitmap.Config.RGB_565),
+                newEntry(60000));
+        final File file = new File(mDirectory, DiskDrawableCache.getFileName(URL, 0, 0));
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(CONFIG_OFFSET);
+            raf.writeInt(100);
+        } finally {
+            raf.close();
+        }
+
+        assertNull(mCache.get(URL, 0, 0));
+        assertFalse(file.exists());
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void truncatedFileIsDropped() throws IOException {
+        mCache.putBitmap(URL, 0, 0, Bitmap.createBitmap(40, 30, Bitmap.Config.RGB_565),
+                newEntry(60000));
+        final File file = new File(mDirectory, DiskDrawableCache.getFileName(URL, 0, 0));
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(CONFIG_OFFSET + 4 + 100);
+        } finally {
+            raf.close();
+        }
+
+        assertNull(mCache.get(URL, 0, 0));
+        assertFalse(file.exists());
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsDeletedOverMaxSize() {
+        // Room for eight images with their headers.
+        final Bitmap bitmap = Bitmap.createBitmap(40, 40, Bitmap.Config.ARGB_8888);
+        final DiskDrawableCache cache = new DiskDrawableCache(mDirectory, 55000);
+        for (int i = 0; i < 8; i++) {
+            cache.putBitmap(String.valueOf(i), 0, 0, bitmap, newEntry(60000));
+        }
+        assertTrue(cache.get("0", 0, 0) != null);
+        cache.putBitmap("8", 0, 0, bitmap, newEntry(60000));
+
+        assertTrue(cache.get("0", 0, 0) != null);
+        assertNull(cache.get("1", 0, 0));
+        assertTrue(cache.get("8", 0, 0) != null);
+    }
+
+    @Test
+    public void imageTooLargeIsNotStored() {
+        final DiskDrawableCache cache = new DiskDrawableCache(mDirectory, 55000);
+        cache.putBitmap("small", 0, 0, Bitmap.createBitmap(40, 40, Bitmap.Config.ARGB_8888),
+                newEntry(60000));
+        final long size = cache.size();
+
+        cache.putBitmap(URL, 0, 0, Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888),
+                newEntry(60000));
+        cache.putGif(URL, 1, 1, new byte[8000], newEntry(60000));
+
+        assertNull(cache.get(URL, 0, 0));
+        assertNull(cache.get(URL, 1, 1));
+        assertTrue(cache.get("small", 0, 0) != null);
+        assertEquals(size, cache.size());
+        assertEquals(1, mDirectory.list().length);
+    }
+
+    @Test
+    public void imageTooLargeWithHeaderIsNotStored() {
+        // Fits alone, but not with the header.
+        final DiskDrawableCache cache = new DiskDrawableCache(mDirectory, 8 * 6400);
+        cache.putBitmap(URL, 0, 0, Bitmap.createBitmap(40, 40, Bitmap.Config.ARGB_8888),
+                newEntry(60000));
+
+        assertNull(cache.get(URL, 0, 0));
+        assertEquals(0, cache.size());
+        assertEquals(0, mDirectory.list().length);
+    }
+
+    /**
+     * Returns a cache entry that expires after the given time from now
+     */
+    @NonNull
+    static Cache.Entry newEntry(final long ttlMs) {
+        final Cache.Entry entry = new Cache.Entry();
+        entry.ttl = System.currentTimeMillis() + ttlMs;
+        entry.softTtl = entry.ttl;
+        return entry;
+    }
+
+    @NonNull
+    static byte[] encodeGif(final int width, final int height) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED), "gif",
+                out);
+        return out.toByteArray();
+    }
+
+    private static void write(@NonNull final File file, @NonNull final byte[] data)
+            throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class DrawableImageCacheTest {
+
+    /** Size of each drawable, so that the cache holds two of them */
+    private static final int SIZE = 100 * 100 * 4;
+
+    private final BitmapPool mPool = new BitmapPool(SIZE * 10);
+
+    /** Drawables the tracker reports in use */
+    private final Set<Drawable> mInUse = new HashSet<>();
+
+    private DrawableImageCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new DrawableImageCache(SIZE * 2, SIZE);
+        mCache.setBitmapPool(mPool);
+    }
+
+    @Test
+    public void evictedBitmapIsPooled() {
+        final BitmapDrawable first = newDrawable();
+        mCache.putImage("first", first);
+        mCache.putImage("second", newDrawable());
+        mCache.putImage("third", newDrawable());
+
+        assertEquals(1, mCache.imageEvictionCount());
+        assertEquals(SIZE, mPool.size());
+        assertSame(first.getBitmap(), mPool.get(100, 100, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void evictedBitmapInUseIsPooledWhenRecycled() {
+        mCache.setInUseTracker(new DrawableImageCache.InUseTracker() {
+            @Override
+            public boolean deferRecycle(@NonNull final String key,
+                    @NonNull final Drawable drawable) {
+                return mInUse.contains(drawable);
+            }
+        });
+        final BitmapDrawable shown = newDrawable();
+        mInUse.add(shown);
+        mCache.putImage("shown", shown);
+        mCache.putImage("second", newDrawable());
+        mCache.putImage("third", newDrawable());
+
+        assertEquals(1, mCache.imageEvictionCount());
+        assertEquals(0, mPool.size());
+
+        mCache.recycle(shown);
+        assertSame(shown.getBitmap(), mPool.get(100, 100, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void criticalTrimKeepsBitmapsInUseOutOfPool() {
+        mCache.setInUseTracker(new DrawableImageCache.InUseTracker() {
+            @Override
+            public boolean deferRecycle(@NonNull final String key,
+                    @NonNull final Drawable drawable) {
+                return mInUse.contains(drawable);
+            }
+        });
+        final BitmapDrawable shown = newDrawable();
+        mInUse.add(shown);
+        mCache.putImage("shown", shown);
+        mCache.putImage("hidden", newDrawable());
+
+        // Trims the least recently used drawable, the one in use.
+        mCache.setCriticalTrimFraction(0.5f);
+        mCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+
+        assertEquals(SIZE, mCache.size());
+        assertEquals(0, mPool.size());
+    }
+
+    @NonNull
+    private static BitmapDrawable newDrawable() {
+        return new BitmapDrawable(Resources.getSystem(),
+                Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import org.junit.Test;
+
+import android.support.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GifFrameScannerTest {
+
+    /** Index of the block terminator that completes the first frame of {@link #gif()} */
+    private static final int FIRST_FRAME_END = 56;
+
+    @Test
+    public void wholeGif() {
+        final byte[] gif = gif();
+        final GifFrameScanner scanner = new GifFrameScanner();
+        assertTrue(scanner.scan(gif, 0, gif.length));
+        assertFalse(scanner.isInvalid());
+        assertEquals(3, scanner.getWidth());
+        assertEquals(2, scanner.getHeight());
+    }
+
+    @Test
+    public void completesOnFirstFrameTerminator() {
+        final byte[] gif = gif();
+        assertFalse(new GifFrameScanner().scan(gif, 0, FIRST_FRAME_END));
+        assertTrue(new GifFrameScanner().scan(gif, 0, FIRST_FRAME_END + 1));
+    }
+
+    @Test
+    public void singleByteReads() {
+        final byte[] gif = gif();
+        final GifFrameScanner scanner = new GifFrameScanner();
+        for (int i = 0; i < gif.length; i++) {
+            assertEquals("At " + i, i >= FIRST_FRAME_END, scanner.scan(gif, i, 1));
+            assertFalse(scanner.isInvalid());
+        }
+        assertEquals(3, scanner.getWidth());
+        assertEquals(2, scanner.getHeight());
+    }
+
+    @Test
+    public void splitAtEveryOffset() {
+        final byte[] gif = gif();
+        for (int split = 0; split <= gif.length; split++) {
+            final GifFrameScanner scanner = new GifFrameScanner();
+            assertEquals("At " + split, split > FIRST_FRAME_END, scanner.scan(gif, 0, split));
+            assertTrue("At " + split, scanner.scan(gif, split, gif.length - split));
+        }
+    }
+
+    @Test
+    public void scansWithinOffset() {
+        final byte[] gif = gif();
+        final byte[] buffer = new byte[gif.length + 8];
+        System.arraycopy(gif, 0, buffer, 4, gif.length);
+        assertTrue(new GifFrameScanner().scan(buffer, 4, gif.length));
+    }
+
+    @Test
+    public void encodedGif() throws Exception {
+        final byte[] gif = DiskDrawableCacheTest.encodeGif(40, 30);
+        final GifFrameScanner scanner = new GifFrameScanner();
+        boolean done = false;
+        for (int i = 0; i < gif.length; i += 7) {
+            done = scanner.scan(gif, i, Math.min(7, gif.length - i));
+        }
+        assertTrue(done);
+        assertEquals(40, scanner.getWidth());
+        assertEquals(30, scanner.getHeight());
+    }
+
+    @Test
+    public void notGif() {
+        final byte[] png = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n', 0, 0, 0, 13, 'I'};
+        final GifFrameScanner scanner = new GifFrameScanner();
+        assertFalse(scanner.scan(png, 0, png.length));
+        assertTrue(scanner.isInvalid());
+    }
+
+    @Test
+    public void trailerBeforeImage() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeHeader(out);
+        out.write(0x3B);
+        final byte[] data = out.toByteArray();
+        final GifFrameScanner scanner = new GifFrameScanner();
+        assertFalse(scanner.scan(data, 0, data.length));
+        assertTrue(scanner.isInvalid());
+    }
+
+    @Test
+    public void truncatedIsNotInvalid() {
+        final byte[] gif = gif();
+        final GifFrameScanner scanner = new GifFrameScanner();
+        assertFalse(scanner.scan(gif, 0, 5));
+        assertFalse(scanner.isInvalid());
+    }
+
+    /**
+     * Returns a 3x2 GIF with a comment, a graphic control extension and two frames. The color
+     * tables and the image data hold bytes that look like block introducers and terminators.
+     */
+    @NonNull
+    private static byte[] gif() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeHeader(out);
+        // Comment extension
+        write(out, 0x21, 0xFE, 0x03, 'a', 0x2C, 'c', 0x00);
+        // Graphic control extension
+        write(out, 0x21, 0xF9, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00);
+        writeFrame(out);
+        writeFrame(out);
+        out.write(0x3B);
+        return out.toByteArray();
+    }
+
+    private static void writeHeader(@NonNull final ByteArrayOutputStream out) {
+        write(out, 'G', 'I', 'F', '8', '9', 'a', 0x03, 0x00, 0x02, 0x00);
+        // Global color table of two colors, background, aspect ratio
+        write(out, 0x80, 0x00, 0x00);
+        write(out, 0x00, 0x00, 0x00, 0x21, 0x2C, 0x3B);
+    }
+
+    private static void writeFrame(@NonNull final ByteArrayOutputStream out) {
+        // Image descriptor with a local color table of two colors
+        write(out, 0x2C, 0x00, 0x00, 0x00, 0x00, 0x03, 0x00, 0x02, 0x00, 0x80);
+        write(out, 0x3B, 0x00, 0x00, 0xFF, 0xFF, 0xFF);
+        // LZW minimum code size and two data sub-blocks
+        write(out, 0x02, 0x02, 0x00, 0x21, 0x01, 0x00, 0x00);
+    }
+
+    private static void write(@NonNull final ByteArrayOutputStream out, final int... values) {
+        for (final int value : values) {
+            out.write(value);
+        }
+    }
+}
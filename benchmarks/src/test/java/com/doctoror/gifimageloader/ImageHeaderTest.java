@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import android.support.annotation.NonNull;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ImageHeaderTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void png() throws IOException {
+        assertHeader(ImageHeader.probe(encode("png", 120, 80)), ImageHeader.Format.PNG, 120, 80);
+    }
+
+    @Test
+    public void bmp() throws IOException {
+        assertHeader(ImageHeader.probe(encode("bmp", 120, 80)), ImageHeader.Format.BMP, 120, 80);
+    }
+
+    @Test
+    public void baselineJpeg() throws IOException {
+        // Written with an APP0 segment and quantization tables before the frame.
+        assertHeader(ImageHeader.probe(encode("jpg", 120, 80)), ImageHeader.Format.JPEG, 120,
+                80);
+    }
+
+    @Test
+    public void progressiveJpegAfterSegments() {
+        final byte[] data = bytes(
+                0xFF, 0xD8,
+                // APP1 with 4 bytes of data
+                0xFF, 0xE1, 0x00, 0x06, 'E', 'x', 'i', 'f',
+                // DHT, which is in the range of frame markers but is not one
+                0xFF, 0xC4, 0x00, 0x03, 0x00,
+                // Fill bytes before the marker
+                0xFF, 0xFF,
+                // SOF2: length, precision, height 80, width 120
+                0xFF, 0xC2, 0x00, 0x11, 0x08, 0x00, 0x50, 0x00, 0x78);
+        assertHeader(ImageHeader.probe(data), ImageHeader.Format.JPEG, 120, 80);
+    }
+
+    @Test
+    public void jpegTruncatedBeforeFrame() throws IOException {
+        final byte[] jpeg = encode("jpg", 120, 80);
+        assertFalse(ImageHeader.probe(Arrays.copyOf(jpeg, 30)).hasSize());
+    }
+
+    @Test
+    public void jpegWithoutMarker() {
+        final ImageHeader header = ImageHeader.probe(bytes(0xFF, 0xD8, 0x00, 0x00, 0x00));
+        assertEquals(ImageHeader.Format.JPEG, header.getFormat());
+        assertFalse(header.hasSize());
+    }
+
+    @Test
+    public void lossyWebp() {
+        final byte[] data = webp("VP8 ", 30);
+        // Frame tag and start code, then 14 bit dimensions with 2 bit scale.
+        data[23] = (byte) 0x9D;
+        data[24] = 0x01;
+        data[25] = 0x2A;
+        putU16le(data, 26, 120 | 0x4000);
+        putU16le(data, 28, 80 | 0x8000);
+        assertHeader(ImageHeader.probe(data), ImageHeader.Format.WEBP, 120, 80);
+    }
+
+    @Test
+    public void losslessWebp() {
+        final byte[] data = webp("VP8L", 25);
+        data[20] = 0x2F;
+        // Width - 1 and height - 1 in 14 bits each.
+        final int bits = (120 - 1) | ((80 - 1) << 14);
+        data[21] = (byte) bits;
+        data[22] = (byte) (bits >> 8);
+        data[23] = (byte) (bits >> 16);
+        data[24] = (byte) (bits >> 24);
+        assertHeader(ImageHeader.probe(data), ImageHeader.Format.WEBP, 120, 80);
+    }
+
+    @Test
+    public void extendedWebp() {
+        final byte[] data = webp("VP8X", 30);
+        // Canvas width - 1 and height - 1 in 24 bits each.
+        data[24] = (byte) (5000 - 1);
+        data[25] = (byte) ((5000 - 1) >> 8);
+        data[26] = 0;
+        data[27] = (byte) (80 - 1);
+        assertHeader(ImageHeader.probe(data), ImageHeader.Format.WEBP, 5000, 80);
+    }
+
+    @Test
+    public void truncatedWebp() {
+        final ImageHeader header = ImageHeader.probe(Arrays.copyOf(webp("VP8X", 30), 26));
+        assertFalse(header.hasSize());
+    }
+
+    @Test
+    public void animatedGif() throws IOException {
+        final ImageHeader header = ImageHeader.probe(encodeGif(3));
+        assertHeader(header, ImageHeader.Format.GIF, 40, 30);
+        assertEquals(3, header.getFrameCount());
+        assertTrue(header.isAnimated());
+    }
+
+    @Test
+    public void singleFrameGifIsNotAnimated() throws IOException {
+        final ImageHeader header = ImageHeader.probe(encodeGif(1));
+        assertEquals(1, header.getFrameCount());
+        assertFalse(header.isAnimated());
+    }
+
+    @Test
+    public void truncatedGifCountsFramesSeen() throws IOException {
+        final byte[] gif = encodeGif(3);
+        // Cut within the data of the last frame.
+        final ImageHeader header = ImageHeader.probe(Arrays.copyOf(gif, gif.length - 3));
+        assertHeader(header, ImageHeader.Format.GIF, 40, 30);
+        assertEquals(3, header.getFrameCount());
+    }
+
+    @Test
+    public void gifTruncatedInScreenDescriptor() {
+        assertFalse(ImageHeader.probe(bytes('G', 'I', 'F', '8', '9', 'a', 40, 0)).hasSize());
+    }
+
+    @Test
+    public void emptyAndGarbage() {
+        assertEquals(ImageHeader.Format.UNKNOWN, ImageHeader.probe(new byte[0]).getFormat());
+        final byte[] garbage = new byte[256];
+        new Random(1).nextBytes(garbage);
+        garbage[0] = 0;
+        final ImageHeader header = ImageHeader.probe(garbage);
+        assertEquals(ImageHeader.Format.UNKNOWN, header.getFormat());
+        assertFalse(header.hasSize());
+        assertEquals(ImageHeader.SIZE_UNKNOWN, header.getWidth());
+    }
+
+    @Test
+    public void file() throws IOException {
+        final File file = mFolder.newFile();
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(encodeGif(2));
+        } finally {
+            out.close();
+        }
+        final ImageHeader header = ImageHeader.probe(file);
+        assertHeader(header, ImageHeader.Format.GIF, 40, 30);
+        assertEquals(2, header.getFrameCount());
+    }
+
+    @Test
+    public void bufferPositionIsKept() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(encode("png", 120, 80));
+        buffer.position(3);
+        assertHeader(ImageHeader.probe(buffer), ImageHeader.Format.PNG, 120, 80);
+        assertEquals(3, buffer.position());
+    }
+
+    private static void assertHeader(@NonNull final ImageHeader header,
+            @NonNull final ImageHeader.Format format, final int width, final int height) {
+        assertEquals(format, header.getFormat());
+        assertTrue(header.hasSize());
+        assertEquals(width, header.getWidth());
+        assertEquals(height, header.getHeight());
+    }
+
+    @NonNull
+    private static byte[] encode(@NonNull final String format, final int width,
+            final int height) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), format, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns a 40x30 GIF with the given number of frames
+     */
+    @NonNull
+    static byte[] encodeGif(final int frames) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+        final ImageOutputStream stream = ImageIO.createImageOutputStream(out);
+        try {
+            writer.setOutput(stream);
+            writer.prepareWriteSequence(null);
+            for (int i = 0; i < frames; i++) {
+                final BufferedImage frame =
+                        new BufferedImage(40, 30, BufferedImage.TYPE_BYTE_INDEXED);
+                frame.setRGB(i, i, 0xFFFFFF);
+                writer.writeToSequence(new IIOImage(frame, null, null), null);
+            }
+            writer.endWriteSequence();
+        } finally {
+            stream.close();
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns a RIFF WebP container of the given length with a chunk of the given type
+     */
+    @NonNull
+    private static byte[] webp(@NonNull final String chunk, final int length) {
+        final byte[] data = new byte[length];
+        put(data, 0, "RIFF");
+        put(data, 8, "WEBP");
+        put(data, 12, chunk);
+        return data;
+    }
+
+    private static void put(@NonNull final byte[] data, final int offset,
+            @NonNull final String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            data[offset + i] = (byte) ascii.charAt(i);
+        }
+    }
+
+    private static void putU16le(@NonNull final byte[] data, final int offset, final int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >> 8);
+    }
+
+    @NonNull
+    private static byte[] bytes(final int... values) {
+        final byte[] data = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            data[i] = (byte) values[i];
+        }
+        return data;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import com.android.volley.Cache;
+import com.android.volley.toolbox.DiskBasedCache;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import pl.droidsonroids.gif.GifDrawable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VolleyCacheFilesTest {
+
+    private static final String KEY = "http://example.com/a.gif";
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private DiskBasedCache mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mCache = new DiskBasedCache(mFolder.newFolder(), 1024 * 1024);
+        mCache.initialize();
+    }
+
+    @Test
+    public void opensGifAfterEntryHeader() throws IOException {
+        final Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "image/gif");
+        headers.put("Cache-Control", "max-age=60");
+        final Cache.Entry entry = newEntry(DiskDrawableCacheTest.encodeGif(40, 30), 60000L);
+        entry.etag = "\"v1\"";
+        entry.responseHeaders = headers;
+        mCache.put(KEY, entry);
+
+        final GifDrawable drawable = VolleyCacheFiles.openGif(mCache, KEY, 0, 0);
+        assertNotNull(drawable);
+        assertEquals(40, drawable.getIntrinsicWidth());
+        assertEquals(30, drawable.getIntrinsicHeight());
+    }
+
+    @Test
+    public void samplesLargeGif() throws IOException {
+        mCache.put(KEY, newEntry(DiskDrawableCacheTest.encodeGif(80, 60), 60000L));
+
+        final GifDrawable drawable = VolleyCacheFiles.openGif(mCache, KEY, 40, 30);
+        assertNotNull(drawable);
+        assertEquals(40, drawable.getIntrinsicWidth());
+    }
+
+    @Test
+    public void expiredEntryIsLeftToVolley() throws IOException {
+        mCache.put(KEY, newEntry(DiskDrawableCacheTest.encodeGif(40, 30), -1000L));
+
+        assertNull(VolleyCacheFiles.openGif(mCache, KEY, 0, 0));
+        assertTrue(mCache.getFileForKey(KEY).exists());
+    }
+
+    @Test
+    public void missingEntry() throws IOException {
+        assertNull(VolleyCacheFiles.openGif(mCache, KEY, 0, 0));
+    }
+
+    @Test
+    public void entryOfAnotherKeyIsIgnored() throws IOException {
+        // Stands for two keys whose file names collide.
+        final String other = "http://example.com/b.gif";
+        mCache.put(other, newEntry(DiskDrawableCacheTest.encodeGif(40, 30), 60000L));
+        assertTrue(mCache.getFileForKey(other).renameTo(mCache.getFileForKey(KEY)));
+
+        assertNull(VolleyCacheFiles.openGif(mCache, KEY, 0, 0));
+    }
+
+    @Test
+    public void nonGifEntryIsIgnored() throws IOException {
+        mCache.put(KEY, newEntry("<html></html>".getBytes("UTF-8"), 60000L));
+
+        assertNull(VolleyCacheFiles.openGif(mCache, KEY, 0, 0));
+    }
+
+    @Test
+    public void truncatedEntryIsIgnored() throws IOException {
+        mCache.put(KEY, newEntry(new byte[] {'G', 'I', 'F'}, 60000L));
+
+        assertNull(VolleyCacheFiles.openGif(mCache, KEY, 0, 0));
+    }
+
+    @Test
+    public void fileOfOtherFormatIsIgnored() throws IOException {
+        final File file = mCache.getFileForKey(KEY);
+        assertTrue(file.createNewFile());
+
+        assertNull(VolleyCacheFiles.openGif(mCache, KEY, 0, 0));
+    }
+
+    @Test
+    public void freshEntry() throws IOException {
+        mCache.put(KEY, newEntry(new byte[] {1, 2, 3}, 60000L));
+
+        assertTrue(VolleyCacheFiles.isFresh(mCache, KEY));
+    }
+
+    @Test
+    public void entryNeedingRefreshIsNotFresh() throws IOException {
+        final Cache.Entry entry = newEntry(new byte[] {1, 2, 3}, 60000L);
+        entry.softTtl = System.currentTimeMillis() - 1000L;
+        mCache.put(KEY, entry);
+
+        assertFalse(VolleyCacheFiles.isFresh(mCache, KEY));
+    }
+
+    @Test
+    public void expiredEntryIsNotFresh() throws IOException {
+        mCache.put(KEY, newEntry(new byte[] {1, 2, 3}, -1000L));
+
+        assertFalse(VolleyCacheFiles.isFresh(mCache, KEY));
+    }
+
+    @Test
+    public void missingOrOtherEntryIsNotFresh() throws IOException {
+        assertFalse(VolleyCacheFiles.isFresh(mCache, KEY));
+
+        final String other = "http://example.com/b.gif";
+        mCache.put(other, newEntry(new byte[] {1, 2, 3}, 60000L));
+        assertTrue(mCache.getFileForKey(other).renameTo(mCache.getFileForKey(KEY)));
+        assertFalse(VolleyCacheFiles.isFresh(mCache, KEY));
+    }
+
+    @NonNull
+    private static Cache.Entry newEntry(@NonNull final byte[] data, final long ttlMs) {
+        final Cache.Entry entry = new Cache.Entry();
+        entry.data = data;
+        entry.ttl = System.currentTimeMillis() + ttlMs;
+        entry.softTtl = entry.ttl;
+        return entry;
+    }
+}
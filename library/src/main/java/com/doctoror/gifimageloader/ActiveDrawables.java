@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+
+/**
+ * Drawables in use by views, by cache key, so that they can be found after the memory cache
+ * evicted them, and so that their bitmaps are pooled only once released. Entries are reference
+ * counted and weakly held, so a drawable that is never released does not leak. Not thread safe.
+ */
+final class ActiveDrawables {
+
+    private final HashMap<String, ActiveReference> mReferences = new HashMap<>();
+
+    private final ReferenceQueue<Drawable> mQueue = new ReferenceQueue<>();
+
+    /**
+     * Returns the active drawable for the cache key, or null if there is none
+     */
+    @Nullable
+    Drawable get(@Nullable final String cacheKey) {
+        purge();
+        final ActiveReference reference = mReferences.get(cacheKey);
+        return reference != null ? reference.get() : null;
+    }
+
+    /**
+     * Marks the drawable as in use once more
+     */
+    void acquire(@NonNull final String cacheKey, @NonNull final Drawable drawable) {
+        purge();
+        final ActiveReference reference = mReferences.get(cacheKey);
+        if (reference != null && reference.get() == drawable) {
+            reference.mCount++;
+        } else {
+            // A new decode of the same key replaces the old one.
+            mReferences.put(cacheKey, new ActiveReference(cacheKey, drawable, mQueue));
+        }
+    }
+
+    /**
+     * Marks the drawable as in use once less, removing it when no longer used
+     *
+     * @return True if the drawable is no longer used and was removed from the memory cache, so
+     * its bitmap may be recycled
+     */
+    boolean release(@NonNull final String cacheKey, @NonNull final Drawable drawable) {
+        final ActiveReference reference = mReferences.get(cacheKey);
+        if (reference != null && reference.get() == drawable && --reference.mCount == 0) {
+            mReferences.remove(cacheKey);
+            return reference.mRemoved;
+        }
+        return false;
+    }
+
+    /**
+     * Notes that the memory cache removed the drawable
+     *
+     * @return True if the drawable is in use, so its bitmap must not be recycled until released
+     */
+    boolean markRemoved(@NonNull final String cacheKey, @NonNull final Drawable drawable) {
+        purge();
+        final ActiveReference reference = mReferences.get(cacheKey);
+        if (reference != null && reference.get() == drawable) {
+            reference.mRemoved = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Notes that the drawable was put in the memory cache, which recycles it when removed again
+     */
+    void markCached(@NonNull final String cacheKey, @NonNull final Drawable drawable) {
+        final ActiveReference reference = mReferences.get(cacheKey);
+        if (reference != null && reference.get() == drawable) {
+            reference.mRemoved = false;
+        }
+    }
+
+    /**
+     * Returns the number of active drawables
+     */
+    int size() {
+        purge();
+        return mReferences.size();
+    }
+
+    /**
+     * Removes the entries of collected drawables
+     */
+    private void purge() {
+        ActiveReference reference;
+        while ((reference = (ActiveReference) mQueue.poll()) != null) {
+            if (mReferences.get(reference.mCacheKey) == reference) {
+                mReferences.remove(reference.mCacheKey);
+            }
+        }
+    }
+
+    private static final class ActiveReference extends WeakReference<Drawable> {
+
+        final String mCacheKey;
+
+        int mCount = 1;
+
+        /** True if the memory cache removed the drawable while in use */
+        boolean mRemoved;
+
+        ActiveReference(@NonNull final String cacheKey, @NonNull final Drawable drawable,
+                @NonNull final ReferenceQueue<Drawable> queue) {
+            super(drawable, queue);
+            mCacheKey = cacheKey;
+        }
+    }
+}
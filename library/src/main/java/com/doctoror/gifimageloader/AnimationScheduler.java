@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import pl.droidsonroids.gif.GifDrawable;
+
+/**
+ * Runs only the GIFs that are on screen, and caps the frame decoding work of all of them.
+ * <p>
+ * A {@link GifDrawable} animates on its own timer whether it is seen or not. Owners, such as
+ * {@link NetworkGifImageView}, report whether they show a GIF on screen. The GIFs on screen are
+ * stopped and driven from a single vsync tick instead, which advances each of them in wall-clock
+ * time and seeks it to the frame that is due. The work is the frame pixels the GIFs decode per
+ * vsync. When it exceeds the budget, each GIF gets a share of the budget in proportion to its
+ * work, and a due frame it has no share left for is skipped rather than decoded, so all of them
+ * show the same fraction of their frames at their normal timing.
+ * <p>
+ * Frames are timed at the average frame duration of the GIF. Used on the main thread only.
+ */
+public class AnimationScheduler {
+
+    /** Default frame decode budget, about 30 megapixels per second at 60 fps */
+    public static final long DEFAULT_PIXELS_PER_VSYNC = 512 * 1024;
+
+    private static final long VSYNC_INTERVAL_NS = 1000000000L / 60;
+
+    /** The GIFs on screen and their playback */
+    private final Map<GifDrawable, Playback> mOnScreen = new HashMap<>();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Ticks before Jelly Bean, where there is no Choreographer */
+    private final Runnable mTickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mTickScheduled = false;
+            onFrame(SystemClock.uptimeMillis() * 1000000L);
+        }
+    };
+
+    /** Ticks on vsync, created on first use since Jelly Bean */
+    private Choreographer.FrameCallback mFrameCallback;
+
+    private boolean mTickScheduled;
+
+    /** Time of the previous tick, or -1 if the next tick starts the timeline */
+    private long mLastFrameTimeNs = -1;
+
+    private boolean mPaused;
+
+    private long mPixelsPerVsync = DEFAULT_PIXELS_PER_VSYNC;
+
+    /** The fraction of their frames the running GIFs show, 1 if they fit the budget */
+    private double mFrameRateFactor = 1;
+
+    /** Due frames that were skipped for the budget */
+    private long mDroppedFrames;
+
+    /**
+     * Reports whether the owner shows the GIF on screen. The GIF runs while any owner shows it,
+     * and is paused when no owner shows it. An owner showing a different GIF, or going away, must
+     * report the previous GIF as not shown.
+     *
+     * @param drawable The GIF
+     * @param owner    The owner, typically a view
+     * @param onScreen True if the owner shows the GIF on screen
+     */
+    public void setOnScreen(@NonNull final GifDrawable drawable, @NonNull final Object owner,
+            final boolean onScreen) {
+        Playback playback = mOnScreen.get(drawable);
+        if (onScreen) {
+            if (playback == null) {
+                playback = new Playback(drawable);
+                mOnScreen.put(drawable, playback);
+                rebalance();
+                scheduleTick();
+            }
+            if (!playback.mOwners.contains(owner)) {
+                playback.mOwners.add(owner);
+            }
+        } else if (playback != null && playback.mOwners.remove(owner)
+                && playback.mOwners.isEmpty()) {
+            mOnScreen.remove(drawable);
+            rebalance();
+        }
+        // The scheduler advances the frames of the GIFs on screen, and off screen ones stay put.
+        if (drawable.isRunning()) {
+            drawable.stop();
+        }
+    }
+
+    /**
+     * Pauses all GIFs, for example while the activity is paused. GIFs still report whether they
+     * are on screen, and the ones on screen run again on {@link #resume()}.
+     */
+    public void pause() {
+        if (!mPaused) {
+            mPaused = true;
+            cancelTick();
+        }
+    }
+
+    /**
+     * Runs the GIFs on screen again after {@link #pause()}
+     */
+    public void resume() {
+        if (mPaused) {
+            mPaused = false;
+            scheduleTick();
+        }
+    }
+
+    /**
+     * Returns true if paused with {@link #pause()}
+     */
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * Sets the budget of frame pixels the running GIFs may decode per vsync at 60 fps. The
+     * default is {@link #DEFAULT_PIXELS_PER_VSYNC}.
+     *
+     * @param pixelsPerVsync The budget, or zero for unlimited
+     */
+    public void setFrameBudget(final long pixelsPerVsync) {
+        if (pixelsPerVsync < 0) {
+            throw new IllegalArgumentException("pixelsPerVsync < 0");
+        }
+        mPixelsPerVsync = pixelsPerVsync;
+        rebalance();
+    }
+
+    /**
+     * Returns the frame decode budget per vsync, zero for unlimited
+     */
+    public long getFrameBudget() {
+        return mPixelsPerVsync;
+    }
+
+    /**
+     * Returns the number of GIFs running
+     */
+    public int getRunningCount() {
+        return mPaused ? 0 : mOnScreen.size();
+    }
+
+    /**
+     * Returns the fraction of their frames the running GIFs show, 1 if they fit the budget
+     */
+    public float getFrameRateFactor() {
+        return (float) mFrameRateFactor;
+    }
+
+    /**
+     * Returns the number of due frames the running GIFs skipped so far to fit the budget. Frames
+     * of paused GIFs are not counted.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Advances the running GIFs to the given frame time, seeking each of them to the frame that
+     * is due if its budget share allows.
+     *
+     * @param frameTimeNs The frame time in nanoseconds, in any time base that does not change
+     */
+    void onFrame(final long frameTimeNs) {
+        if (mPaused || mOnScreen.isEmpty()) {
+            mLastFrameTimeNs = -1;
+            return;
+        }
+        final long elapsedNs = mLastFrameTimeNs == -1 ? 0 : frameTimeNs - mLastFrameTimeNs;
+        mLastFrameTimeNs = frameTimeNs;
+        for (final Playback playback : mOnScreen.values()) {
+            mDroppedFrames += playback.advance(elapsedNs, mFrameRateFactor);
+        }
+        scheduleTick();
+    }
+
+    private void scheduleTick() {
+        if (!mTickScheduled && !mPaused && !mOnScreen.isEmpty()) {
+            mTickScheduled = true;
+            postTick();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postTick() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if (mFrameCallback == null) {
+                mFrameCallback = new Choreographer.FrameCallback() {
+                    @Override
+                    public void doFrame(final long frameTimeNanos) {
+                        mTickScheduled = false;
+                        onFrame(frameTimeNanos);
+                    }
+                };
+            }
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        } else {
+            mHandler.postDelayed(mTickRunnable, VSYNC_INTERVAL_NS / 1000000L);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void cancelTick() {
+        if (mTickScheduled) {
+            mTickScheduled = false;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+            } else {
+                mHandler.removeCallbacks(mTickRunnable);
+            }
+        }
+        // Time spent paused is not played.
+        mLastFrameTimeNs = -1;
+    }
+
+    /**
+     * Sets the fraction of their frames the running GIFs show so that together they fit the
+     * budget
+     */
+    private void rebalance() {
+        double pixelsPerVsync = 0;
+        for (final Playback playback : mOnScreen.values()) {
+            pixelsPerVsync += playback.getPixelsPerVsync();
+        }
+        mFrameRateFactor = mPixelsPerVsync > 0 && pixelsPerVsync > mPixelsPerVsync
+                ? mPixelsPerVsync / pixelsPerVsync : 1;
+    }
+
+    /**
+     * The timeline of a GIF on screen and its share of the budget
+     */
+    private static final class Playback {
+
+        final GifDrawable mDrawable;
+
+        final ArrayList<Object> mOwners = new ArrayList<>(1);
+
+        final int mFrameCount;
+
+        /** Average frame duration, zero for a single frame */
+        final long mFrameDurationNs;
+
+        /** Pixels decoded per frame */
+        final long mFramePixels;
+
+        /** The frame shown, and how long it has been due */
+        int mFrame;
+        long mFrameTimeNs;
+
+        /** Pixels the GIF may decode, up to one frame */
+        double mCredit;
+
+        Playback(@NonNull final GifDrawable drawable) {
+            mDrawable = drawable;
+            final int frames = drawable.getNumberOfFrames();
+            final int duration = drawable.getDuration();
+            mFrameCount = frames;
+            mFrameDurationNs = frames > 1 && duration > 0 ? duration * 1000000L / frames : 0;
+            mFramePixels = (long) drawable.getIntrinsicWidth() * drawable.getIntrinsicHeight();
+            mFrame = Math.max(0, drawable.getCurrentFrameIndex());
+        }
+
+        double getPixelsPerVsync() {
+            return mFrameDurationNs == 0
+                    ? 0 : mFramePixels * VSYNC_INTERVAL_NS / (double) mFrameDurationNs;
+        }
+
+        /**
+         * Advances the timeline, and seeks to the frame that is due if the budget share allows
+         *
+         * @param elapsedNs       Time since the previous tick
+         * @param frameRateFactor The fraction of frames to show
+         * @return The number of due frames skipped
+         */
+        int advance(final long elapsedNs, final double frameRateFactor) {
+            if (mFrameDurationNs == 0) {
+                return 0;
+            }
+            mFrameTimeNs += elapsedNs;
+            final long due = mFrameTimeNs / mFrameDurationNs;
+            mFrameTimeNs -= due * mFrameDurationNs;
+            final boolean limited = frameRateFactor < 1;
+            if (limited) {
+                mCredit = Math.min(mFramePixels, mCredit
+                        + frameRateFactor * mFramePixels * elapsedNs / mFrameDurationNs);
+            }
+            if (due == 0) {
+                return 0;
+            }
+            mFrame = (int) ((mFrame + due) % mFrameCount);
+            if (limited && mCredit < mFramePixels) {
+                return (int) due;
+            }
+            if (limited) {
+                mCredit -= mFramePixels;
+            }
+            mDrawable.seekToFrame(mFrame);
+            return (int) (due - 1);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A pool of mutable bitmaps bucketed by config and byte size, to be reused with
+ * {@link android.graphics.BitmapFactory.Options#inBitmap}. When the pool grows beyond maxSize the
+ * oldest bitmaps are dropped.
+ *
+ * Before KitKat a bitmap can be reused only by a decode of exactly the same dimensions. Since
+ * KitKat any bitmap that is large enough can be reused, but bitmaps more than
+ * {@link #MAX_SIZE_MULTIPLE} times larger than requested are not handed out to avoid wasting
+ * memory.
+ *
+ * Bitmap reuse requires Honeycomb. On older versions the pool stays empty.
+ */
+public class BitmapPool {
+
+    /** How much larger than requested a reused bitmap may be */
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    /** Buckets of bitmaps by byte size, per config */
+    private final Map<Bitmap.Config, TreeMap<Integer, LinkedList<Bitmap>>> mBuckets =
+            new EnumMap<>(Bitmap.Config.class);
+
+    /** All pooled bitmaps, oldest first */
+    private final LinkedList<Bitmap> mOrder = new LinkedList<>();
+
+    private final int mMaxSize;
+
+    private int mSize;
+
+    private int mHitCount;
+
+    private int mMissCount;
+
+    /**
+     * Constructs a new BitmapPool.
+     *
+     * @param maxSize The maximum sum of pooled bitmap sizes in bytes
+     */
+    public BitmapPool(final int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns true if bitmaps can be reused on this platform version
+     */
+    public static boolean isReuseSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Adds a bitmap to the pool. If accepted, the caller must not use the bitmap afterwards.
+     * Recycled, immutable or config-less bitmaps are not accepted.
+     *
+     * @param bitmap The bitmap to pool
+     * @return True if the bitmap was accepted
+     */
+    public synchronized boolean put(@NonNull final Bitmap bitmap) {
+        if (!isReuseSupported() || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() == null) {
+            return false;
+        }
+        final int size = getBitmapByteCount(bitmap);
+        if (size > mMaxSize) {
+            return false;
+        }
+        TreeMap<Integer, LinkedList<Bitmap>> sizes = mBuckets.get(bitmap.getConfig());
+        if (sizes == null) {
+            sizes = new TreeMap<>();
+            mBuckets.put(bitmap.getConfig(), sizes);
+        }
+        LinkedList<Bitmap> bucket = sizes.get(size);
+        if (bucket == null) {
+            bucket = new LinkedList<>();
+            sizes.put(size, bucket);
+        }
+        bucket.add(bitmap);
+        mOrder.add(bitmap);
+        mSize += size;
+        trimToSize(mMaxSize);
+        return true;
+    }
+
+    /**
+     * Removes and returns a bitmap that can be used as inBitmap for a decode of the given
+     * dimensions and config.
+     *
+     * @param width  The decoded width
+     * @param height The decoded height
+     * @param config The decoded config
+     * @return A reusable bitmap, or null if none is pooled
+     */
+    @Nullable
+    public synchronized Bitmap get(final int width, final int height,
+            @NonNull final Bitmap.Config config) {
+        final Bitmap bitmap = findReusable(width, height, config);
+        if (bitmap == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        removeFromBucket(bitmap);
+        mOrder.remove(bitmap);
+        mSize -= getBitmapByteCount(bitmap);
+        return bitmap;
+    }
+
+    @Nullable
+    private Bitmap findReusable(final int width, final int height,
+            @NonNull final Bitmap.Config config) {
+        final TreeMap<Integer, LinkedList<Bitmap>> sizes = mBuckets.get(config);
+        if (sizes == null || width <= 0 || height <= 0) {
+            return null;
+        }
+        final int required = width * height * DecodeScheduler.getBytesPerPixel(config);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            final Map.Entry<Integer, LinkedList<Bitmap>> entry = sizes.ceilingEntry(required);
+            if (entry != null && entry.getKey() <= required * MAX_SIZE_MULTIPLE) {
+                return entry.getValue().getFirst();
+            }
+            return null;
+        }
+        final LinkedList<Bitmap> bucket = sizes.get(required);
+        if (bucket != null) {
+            for (final Bitmap bitmap : bucket) {
+                if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drops the oldest bitmaps until the pool size is at most maxSize.
+     *
+     * @param maxSize The target size in bytes
+     */
+    public synchronized void trimToSize(final int maxSize) {
+        final Iterator<Bitmap> iterator = mOrder.iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            final Bitmap bitmap = iterator.next();
+            iterator.remove();
+            removeFromBucket(bitmap);
+            mSize -= getBitmapByteCount(bitmap);
+        }
+    }
+
+    /**
+     * Drops all pooled bitmaps
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    private void removeFromBucket(@NonNull final Bitmap bitmap) {
+        final TreeMap<Integer, LinkedList<Bitmap>> sizes = mBuckets.get(bitmap.getConfig());
+        final int size = getBitmapByteCount(bitmap);
+        final LinkedList<Bitmap> bucket = sizes.get(size);
+        bucket.remove(bitmap);
+        if (bucket.isEmpty()) {
+            sizes.remove(size);
+        }
+    }
+
+    /**
+     * Returns the sum of pooled bitmap sizes in bytes
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the maximum sum of pooled bitmap sizes in bytes
+     */
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Returns the number of times {@link #get(int, int, Bitmap.Config)} returned a bitmap
+     */
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Returns the number of times {@link #get(int, int, Bitmap.Config)} returned null
+     */
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns the number of bytes the bitmap's pixels occupy
+     */
+    @SuppressLint("NewApi")
+    static int getBitmapByteCount(@NonNull final Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+            return bitmap.getByteCount();
+        } else {
+            return bitmap.getRowBytes() * bitmap.getHeight();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("BitmapPool[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                mSize, mMaxSize, mHitCount, mMissCount, hitPercent);
+    }
+}
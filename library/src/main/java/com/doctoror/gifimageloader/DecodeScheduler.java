@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import com.android.volley.Request;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.LinkedList;
+
+/**
+ * Lets image decodes run in parallel while the sum of their estimated decoded sizes fits a byte
+ * budget. A decode that would exceed the budget waits until enough running decodes finish. A
+ * decode larger than the whole budget runs alone.
+ *
+ * The oldest waiting decode reserves its share of the budget, so a stream of small decodes can not
+ * starve a large one.
+ */
+public final class DecodeScheduler {
+
+    /** Share of the max heap used as the default budget */
+    private static final int DEFAULT_BUDGET_HEAP_DIVIDER = 8;
+
+    private static final DecodeScheduler sDefault = new DecodeScheduler(
+            Runtime.getRuntime().maxMemory() / DEFAULT_BUDGET_HEAP_DIVIDER);
+
+    /** Decodes waiting for the budget, oldest first */
+    private final LinkedList<Ticket> mWaiting = new LinkedList<>();
+
+    private long mBudgetBytes;
+
+    private long mBytesInUse;
+
+    private int mAbortedCount;
+
+    /**
+     * Returns the scheduler shared by all {@link ImageRequest}s by default. Its budget is an eighth
+     * of the max heap size.
+     */
+    @NonNull
+    public static DecodeScheduler getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Constructs a new DecodeScheduler.
+     *
+     * @param budgetBytes The number of bytes concurrent decodes may use
+     */
+    public DecodeScheduler(final long budgetBytes) {
+        setBudgetBytes(budgetBytes);
+    }
+
+    /**
+     * Sets the number of bytes concurrent decodes may use.
+     *
+     * @param budgetBytes The budget in bytes
+     */
+    public synchronized void setBudgetBytes(final long budgetBytes) {
+        if (budgetBytes <= 0) {
+            throw new IllegalArgumentException("budgetBytes must be positive");
+        }
+        mBudgetBytes = budgetBytes;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of bytes concurrent decodes may use
+     */
+    public synchronized long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * Returns the estimated number of bytes used by the decodes currently running
+     */
+    public synchronized long getBytesInUse() {
+        return mBytesInUse;
+    }
+
+    /**
+     * Returns the number of decodes waiting for the budget
+     */
+    public synchronized int getQueueDepth() {
+        return mWaiting.size();
+    }
+
+    /**
+     * Returns the number of decodes abandoned because their request was canceled
+     */
+    public synchronized int getAbortedCount() {
+        return mAbortedCount;
+    }
+
+    /**
+     * Counts a decode abandoned because its request was canceled
+     */
+    synchronized void onDecodeAborted() {
+        mAbortedCount++;
+    }
+
+    /**
+     * Wakes up waiting decodes so that they notice their request was canceled
+     */
+    synchronized void onRequestCanceled() {
+        notifyAll();
+    }
+
+    /**
+     * Blocks until a decode of the given cost fits the budget and reserves it, or until the
+     * request is canceled. Every successful call must be followed by {@link #release(long)} with
+     * the same cost.
+     *
+     * @param cost    The estimated decoded size in bytes
+     * @param request The request to decode for, or null if it can not be canceled
+     * @return True if the budget was reserved, false if the request was canceled while waiting
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    synchronized boolean acquire(final long cost, @Nullable final Request<?> request)
+            throws InterruptedException {
+        final Ticket ticket = new Ticket(cost);
+        mWaiting.add(ticket);
+        try {
+            while (!canStart(ticket)) {
+                if (request != null && request.isCanceled()) {
+                    return false;
+                }
+                wait();
+            }
+        } finally {
+            mWaiting.remove(ticket);
+            // The head of the queue may have changed.
+            notifyAll();
+        }
+        mBytesInUse += cost;
+        return true;
+    }
+
+    /**
+     * Reserves the budget for a decode of the given cost if it fits right away, without waiting
+     * or going ahead of waiting decodes. A successful call must be followed by
+     * {@link #release(long)} with the same cost.
+     *
+     * @param cost The estimated decoded size in bytes
+     * @return True if the budget was reserved
+     */
+    synchronized boolean tryAcquire(final long cost) {
+        long available = mBudgetBytes - mBytesInUse;
+        if (!mWaiting.isEmpty()) {
+            available -= Math.min(mWaiting.getFirst().mCost, mBudgetBytes);
+        }
+        if (cost > available) {
+            return false;
+        }
+        mBytesInUse += cost;
+        return true;
+    }
+
+    /**
+     * Releases the budget reserved by {@link #acquire(long, Request)} or
+     * {@link #tryAcquire(long)}.
+     *
+     * @param cost The cost passed to {@link #acquire(long, Request)} or {@link #tryAcquire(long)}
+     */
+    synchronized void release(final long cost) {
+        mBytesInUse -= cost;
+        notifyAll();
+    }
+
+    private boolean canStart(@NonNull final Ticket ticket) {
+        if (mBytesInUse == 0 && mWaiting.getFirst() == ticket) {
+            // Nothing is running, so even a decode larger than the budget may go.
+            return true;
+        }
+        long available = mBudgetBytes - mBytesInUse;
+        final Ticket head = mWaiting.getFirst();
+        if (head != ticket) {
+            available -= Math.min(head.mCost, mBudgetBytes);
+        }
+        return ticket.mCost <= available;
+    }
+
+    /**
+     * Estimates the number of bytes a decoded image occupies.
+     *
+     * @param width         The decoded width
+     * @param height        The decoded height
+     * @param bytesPerPixel The number of bytes per pixel
+     * @return The estimated size in bytes
+     */
+    public static long estimateDecodedBytes(final int width, final int height,
+            final int bytesPerPixel) {
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+        return (long) width * height * bytesPerPixel;
+    }
+
+    /**
+     * Returns the number of bytes per pixel for the given config. Null means the decoder's
+     * default, which is {@link Bitmap.Config#ARGB_8888}.
+     */
+    public static int getBytesPerPixel(@Nullable final Bitmap.Config config) {
+        if (config == null) {
+            return 4;
+        }
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+
+            default:
+                return 4;
+        }
+    }
+
+    private static final class Ticket {
+
+        final long mCost;
+
+        Ticket(final long cost) {
+            mCost = cost;
+        }
+    }
+}
@@ -16,17 +16,37 @@
 
 package com.doctoror.gifimageloader;
 
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.android.volley.toolbox.HurlStack;
 import com.android.volley.toolbox.Volley;
 
 import android.content.Context;
+import android.os.Build;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.util.LruCache;
 
+import java.io.File;
+
 /**
  * The default {@link GifImageLoader} as a singleton with LruCache
  */
 public class DefaultGifImageLoader extends GifImageLoader {
 
+    /** Default on-disk cache directory, same as used by {@link Volley} */
+    private static final String VOLLEY_CACHE_DIR = "volley";
+
+    /** Directory for spooling streamed response bodies */
+    private static final String SPOOL_DIR = "gifimageloader-spool";
+
+    /** Directory for the L2 cache of downsampled images */
+    private static final String DISK_CACHE_DIR = "gifimageloader-images";
+
+    /** Max size of the L2 cache of downsampled images in bytes */
+    private static final long DISK_CACHE_SIZE = 10 * 1024 * 1024;
+
     private static final Object LOCK = new Object();
 
     private static DefaultGifImageLoader sInstance;
@@ -42,11 +62,28 @@ public class DefaultGifImageLoader extends GifImageLoader {
     @NonNull
     public static DefaultGifImageLoader getInstance(@NonNull final Context context,
             final int cacheSize) {
-        if (sInstance == null || sInstance.mCacheSize != cacheSize) {
+        return getInstance(context, cacheSize, null);
+    }
+
+    /**
+     * Returns an instance of {@link DefaultGifImageLoader} that streams images with the given
+     * transport, for example an {@link OkHttpTransport} sharing the application's client.
+     * If cacheSize or transport differs from existing instance's a new instance is returned.
+     *
+     * @param cacheSize maxSize for the LruCache in bytes
+     * @param transport The transport to stream images with, or null to buffer them with the
+     *                  stack Volley picks
+     * @return The {@link DefaultGifImageLoader} which has {@link LruCache} with maxSize equal to
+     * cacheSize
+     */
+    @NonNull
+    public static DefaultGifImageLoader getInstance(@NonNull final Context context,
+            final int cacheSize, @Nullable final HttpTransport transport) {
+        if (sInstance == null || !sInstance.matches(cacheSize, transport)) {
             synchronized (LOCK) {
-                if (sInstance == null || sInstance.mCacheSize != cacheSize) {
+                if (sInstance == null || !sInstance.matches(cacheSize, transport)) {
                     sInstance = new DefaultGifImageLoader(context.getApplicationContext(),
-                            cacheSize);
+                            cacheSize, transport);
                 }
             }
         }
@@ -55,9 +92,47 @@ public class DefaultGifImageLoader extends GifImageLoader {
 
     private final int mCacheSize;
 
-    private DefaultGifImageLoader(@NonNull final Context context, final int cacheSize) {
-        super(Volley.newRequestQueue(context), SingletonDrawableImageCache.getInstance(cacheSize));
+    private final HttpTransport mTransport;
+
+    private DefaultGifImageLoader(@NonNull final Context context, final int cacheSize,
+            @Nullable final HttpTransport transport) {
+        super(newRequestQueue(context, transport),
+                SingletonDrawableImageCache.getInstance(context, cacheSize));
         mCacheSize = cacheSize;
+        mTransport = transport;
+        setResources(context.getResources());
+        setDiskCache(new DiskDrawableCache(new File(context.getCacheDir(), DISK_CACHE_DIR),
+                DISK_CACHE_SIZE));
+        setFileBackedGifsEnabled(true);
+        setStreamingEnabled(transport != null);
+    }
+
+    private boolean matches(final int cacheSize, @Nullable final HttpTransport transport) {
+        return mCacheSize == cacheSize && mTransport == transport;
+    }
+
+    /**
+     * Creates a RequestQueue like {@link Volley#newRequestQueue(Context)} does, but with a
+     * {@link StreamingNetwork} so that streaming can be enabled with
+     * {@link #setStreamingEnabled(boolean)}.
+     *
+     * @param transport The transport to stream with, or null for a {@link HurlTransport}
+     */
+    @NonNull
+    private static RequestQueue newRequestQueue(@NonNull final Context context,
+            @Nullable final HttpTransport transport) {
+        // HttpURLConnection is unreliable before Gingerbread, so let Volley pick the stack.
+        if (transport == null && Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD) {
+            return Volley.newRequestQueue(context);
+        }
+        final File cacheDir = context.getCacheDir();
+        final RequestQueue queue = new RequestQueue(
+                new DiskBasedCache(new File(cacheDir, VOLLEY_CACHE_DIR)),
+                new StreamingNetwork(new BasicNetwork(new HurlStack()),
+                        transport != null ? transport : new HurlTransport(),
+                        new File(cacheDir, SPOOL_DIR)));
+        queue.start();
+        return queue;
     }
 
     private static final class SingletonDrawableImageCache extends DrawableImageCache {
@@ -68,18 +143,30 @@ public class DefaultGifImageLoader extends GifImageLoader {
          * Returns an instance of {@link SingletonDrawableImageCache}.
          * If cacheSize differs from existing instance's cache size new instance is returned
          *
+         * The instance is registered for memory trim callbacks.
+         *
+         * @param context   The application context
          * @param cacheSize maxSize for the LruCache in bytes
-         * @return The {@link SingletonDrawableImageCache} which maxSize is equal to cacheSize
+         * @return The {@link SingletonDrawableImageCache} which total size is equal to cacheSize
          */
-        static synchronized SingletonDrawableImageCache getInstance(final int cacheSize) {
-            if (sInstance == null || sInstance.maxSize() != cacheSize) {
+        static synchronized SingletonDrawableImageCache getInstance(
+                @NonNull final Context context, final int cacheSize) {
+            if (sInstance == null || sInstance.mCacheSize != cacheSize) {
+                if (sInstance != null) {
+                    sInstance.unregisterTrimCallbacks(context);
+                }
                 sInstance = new SingletonDrawableImageCache(cacheSize);
+                sInstance.registerTrimCallbacks(context);
             }
             return sInstance;
         }
 
+        /** The total size, split between static and animated drawables */
+        private final int mCacheSize;
+
         private SingletonDrawableImageCache(final int maxSize) {
             super(maxSize);
+            mCacheSize = maxSize;
         }
     }
 }
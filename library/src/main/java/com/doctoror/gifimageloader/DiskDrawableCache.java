@@ -0,0 +1,585 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import com.android.volley.Cache;
+import com.android.volley.VolleyLog;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import pl.droidsonroids.gif.GifDrawable;
+import pl.droidsonroids.gif.GifDrawableBuilder;
+
+/**
+ * Disk cache of images that are already downsampled to the requested size and ready to display.
+ * It is used as an L2 cache below {@link GifImageLoader.ImageCache}.
+ *
+ * Static images are stored as raw pixels, so reading them back needs no decoding or resampling.
+ * GIFs are stored as encoded GIF data, since there is no encoder to shrink them, and are opened
+ * file-backed with frames decoded at the reduced size.
+ *
+ * Each file starts with the expiry and validators of the response the image was decoded from.
+ * Expired images are treated as missing, so that a changed image is loaded again like Volley
+ * would. When the total size exceeds maxSize the least recently used files are deleted. Images
+ * larger than an eighth of maxSize are not stored.
+ */
+public class DiskDrawableCache {
+
+    /** Magic number of a cache file. Files of an earlier layout are dropped when read. */
+    private static final int MAGIC = 0x474c4332;
+
+    /** Types of cache files, following the magic number */
+    private static final int TYPE_PIXELS = 1;
+    private static final int TYPE_GIF = 2;
+
+    /** Offset of the ttl and softTtl, following the magic number and type */
+    private static final int EXPIRY_OFFSET = 8;
+
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+    /** Offset of the logical screen width and height in GIF data */
+    private static final int GIF_SCREEN_SIZE_OFFSET = 6;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Images larger than maxSize divided by this are not stored, so that a single image can not
+     * evict most of the cache
+     */
+    private static final int MAX_ENTRY_SIZE_DIVISOR = 8;
+
+    /** Size of the buffer used for copying GIF data */
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Cached file sizes by file name, least recently used first */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final File mDirectory;
+
+    private final long mMaxSize;
+
+    private long mSize;
+
+    private boolean mInitialized;
+
+    /**
+     * Constructs a new DiskDrawableCache.
+     *
+     * @param directory The directory to store images in
+     * @param maxSize   The maximum total size of stored images in bytes
+     */
+    public DiskDrawableCache(@NonNull final File directory, final long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the stored image for the url and size, or null if none is stored or it expired.
+     * Performs disk I/O, so must not be called from the main thread.
+     *
+     * @param url       The URL of the image
+     * @param maxWidth  The max-width the image was decoded for
+     * @param maxHeight The max-height the image was decoded for
+     */
+    @Nullable
+    public Drawable get(@NonNull final String url, final int maxWidth, final int maxHeight) {
+        final Hit hit = getHit(url, maxWidth, maxHeight);
+        return hit != null ? hit.mDrawable : null;
+    }
+
+    /**
+     * Like {@link #get(String, int, int)}, but also returns the validators the image was stored
+     * with
+     */
+    @Nullable
+    Hit getHit(@NonNull final String url, final int maxWidth, final int maxHeight) {
+        final String name = getFileName(url, maxWidth, maxHeight);
+        final File file = new File(mDirectory, name);
+        synchronized (this) {
+            initializeIfNeeded();
+            // Also moves the entry to the most recently used end.
+            if (mEntries.get(name) == null) {
+                return null;
+            }
+        }
+        // Keep the order across restarts, when it is restored from modification times.
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+        try {
+            final Hit hit = read(file, maxWidth, maxHeight);
+            if (hit == null) {
+                // Expired, the next decode stores it again.
+                remove(name);
+            }
+            return hit;
+        } catch (IOException | OutOfMemoryError | RuntimeException e) {
+            // A corrupt or truncated file is a miss.
+            VolleyLog.d("Dropping unreadable cached image %s: %s", file, e);
+            remove(name);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the pixels of a decoded bitmap. Performs disk I/O.
+     *
+     * @param url        The URL of the image
+     * @param maxWidth   The max-width the image was decoded for
+     * @param maxHeight  The max-height the image was decoded for
+     * @param bitmap     The decoded bitmap
+     * @param cacheEntry The cache headers of the response, for the expiry and validators
+     */
+    public void putBitmap(@NonNull final String url, final int maxWidth, final int maxHeight,
+            @NonNull final Bitmap bitmap, @NonNull final Cache.Entry cacheEntry) {
+        final Bitmap.Config config = bitmap.getConfig();
+        if (config == null || bitmap.isRecycled()) {
+            return;
+        }
+        final int pixelBytes = bitmap.getRowBytes() * bitmap.getHeight();
+        if (isTooLarge(pixelBytes)) {
+            return;
+        }
+        final String name = getFileName(url, maxWidth, maxHeight);
+        final File temp = new File(mDirectory, name + TEMP_SUFFIX);
+        try {
+            prepareWrite();
+            final RandomAccessFile out = new RandomAccessFile(temp, "rw");
+            try {
+                out.setLength(0);
+                writeHeader(out, TYPE_PIXELS, cacheEntry);
+                out.writeInt(bitmap.getWidth());
+                out.writeInt(bitmap.getHeight());
+                out.writeInt(config.ordinal());
+                final ByteBuffer pixels = out.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                        out.getFilePointer(), pixelBytes);
+                bitmap.copyPixelsToBuffer(pixels);
+            } finally {
+                out.close();
+            }
+            commit(temp, name);
+        } catch (IOException | RuntimeException e) {
+            VolleyLog.d("Failed to store image for %s: %s", url, e);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    /**
+     * Stores encoded GIF data. Performs disk I/O.
+     *
+     * @param url        The URL of the image
+     * @param maxWidth   The max-width the image was requested for
+     * @param maxHeight  The max-height the image was requested for
+     * @param data       The encoded GIF
+     * @param cacheEntry The cache headers of the response, for the expiry and validators
+     */
+    public void putGif(@NonNull final String url, final int maxWidth, final int maxHeight,
+            @NonNull final byte[] data, @NonNull final Cache.Entry cacheEntry) {
+        if (isTooLarge(data.length)) {
+            return;
+        }
+        final String name = getFileName(url, maxWidth, maxHeight);
+        final File temp = new File(mDirectory, name + TEMP_SUFFIX);
+        try {
+            prepareWrite();
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp), COPY_BUFFER_SIZE));
+            try {
+                writeHeader(out, TYPE_GIF, cacheEntry);
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            commit(temp, name);
+        } catch (IOException e) {
+            VolleyLog.d("Failed to store image for %s: %s", url, e);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    /**
+     * Stores a copy of a file containing encoded GIF data. Performs disk I/O.
+     *
+     * @param url        The URL of the image
+     * @param maxWidth   The max-width the image was requested for
+     * @param maxHeight  The max-height the image was requested for
+     * @param gifFile    The file containing the encoded GIF
+     * @param cacheEntry The cache headers of the response, for the expiry and validators
+     */
+    public void putGif(@NonNull final String url, final int maxWidth, final int maxHeight,
+            @NonNull final File gifFile, @NonNull final Cache.Entry cacheEntry) {
+        if (isTooLarge(gifFile.length())) {
+            return;
+        }
+        final String name = getFileName(url, maxWidth, maxHeight);
+        final File temp = new File(mDirectory, name + TEMP_SUFFIX);
+        try {
+            prepareWrite();
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp), COPY_BUFFER_SIZE));
+            try {
+                writeHeader(out, TYPE_GIF, cacheEntry);
+                copy(gifFile, out);
+            } finally {
+                out.close();
+            }
+            commit(temp, name);
+        } catch (IOException e) {
+            VolleyLog.d("Failed to store image for %s: %s", url, e);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    /**
+     * Updates the expiry of a stored image after it was revalidated, if it is stored. Performs
+     * disk I/O.
+     *
+     * @param url        The URL of the image
+     * @param maxWidth   The max-width the image was decoded for
+     * @param maxHeight  The max-height the image was decoded for
+     * @param cacheEntry The cache headers of the Not Modified response
+     */
+    public void refresh(@NonNull final String url, final int maxWidth, final int maxHeight,
+            @NonNull final Cache.Entry cacheEntry) {
+        final String name = getFileName(url, maxWidth, maxHeight);
+        synchronized (this) {
+            initializeIfNeeded();
+            if (!mEntries.containsKey(name)) {
+                return;
+            }
+        }
+        final File file = new File(mDirectory, name);
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() < EXPIRY_OFFSET + 16 || raf.readInt() != MAGIC) {
+                    return;
+                }
+                // The times have a fixed size, the validators are kept.
+                raf.seek(EXPIRY_OFFSET);
+                raf.writeLong(cacheEntry.ttl);
+                raf.writeLong(cacheEntry.softTtl);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Failed to refresh image for %s: %s", url, e);
+        }
+    }
+
+    /**
+     * Deletes all stored images
+     */
+    public synchronized void clear() {
+        initializeIfNeeded();
+        for (final String name : mEntries.keySet()) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(mDirectory, name).delete();
+        }
+        mEntries.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Returns the total size of stored images in bytes
+     */
+    public synchronized long size() {
+        initializeIfNeeded();
+        return mSize;
+    }
+
+    /**
+     * Returns the maximum total size of stored images in bytes
+     */
+    public long maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Writes the file header: magic, type, the expiry times of the cache entry and its ETag and
+     * Last-Modified validators, with empty strings for missing ones
+     */
+    private static void writeHeader(@NonNull final DataOutput out, final int type,
+            @NonNull final Cache.Entry cacheEntry) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(type);
+        out.writeLong(cacheEntry.ttl);
+        out.writeLong(cacheEntry.softTtl);
+        out.writeUTF(cacheEntry.etag != null ? cacheEntry.etag : "");
+        final String lastModified = getHeader(cacheEntry, HEADER_LAST_MODIFIED);
+        out.writeUTF(lastModified != null ? lastModified : "");
+    }
+
+    /**
+     * Returns the value of a response header of the cache entry ignoring case, or null
+     */
+    @Nullable
+    private static String getHeader(@NonNull final Cache.Entry cacheEntry,
+            @NonNull final String name) {
+        if (cacheEntry.responseHeaders != null) {
+            for (final Map.Entry<String, String> header : cacheEntry.responseHeaders.entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey())) {
+                    return header.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the image, or returns null if it expired
+     */
+    @Nullable
+    private static Hit read(@NonNull final File file, final int maxWidth,
+            final int maxHeight) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.readInt() != MAGIC) {
+                throw new IOException("Unknown file format");
+            }
+            final int type = raf.readInt();
+            final long ttl = raf.readLong();
+            final long softTtl = raf.readLong();
+            final String eTag = raf.readUTF();
+            final String lastModified = raf.readUTF();
+            if (ttl < System.currentTimeMillis()) {
+                return null;
+            }
+            final ImageValidators validators = ImageValidators.create(
+                    eTag.isEmpty() ? null : eTag, lastModified.isEmpty() ? null : lastModified,
+                    softTtl);
+            if (type == TYPE_GIF) {
+                // The logical screen size follows the version.
+                final long dataOffset = raf.getFilePointer();
+                raf.seek(dataOffset + GIF_SCREEN_SIZE_OFFSET);
+                final int width = raf.read() | (raf.read() << 8);
+                final int height = raf.read() | (raf.read() << 8);
+                // The decoder takes over the descriptor and reads from the data offset on demand.
+                final AssetFileDescriptor afd = new AssetFileDescriptor(
+                        ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY),
+                        dataOffset, file.length() - dataOffset);
+                final GifDrawable drawable = new GifDrawableBuilder()
+                        .sampleSize(ImageRequest.getSampleSize(maxWidth, maxHeight, width, height))
+                        .from(afd)
+                        .build();
+                FileBackedGifs.mark(drawable);
+                return new Hit(drawable, validators);
+            }
+            if (type != TYPE_PIXELS) {
+                throw new IOException("Unknown file type " + type);
+            }
+            final int width = raf.readInt();
+            final int height = raf.readInt();
+            final int ordinal = raf.readInt();
+            final Bitmap.Config[] configs = Bitmap.Config.values();
+            if (ordinal < 0 || ordinal >= configs.length) {
+                throw new IOException("Unknown bitmap config " + ordinal);
+            }
+            // Map the pixels so they are not copied through the Java heap.
+            final long pixelsOffset = raf.getFilePointer();
+            final ByteBuffer pixels = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    pixelsOffset, raf.length() - pixelsOffset);
+            final Bitmap bitmap = Bitmap.createBitmap(width, height, configs[ordinal]);
+            try {
+                bitmap.copyPixelsFromBuffer(pixels);
+            } catch (RuntimeException e) {
+                // Fewer pixels than the bitmap holds.
+                bitmap.recycle();
+                throw e;
+            }
+            return new Hit(new BitmapDrawable(Resources.getSystem(), bitmap), validators);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Creates the directory if needed. Initializes first, so that the temp file being written
+     * is not taken for one left over from an interrupted write.
+     */
+    private synchronized void prepareWrite() throws IOException {
+        initializeIfNeeded();
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create directory " + mDirectory);
+        }
+    }
+
+    /**
+     * Returns true if an image of the given size should not be stored
+     */
+    private boolean isTooLarge(final long size) {
+        return size > mMaxSize / MAX_ENTRY_SIZE_DIVISOR;
+    }
+
+    private synchronized void commit(@NonNull final File temp, @NonNull final String name)
+            throws IOException {
+        initializeIfNeeded();
+        if (isTooLarge(temp.length())) {
+            // Checked again with the header, before anything is evicted for it.
+            throw new IOException("Image too large for the cache: " + temp.length() + " bytes");
+        }
+        final File file = new File(mDirectory, name);
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+        final Long previous = mEntries.put(name, file.length());
+        if (previous != null) {
+            mSize -= previous;
+        }
+        mSize += file.length();
+        trimToSize(mMaxSize);
+    }
+
+    private synchronized void remove(@NonNull final String name) {
+        final Long size = mEntries.remove(name);
+        if (size != null) {
+            mSize -= size;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        new File(mDirectory, name).delete();
+    }
+
+    private void trimToSize(final long maxSize) {
+        final Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            //noinspection ResultOfMethodCallIgnored
+            new File(mDirectory, entry.getKey()).delete();
+            mSize -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Reads the sizes of the stored files, least recently modified first
+     */
+    private void initializeIfNeeded() {
+        if (mInitialized) {
+            return;
+        }
+        mInitialized = true;
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File lhs, final File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (final File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // Left over from an interrupted write.
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            } else {
+                mEntries.put(file.getName(), file.length());
+                mSize += file.length();
+            }
+        }
+        trimToSize(mMaxSize);
+    }
+
+    private static void copy(@NonNull final File from, @NonNull final OutputStream out)
+            throws IOException {
+        final FileInputStream in = new FileInputStream(from);
+        try {
+            final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns a file name unique for the url and size
+     */
+    @NonNull
+    static String getFileName(@NonNull final String url, final int maxWidth,
+            final int maxHeight) {
+        final String key = maxWidth + "x" + maxHeight + "#" + url;
+        final byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+        } catch (Exception e) {
+            // MD5 and UTF-8 are always available.
+            return String.valueOf(key.hashCode());
+        }
+        final char[] name = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            name[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            name[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        return new String(name);
+    }
+
+    /**
+     * A stored image with the validators it was stored with
+     */
+    static final class Hit {
+
+        @NonNull
+        final Drawable mDrawable;
+
+        /** The validators, or null if the response had none */
+        @Nullable
+        final ImageValidators mValidators;
+
+        Hit(@NonNull final Drawable drawable, @Nullable final ImageValidators validators) {
+            mDrawable = drawable;
+            mValidators = validators;
+        }
+    }
+}
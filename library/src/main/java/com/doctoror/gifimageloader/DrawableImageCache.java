@@ -1,57 +1,446 @@
 package com.doctoror.gifimageloader;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.util.LruCache;
 
 import pl.droidsonroids.gif.GifDrawable;
 
 /**
  * Default {@link LruCache} and {@link GifImageLoader.ImageCache} implementation
+ *
+ * Animated GIFs and static drawables have separate budgets with their own LRU order, so that a
+ * few large GIFs can not push out many thumbnails. The LruCache methods of this class, such as
+ * {@link #size()} and {@link #maxSize()}, work on the static drawables. The animated budget is
+ * reported by {@link #animatedSize()} and {@link #animatedMaxSize()}.
  */
 public class DrawableImageCache extends LruCache<String, Drawable> implements
         GifImageLoader.ImageCache {
 
+    /** Default fraction of maxSize to keep on critical memory pressure */
+    private static final float DEFAULT_CRITICAL_TRIM_FRACTION = 0.25f;
+
+    /** Default share of the total size given to animated GIFs */
+    private static final float DEFAULT_ANIMATED_FRACTION = 0.25f;
+
+    /** Animated GIFs, with their own budget */
+    private final LruCache<String, Drawable> mAnimatedCache;
+
+    /** Pool to hand removed bitmaps to, if any */
+    private volatile BitmapPool mBitmapPool;
+
+    /** Tells which removed drawables are still in use, if set */
+    private volatile InUseTracker mInUseTracker;
+
+    /** Fraction of maxSize to keep on critical memory pressure */
+    private volatile float mCriticalTrimFraction = DEFAULT_CRITICAL_TRIM_FRACTION;
+
+    /** Callbacks registered by {@link #registerTrimCallbacks(Context)}, if any */
+    private ComponentCallbacks mTrimCallbacks;
+
+    /** Number of trims */
+    private int mTrimCount;
+
+    /** Sum of sizes released by trims */
+    private long mTrimmedSize;
+
+    /** Level of the last trim, or -1 if there was none */
+    private int mLastTrimLevel = -1;
+
+    /** Counts of {@link #getImage(String)} and {@link #putImage(String, Drawable)} calls */
+    private int mImageHitCount;
+    private int mImageMissCount;
+    private int mImagePutCount;
+
+    /** Number and sum of sizes of drawables evicted from either budget */
+    private int mImageEvictionCount;
+    private long mEvictedSize;
+
+    /**
+     * Creates a cache that gives a quarter of maxSize to animated GIFs and the rest to static
+     * drawables.
+     *
+     * @param maxSize The total size in bytes
+     */
     public DrawableImageCache(final int maxSize) {
-        super(maxSize);
+        this(maxSize - (int) (maxSize * DEFAULT_ANIMATED_FRACTION),
+                (int) (maxSize * DEFAULT_ANIMATED_FRACTION));
+    }
+
+    /**
+     * Creates a cache with separate budgets for static drawables and animated GIFs.
+     *
+     * @param staticMaxSize   The size for static drawables in bytes
+     * @param animatedMaxSize The size for animated GIFs in bytes
+     */
+    public DrawableImageCache(final int staticMaxSize, final int animatedMaxSize) {
+        super(staticMaxSize);
+        mAnimatedCache = new LruCache<String, Drawable>(animatedMaxSize) {
+
+            @Override
+            protected void entryRemoved(final boolean evicted, final String key,
+                    final Drawable oldValue, final Drawable newValue) {
+                if (evicted) {
+                    onEvicted(oldValue);
+                }
+            }
+
+            @Override
+            protected int sizeOf(final String key, final Drawable value) {
+                return sizeOfDrawable(value);
+            }
+        };
+    }
+
+    /**
+     * Registers for memory trim callbacks of the application, so that the cache gives memory
+     * back under pressure. See {@link #trimMemory(int)}. Does nothing before Ice Cream Sandwich.
+     *
+     * @param context The context to register with. The application context is used.
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    public synchronized void registerTrimCallbacks(@NonNull final Context context) {
+        if (mTrimCallbacks == null
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            mTrimCallbacks = new TrimCallbacks();
+            context.getApplicationContext().registerComponentCallbacks(mTrimCallbacks);
+        }
+    }
+
+    /**
+     * Unregisters the callbacks registered by {@link #registerTrimCallbacks(Context)}
+     *
+     * @param context The context to unregister from. The application context is used.
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    public synchronized void unregisterTrimCallbacks(@NonNull final Context context) {
+        if (mTrimCallbacks != null) {
+            context.getApplicationContext().unregisterComponentCallbacks(mTrimCallbacks);
+            mTrimCallbacks = null;
+        }
+    }
+
+    /**
+     * Sets the fraction of maxSize to keep on critical memory pressure. 0.25 by default.
+     *
+     * @param fraction The fraction, from 0 to 1
+     */
+    public void setCriticalTrimFraction(final float fraction) {
+        if (fraction < 0f || fraction > 1f) {
+            throw new IllegalArgumentException("fraction must be from 0 to 1");
+        }
+        mCriticalTrimFraction = fraction;
+    }
+
+    /**
+     * Releases memory for the trim level passed to
+     * {@link ComponentCallbacks2#onTrimMemory(int)}:
+     * <ul>
+     * <li>When running with moderate or low memory, animated GIFs are removed first, since
+     * they cost the most per entry.</li>
+     * <li>When running with critical memory, GIFs are removed and the cache is trimmed to the
+     * critical trim fraction of maxSize.</li>
+     * <li>When the UI is hidden or the process is in the background, everything is removed.
+     * Drawables still shown by views are kept alive by the views only.</li>
+     * </ul>
+     * The bitmap pool, if any, is trimmed by the same fraction, since it would otherwise keep
+     * the released bitmaps. Bitmaps of drawables still in use reach the pool only once released.
+     *
+     * @param level The trim level
+     */
+    public void trimMemory(final int level) {
+        final int sizeBefore = size() + animatedSize();
+        final BitmapPool bitmapPool = mBitmapPool;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            mAnimatedCache.evictAll();
+            evictAll();
+            if (bitmapPool != null) {
+                bitmapPool.clear();
+            }
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mAnimatedCache.evictAll();
+            trimToSize((int) (maxSize() * mCriticalTrimFraction));
+            if (bitmapPool != null) {
+                bitmapPool.trimToSize((int) (bitmapPool.maxSize() * mCriticalTrimFraction));
+            }
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            mAnimatedCache.evictAll();
+        } else {
+            return;
+        }
+        synchronized (this) {
+            mTrimCount++;
+            mTrimmedSize += Math.max(0, sizeBefore - size() - animatedSize());
+            mLastTrimLevel = level;
+        }
+    }
+
+    /**
+     * Returns the number of times {@link #trimMemory(int)} released memory
+     */
+    public synchronized int trimCount() {
+        return mTrimCount;
+    }
+
+    /**
+     * Returns the sum of sizes released by {@link #trimMemory(int)}
+     */
+    public synchronized long trimmedSize() {
+        return mTrimmedSize;
+    }
+
+    /**
+     * Returns the level of the last trim by {@link #trimMemory(int)}, or -1 if there was none
+     */
+    public synchronized int lastTrimLevel() {
+        return mLastTrimLevel;
+    }
+
+    /**
+     * Returns the sum of the sizes of the cached animated GIFs in bytes
+     */
+    public int animatedSize() {
+        return mAnimatedCache.size();
+    }
+
+    /**
+     * Returns the size available to animated GIFs in bytes
+     */
+    public int animatedMaxSize() {
+        return mAnimatedCache.maxSize();
+    }
+
+    /**
+     * Returns the number of animated GIFs evicted to stay within the animated size
+     */
+    public int animatedEvictionCount() {
+        return mAnimatedCache.evictionCount();
+    }
+
+    /**
+     * Returns the sum of the sizes of all cached drawables in bytes
+     */
+    public int totalSize() {
+        return size() + animatedSize();
+    }
+
+    /**
+     * Returns the number of times {@link #getImage(String)} found a drawable in either budget
+     */
+    public synchronized int imageHitCount() {
+        return mImageHitCount;
+    }
+
+    /**
+     * Returns the number of times {@link #getImage(String)} found no drawable
+     */
+    public synchronized int imageMissCount() {
+        return mImageMissCount;
+    }
+
+    /**
+     * Returns the number of times {@link #putImage(String, Drawable)} was called
+     */
+    public synchronized int imagePutCount() {
+        return mImagePutCount;
+    }
+
+    /**
+     * Returns the number of drawables evicted from either budget, including trims
+     */
+    public synchronized int imageEvictionCount() {
+        return mImageEvictionCount;
+    }
+
+    /**
+     * Returns the sum of the sizes of the drawables evicted from either budget in bytes
+     */
+    public synchronized long evictedSize() {
+        return mEvictedSize;
+    }
+
+    private void onEvicted(final Drawable oldValue) {
+        final int size = sizeOfDrawable(oldValue);
+        synchronized (this) {
+            mImageEvictionCount++;
+            if (size != -1) {
+                mEvictedSize += size;
+            }
+        }
+    }
+
+    /**
+     * Sets the pool that bitmaps of removed {@link BitmapDrawable}s are handed to for reuse, since
+     * their bitmaps will be overwritten by later decodes.
+     *
+     * The {@link GifImageLoader} using this cache keeps the bitmaps of drawables still in use by
+     * an acquired {@link GifImageLoader.ImageContainer}, such as the ones shown by
+     * {@link NetworkGifImageView}, out of the pool until they are released. Drawables displayed
+     * without acquiring them must not be displayed after removal.
+     *
+     * @param bitmapPool The pool to use, or null to drop removed bitmaps
+     */
+    public void setBitmapPool(@Nullable final BitmapPool bitmapPool) {
+        mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * Sets the tracker asked whether a removed drawable is still in use before its bitmap is
+     * pooled.
+     *
+     * @param inUseTracker The tracker to use, or null to pool removed bitmaps right away
+     */
+    void setInUseTracker(@Nullable final InUseTracker inUseTracker) {
+        mInUseTracker = inUseTracker;
+    }
+
+    /**
+     * Hands the bitmap of a drawable that is neither cached nor in use to the pool, if any
+     */
+    void recycle(@NonNull final Drawable drawable) {
+        final BitmapPool bitmapPool = mBitmapPool;
+        if (bitmapPool != null && drawable instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            if (bitmap != null) {
+                bitmapPool.put(bitmap);
+            }
+        }
+    }
+
+    @Override
+    protected void entryRemoved(final boolean evicted, final String key, final Drawable oldValue,
+            final Drawable newValue) {
+        if (evicted) {
+            onEvicted(oldValue);
+        }
+        if (mBitmapPool != null && oldValue != newValue && oldValue instanceof BitmapDrawable) {
+            // A bitmap still on screen must not be decoded into.
+            final InUseTracker inUseTracker = mInUseTracker;
+            if (inUseTracker == null || !inUseTracker.deferRecycle(key, oldValue)) {
+                recycle(oldValue);
+            }
+        }
     }
 
     @Override
     public Drawable getImage(final String url) {
-        return get(url);
+        Drawable image = get(url);
+        if (image == null) {
+            image = mAnimatedCache.get(url);
+        }
+        synchronized (this) {
+            if (image != null) {
+                mImageHitCount++;
+            } else {
+                mImageMissCount++;
+            }
+        }
+        return image;
     }
 
     @Override
     public void putImage(final String url, final Drawable image) {
-        put(url, image);
+        synchronized (this) {
+            mImagePutCount++;
+        }
+        // A key lives in one budget only.
+        if (image instanceof GifDrawable) {
+            remove(url);
+            mAnimatedCache.put(url, image);
+        } else {
+            mAnimatedCache.remove(url);
+            put(url, image);
+        }
     }
 
-    @SuppressLint("NewApi")
     @Override
     protected int sizeOf(final String key, final Drawable value) {
+        final int size = sizeOfDrawable(value);
+        return size != -1 ? size : super.sizeOf(key, value);
+    }
+
+    /**
+     * Returns the memory held by the drawable in bytes, or -1 if it is not known.
+     *
+     * A bitmap counts its allocation, which may be larger than its pixels when reused. A GIF
+     * counts its frame bitmap and native decoder buffers, plus the encoded data if it is held on
+     * the heap.
+     */
+    @SuppressLint("NewApi")
+    static int sizeOfDrawable(final Drawable value) {
         if (value instanceof BitmapDrawable) {
             final Bitmap bitmap = ((BitmapDrawable) value).getBitmap();
             if (bitmap != null) {
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    return bitmap.getAllocationByteCount();
+                } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
                     return bitmap.getByteCount();
                 } else {
                     return bitmap.getRowBytes() * bitmap.getHeight();
                 }
             }
         } else if (value instanceof GifDrawable) {
+            final GifDrawable gifDrawable = (GifDrawable) value;
+            final long allocation;
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-                return (int) ((GifDrawable) value).getAllocationByteCount();
+                allocation = gifDrawable.getAllocationByteCount();
+            } else {
+                // The ARGB frame buffer, and the decoder's raster of one byte per pixel.
+                final int frameBytes = gifDrawable.getFrameByteCount();
+                allocation = frameBytes + frameBytes / 4;
             }
-            final long length = ((GifDrawable) value).getInputSourceByteCount();
-            if (length != -1) {
-                return (int) length;
+            if (FileBackedGifs.isFileBacked(gifDrawable)) {
+                // The encoded data is paged in from the file.
+                return (int) allocation;
             }
-            return (((GifDrawable) value).getFrameByteCount() * ((GifDrawable) value)
-                    .getNumberOfFrames());
+            final long length = gifDrawable.getInputSourceByteCount();
+            return (int) Math.min(Integer.MAX_VALUE, allocation + (length != -1 ? length : 0));
+        }
+        return -1;
+    }
+
+    /**
+     * Knows which drawables are in use, so that their bitmaps are pooled only once released
+     */
+    interface InUseTracker {
+
+        /**
+         * Called when a drawable was removed from the cache. If the drawable is still in use,
+         * returns true and later passes it to {@link DrawableImageCache#recycle(Drawable)} once
+         * it is released, unless it was cached again in the meantime.
+         *
+         * @param key      The key the drawable was cached with
+         * @param drawable The removed drawable
+         * @return True if the drawable is in use and must not be recycled now
+         */
+        boolean deferRecycle(@NonNull String key, @NonNull Drawable drawable);
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private final class TrimCallbacks implements ComponentCallbacks2 {
+
+        @Override
+        public void onTrimMemory(final int level) {
+            trimMemory(level);
+        }
+
+        @Override
+        public void onConfigurationChanged(final Configuration newConfig) {
+        }
+
+        @Override
+        public void onLowMemory() {
+            trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
         }
-        return super.sizeOf(key, value);
     }
-}
\ No newline at end of file
+}
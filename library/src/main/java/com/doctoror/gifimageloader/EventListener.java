@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import com.android.volley.VolleyError;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Receives the events of {@link GifImageLoader} requests, for measuring where the time goes.
+ * Override the methods of interest, the others do nothing. Durations are in nanoseconds.
+ *
+ * Methods are called on the main thread, the disk thread and Volley's threads, sometimes while
+ * the loader holds its lock. Implementations must be thread safe and fast, and must not call
+ * back into the loader.
+ *
+ * See {@link GifImageLoader#setEventListener(EventListener)}. Without a listener the events are
+ * not measured at all.
+ */
+public abstract class EventListener {
+
+    /**
+     * The image was found in memory, either in use, in the L1 cache, or derived from a larger
+     * cached size.
+     *
+     * @param url The URL of the image
+     */
+    public void cacheHit(@NonNull final String url) {
+    }
+
+    /**
+     * The image was not found in memory, and will be loaded.
+     *
+     * @param url The URL of the image
+     */
+    public void cacheMiss(@NonNull final String url) {
+    }
+
+    /**
+     * The image was already being loaded for someone else, and the request joined that one.
+     *
+     * @param url The URL of the image
+     */
+    public void requestCoalesced(@NonNull final String url) {
+    }
+
+    /**
+     * The request left the loader's queue for the L2 cache or the network.
+     *
+     * @param url         The URL of the image
+     * @param queueWaitNs The time spent waiting for a dispatch slot, including pauses
+     */
+    public void requestDispatched(@NonNull final String url, final long queueWaitNs) {
+    }
+
+    /**
+     * The image was found in the L2 cache or opened from the Volley cache file.
+     *
+     * @param url The URL of the image
+     */
+    public void diskCacheHit(@NonNull final String url) {
+    }
+
+    /**
+     * The encoded image was received. For streamed responses the time is the time spent reading
+     * the body, and for responses served from the Volley cache it is zero.
+     *
+     * @param url       The URL of the image
+     * @param networkNs The time spent on the network, including retries
+     * @param bytes     The size of the encoded image
+     */
+    public void networkEnd(@NonNull final String url, final long networkNs, final long bytes) {
+    }
+
+    /**
+     * The image was decoded.
+     *
+     * @param url          The URL of the image
+     * @param budgetWaitNs The time spent waiting for the {@link DecodeScheduler} budget
+     * @param decodeNs     The time spent decoding
+     */
+    public void decodeEnd(@NonNull final String url, final long budgetWaitNs,
+            final long decodeNs) {
+    }
+
+    /**
+     * The loaded image was delivered to the listeners.
+     *
+     * @param url             The URL of the image
+     * @param deliveryDelayNs The time from the response to its batched delivery
+     * @param totalNs         The time from the request to the delivery
+     */
+    public void responseDelivered(@NonNull final String url, final long deliveryDelayNs,
+            final long totalNs) {
+    }
+
+    /**
+     * The request was canceled because no one is interested in the image anymore.
+     *
+     * @param url The URL of the image
+     */
+    public void requestCanceled(@NonNull final String url) {
+    }
+
+    /**
+     * The request failed.
+     *
+     * @param url   The URL of the image
+     * @param error The error
+     */
+    public void requestFailed(@NonNull final String url, @NonNull final VolleyError error) {
+    }
+}
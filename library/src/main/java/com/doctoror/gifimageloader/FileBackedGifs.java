@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import android.support.annotation.NonNull;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import pl.droidsonroids.gif.GifDrawable;
+
+/**
+ * Remembers which {@link GifDrawable}s read their encoded data from a file. Their data is paged
+ * in by the OS on demand, so only the frame buffer counts against the memory cache.
+ */
+final class FileBackedGifs {
+
+    private static final Map<GifDrawable, Boolean> sFileBacked = new WeakHashMap<>();
+
+    private FileBackedGifs() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Marks the drawable as reading its data from a file
+     */
+    static void mark(@NonNull final GifDrawable drawable) {
+        synchronized (sFileBacked) {
+            sFileBacked.put(drawable, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Returns true if the drawable was marked with {@link #mark(GifDrawable)}
+     */
+    static boolean isFileBacked(@NonNull final GifDrawable drawable) {
+        synchronized (sFileBacked) {
+            return sFileBacked.containsKey(drawable);
+        }
+    }
+}
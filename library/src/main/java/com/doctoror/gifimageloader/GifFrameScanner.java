@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Scans GIF data as it arrives and tells when the first frame is complete, without buffering it.
+ */
+final class GifFrameScanner {
+
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_SKIP = 1;
+    private static final int STATE_BLOCK = 2;
+    private static final int STATE_EXTENSION_LABEL = 3;
+    private static final int STATE_IMAGE_DESCRIPTOR = 4;
+    private static final int STATE_SUB_BLOCK_SIZE = 5;
+    private static final int STATE_FIRST_FRAME_DONE = 6;
+    private static final int STATE_INVALID = 7;
+
+    /** Size of the header and the logical screen descriptor */
+    private static final int HEADER_SIZE = 13;
+
+    /** Size of the image descriptor after the separator */
+    private static final int IMAGE_DESCRIPTOR_SIZE = 9;
+
+    private final byte[] mHeader = new byte[HEADER_SIZE];
+
+    private int mState = STATE_HEADER;
+
+    /** Bytes read of the header or image descriptor */
+    private int mPosition;
+
+    /** Bytes left to skip, and the state after skipping */
+    private int mSkip;
+    private int mStateAfterSkip;
+
+    /** True while reading the data sub-blocks of an image */
+    private boolean mInImage;
+
+    /**
+     * Scans the next bytes of the data.
+     *
+     * @return True if the first frame is complete
+     */
+    boolean scan(@NonNull final byte[] buffer, final int offset, final int length) {
+        int i = offset;
+        final int end = offset + length;
+        while (i < end && mState < STATE_FIRST_FRAME_DONE) {
+            switch (mState) {
+                case STATE_HEADER:
+                    mHeader[mPosition++] = buffer[i++];
+                    if (mPosition == HEADER_SIZE) {
+                        if (mHeader[0] != 'G' || mHeader[1] != 'I' || mHeader[2] != 'F') {
+                            mState = STATE_INVALID;
+                        } else {
+                            skip(colorTableSize(mHeader[10]), STATE_BLOCK);
+                        }
+                    }
+                    break;
+
+                case STATE_SKIP:
+                    final int skipped = Math.min(mSkip, end - i);
+                    i += skipped;
+                    mSkip -= skipped;
+                    if (mSkip == 0) {
+                        mState = mStateAfterSkip;
+                    }
+                    break;
+
+                case STATE_BLOCK:
+                    final int block = buffer[i++] & 0xFF;
+                    if (block == 0x21) {
+                        mState = STATE_EXTENSION_LABEL;
+                    } else if (block == 0x2C) {
+                        mPosition = 0;
+                        mState = STATE_IMAGE_DESCRIPTOR;
+                    } else {
+                        // Trailer before any image, or corrupt data.
+                        mState = STATE_INVALID;
+                    }
+                    break;
+
+                case STATE_EXTENSION_LABEL:
+                    i++;
+                    mInImage = false;
+                    mState = STATE_SUB_BLOCK_SIZE;
+                    break;
+
+                case STATE_IMAGE_DESCRIPTOR:
+                    final byte packed = buffer[i++];
+                    if (++mPosition == IMAGE_DESCRIPTOR_SIZE) {
+                        // The local color table and the LZW minimum code size, then the data.
+                        mInImage = true;
+                        skip(colorTableSize(packed) + 1, STATE_SUB_BLOCK_SIZE);
+                    }
+                    break;
+
+                case STATE_SUB_BLOCK_SIZE:
+                    final int size = buffer[i++] & 0xFF;
+                    if (size == 0) {
+                        mState = mInImage ? STATE_FIRST_FRAME_DONE : STATE_BLOCK;
+                    } else {
+                        skip(size, STATE_SUB_BLOCK_SIZE);
+                    }
+                    break;
+            }
+        }
+        return mState == STATE_FIRST_FRAME_DONE;
+    }
+
+    /**
+     * Returns true if the data is not a GIF, or is corrupt
+     */
+    boolean isInvalid() {
+        return mState == STATE_INVALID;
+    }
+
+    /**
+     * Returns the logical screen width, valid once the first frame is complete
+     */
+    int getWidth() {
+        return (mHeader[6] & 0xFF) | ((mHeader[7] & 0xFF) << 8);
+    }
+
+    /**
+     * Returns the logical screen height, valid once the first frame is complete
+     */
+    int getHeight() {
+        return (mHeader[8] & 0xFF) | ((mHeader[9] & 0xFF) << 8);
+    }
+
+    private void skip(final int count, final int stateAfterSkip) {
+        if (count == 0) {
+            mState = stateAfterSkip;
+        } else {
+            mSkip = count;
+            mStateAfterSkip = stateAfterSkip;
+            mState = STATE_SKIP;
+        }
+    }
+
+    private static int colorTableSize(final byte packed) {
+        return (packed & 0x80) != 0 ? 3 * (1 << ((packed & 0x07) + 1)) : 0;
+    }
+}
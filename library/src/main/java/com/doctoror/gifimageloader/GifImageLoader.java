@@ -17,53 +17,260 @@
 
 package com.doctoror.gifimageloader;
 
+import com.android.volley.Cache;
 import com.android.volley.Request;
+import com.android.volley.Request.Priority;
 import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.DiskBasedCache;
 import com.android.volley.toolbox.ImageLoader;
 
+import android.annotation.TargetApi;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.view.Choreographer;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import pl.droidsonroids.gif.GifDrawable;
 
 /**
  * Like a VolleyImageLoader, but loads {@link GifDrawable} or {@link BitmapDrawable} instead of
  * {@link Bitmap}
+ *
+ * Requests with an {@link ImageListener} called on the main thread must be made from the main
+ * thread. {@link #get(String, ImageListener, int, int, Executor)} and
+ * {@link #getFuture(String, int, int)} may be used from any thread, and share the cache and the
+ * in-flight requests with the main thread requests. The ImageCache must then be thread-safe.
  */
 public class GifImageLoader {
 
+    /** Runs listener callbacks on the thread that delivers the response. */
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull final Runnable command) {
+            command.run();
+        }
+    };
+
     /** RequestQueue for dispatching ImageRequests onto. */
     private final RequestQueue mRequestQueue;
 
-    /** Amount of time to wait after first response arrives before delivering all responses. */
-    private int mBatchResponseDelayMs = 100;
+    /**
+     * Guards the request state, which may be accessed from any thread. Listeners are never called
+     * while holding it.
+     */
+    private final Object mLock = new Object();
+
+    /** Default max time to spend delivering responses in one frame. */
+    private static final int DEFAULT_FRAME_DELIVERY_BUDGET_MS = 4;
+
+    /** Amount of time to wait after first response arrives before delivering responses. */
+    private int mBatchResponseDelayMs;
+
+    /** Max time in nanoseconds to spend delivering responses in one frame. */
+    private long mFrameDeliveryBudgetNs = DEFAULT_FRAME_DELIVERY_BUDGET_MS * 1000000L;
 
     /** The cache implementation to be used as an L1 cache before calling into volley. */
     private final ImageCache mCache;
 
+    /** Images in use by views, looked up before the L1 cache. */
+    private final ActiveDrawables mActiveDrawables = new ActiveDrawables();
+
     /**
      * HashMap of Cache keys -> BatchedImageRequest used to track in-flight requests so
      * that we can coalesce multiple requests to the same URL into a single network request.
      */
     private final HashMap<String, BatchedImageRequest> mInFlightRequests = new HashMap<>();
 
-    /** HashMap of the currently pending responses (waiting to be delivered). */
-    private final HashMap<String, BatchedImageRequest> mBatchedResponses = new HashMap<>();
+    /** The currently pending responses (waiting to be delivered), in the order they arrived. */
+    private final LinkedHashMap<String, BatchedImageRequest> mBatchedResponses =
+            new LinkedHashMap<>();
+
+    /** Default max number of requests dispatched at once, matching Volley's network threads. */
+    private static final int DEFAULT_MAX_ACTIVE_REQUESTS = 4;
+
+    /**
+     * Requests waiting for dispatch, highest priority first, then in the order they were made.
+     * Volley orders its own queue only when a request is added, so requests are held here until
+     * a slot is free to let priority changes take effect.
+     */
+    private final PriorityQueue<BatchedImageRequest> mPendingRequests = new PriorityQueue<>(11,
+            new Comparator<BatchedImageRequest>() {
+                @Override
+                public int compare(final BatchedImageRequest lhs, final BatchedImageRequest rhs) {
+                    final int byPriority = rhs.mPriority.ordinal() - lhs.mPriority.ordinal();
+                    return byPriority != 0 ? byPriority : lhs.mSequence - rhs.mSequence;
+                }
+            });
+
+    /** Default max number of prefetch requests dispatched at once. */
+    private static final int DEFAULT_MAX_ACTIVE_PREFETCHES = 2;
+
+    /** Listener of prefetch containers, which have no UI to deliver to. */
+    private static final ImageListener PREFETCH_LISTENER = new ImageListener() {
+        @Override
+        public void onResponse(final ImageContainer response, final boolean isImmediate) {
+        }
+
+        @Override
+        public void onErrorResponse(final VolleyError error) {
+        }
+    };
+
+    /**
+     * Requests that only prefetches are interested in, in the order they were made. They are
+     * dispatched only when no other request is pending.
+     */
+    private final LinkedList<BatchedImageRequest> mPendingPrefetches = new LinkedList<>();
+
+    /** Containers of the prefetches that are not finished yet, by cache key. */
+    private final HashMap<String, ImageContainer> mPrefetchContainers = new HashMap<>();
+
+    /** Max number of requests dispatched at once. */
+    private int mMaxActiveRequests = DEFAULT_MAX_ACTIVE_REQUESTS;
+
+    /** Max number of prefetch requests dispatched at once. */
+    private int mMaxActivePrefetches = DEFAULT_MAX_ACTIVE_PREFETCHES;
+
+    /** Requests held back because everyone interested in them is paused. */
+    private final LinkedList<BatchedImageRequest> mHeldRequests = new LinkedList<>();
+
+    /** Tags of the paused requests. */
+    private final HashSet<Object> mPausedTags = new HashSet<>();
+
+    /** True if dispatch of all requests is paused. */
+    private boolean mPaused;
+
+    /** Number of requests dispatched and not yet finished. */
+    private int mActiveRequestCount;
+
+    /** Number of prefetch requests dispatched and not yet finished. */
+    private int mActivePrefetchCount;
+
+    /** Sequence number of the last BatchedImageRequest, to keep FIFO order within a priority. */
+    private int mRequestSequence;
+
+    /** Max number of URLs to remember cached size variants for. */
+    private static final int MAX_VARIANT_URLS = 256;
+
+    /**
+     * Sizes put in the L1 cache by URL, most recently used last, so that a request for a smaller
+     * size can be served from a larger cached variant.
+     */
+    private final LinkedHashMap<String, LinkedList<CachedVariant>> mCachedVariants =
+            new LinkedHashMap<String, LinkedList<CachedVariant>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        final Map.Entry<String, LinkedList<CachedVariant>> eldest) {
+                    return size() > MAX_VARIANT_URLS;
+                }
+            };
+
+    /** Max number of images to remember the validators of. */
+    private static final int MAX_VALIDATED_IMAGES = 512;
+
+    /**
+     * Validators of the images put in the L1 cache by cache key, most recently used last, for
+     * revalidating stale images with conditional requests.
+     */
+    private final LinkedHashMap<String, ImageValidators> mValidators =
+            new LinkedHashMap<String, ImageValidators>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        final Map.Entry<String, ImageValidators> eldest) {
+                    return size() > MAX_VALIDATED_IMAGES;
+                }
+            };
+
+    /** Runs the GIFs shown by {@link NetworkGifImageView}s of this loader */
+    private final AnimationScheduler mAnimationScheduler = new AnimationScheduler();
 
     /** Handler to the main thread. */
     private final Handler mHandler = new Handler(Looper.getMainLooper());
 
-    /** Runnable for in-flight response delivery. */
-    private Runnable mRunnable;
+    /** True while delivery of the batched responses is scheduled. */
+    private boolean mDeliveryScheduled;
+
+    /** Schedules the first delivery frame after the batch delay. */
+    private final Runnable mDelayedDeliveryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            postDeliveryFrame();
+        }
+    };
+
+    /** Delivers responses on the next loop before Jelly Bean, where there is no Choreographer. */
+    private final Runnable mDeliveryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            deliverBatchedResponses();
+        }
+    };
+
+    /** Delivers responses on the next frame, created on first use since Jelly Bean. */
+    private DeliveryFrameCallback mDeliveryFrameCallback;
+
+    /** Whether response bodies should be streamed to the decoder. */
+    private boolean mStreamingEnabled;
+
+    /** Whether first frame previews of streamed GIFs are delivered. */
+    private boolean mPreviewsEnabled;
+
+    /** Whether stale images are revalidated with conditional requests. */
+    private boolean mRevalidationEnabled;
+
+    /** Whether stale images are delivered while they are revalidated in the background. */
+    private boolean mStaleWhileRevalidate;
+
+    /** Limits the memory used by concurrent decodes. */
+    private DecodeScheduler mDecodeScheduler = DecodeScheduler.getDefault();
+
+    /** The resources decoded bitmaps take their density from. */
+    private Resources mResources = Resources.getSystem();
+
+    /** Pool of bitmaps to decode into, if any. */
+    private BitmapPool mBitmapPool;
+
+    /** The cache of downsampled images to be used as an L2 cache, if any. */
+    private DiskDrawableCache mDiskCache;
+
+    /** Whether GIFs in the Volley disk cache are opened directly from the cache files. */
+    private boolean mFileBackedGifsEnabled;
+
+    /** Executor for L2 cache lookups and writes, created on first use. */
+    private ExecutorService mDiskExecutor;
+
+    /** Executor for scaling larger variants down, created on first use. */
+    private ExecutorService mScaleExecutor;
+
+    /** Receives request events, if any. */
+    private EventListener mEventListener;
 
     /**
      * Simple cache adapter interface. If provided to the ImageLoader, it
@@ -86,6 +293,19 @@ public class GifImageLoader {
     public GifImageLoader(RequestQueue queue, ImageCache imageCache) {
         mRequestQueue = queue;
         mCache = imageCache;
+        if (imageCache instanceof DrawableImageCache) {
+            // Bitmaps still in use are pooled only once released.
+            ((DrawableImageCache) imageCache).setInUseTracker(
+                    new DrawableImageCache.InUseTracker() {
+                        @Override
+                        public boolean deferRecycle(@NonNull final String key,
+                                @NonNull final Drawable drawable) {
+                            synchronized (mLock) {
+                                return mActiveDrawables.markRemoved(key, drawable);
+                            }
+                        }
+                    });
+        }
     }
 
     /**
@@ -100,6 +320,9 @@ public class GifImageLoader {
      * - onResponse(response, false) will be called if the image was loaded.
      * or
      * - onErrorResponse will be called if there was an error loading the image.
+     *
+     * With previews enabled, onResponse(response, false) may also be called before the final
+     * response, with {@link ImageContainer#isPreview()} returning true.
      */
     public interface ImageListener extends Response.ErrorListener {
 
@@ -128,124 +351,1138 @@ public class GifImageLoader {
      * @return True if the item exists in cache, false otherwise.
      */
     public boolean isCached(String imageUrl, int maxWidth, int maxHeight) {
+        final String cacheKey = getCacheKey(imageUrl, maxWidth, maxHeight);
+        synchronized (mLock) {
+            return mActiveDrawables.get(cacheKey) != null
+                    || mCache.getImage(cacheKey) != null
+                    || getFromLargerVariant(imageUrl, maxWidth, maxHeight) != null;
+        }
+    }
+
+    /**
+     * Returns an ImageContainer for the requested URL.
+     *
+     * The ImageContainer will contain either the specified default bitmap or the loaded bitmap.
+     * If the default was returned, the {@link ImageLoader} will be invoked when the
+     * request is fulfilled.
+     *
+     * @param url The URL of the image to be loaded.
+     */
+    public ImageContainer get(String url, final ImageListener listener) {
+        return get(url, listener, 0, 0);
+    }
+
+    /**
+     * Issues a bitmap request with the given URL if that image is not available
+     * in the cache, and returns a bitmap container that contains all of the data
+     * relating to the request (as well as the default image if the requested
+     * image is not available).
+     *
+     * @param requestUrl    The url of the remote image
+     * @param imageListener The listener to call when the remote image is loaded
+     * @param maxWidth      The maximum width of the returned image.
+     * @param maxHeight     The maximum height of the returned image.
+     * @return A container object that contains all of the properties of the request, as well as
+     * the currently available image (default if remote is not loaded).
+     */
+    public ImageContainer get(String requestUrl, ImageListener imageListener,
+            int maxWidth, int maxHeight) {
+        return get(requestUrl, imageListener, maxWidth, maxHeight, Priority.LOW, null);
+    }
+
+    /**
+     * Like {@link #get(String, ImageListener, int, int)}, but with the given priority instead of
+     * {@link Priority#LOW}. Requests with a higher priority are dispatched first. The priority
+     * of a pending request can be changed with {@link ImageContainer#setPriority(Priority)}.
+     *
+     * @param requestUrl    The url of the remote image
+     * @param imageListener The listener to call when the remote image is loaded
+     * @param maxWidth      The maximum width of the returned image.
+     * @param maxHeight     The maximum height of the returned image.
+     * @param priority      The priority of the request.
+     * @return A container object that contains all of the properties of the request, as well as
+     * the currently available image (default if remote is not loaded).
+     */
+    public ImageContainer get(String requestUrl, ImageListener imageListener,
+            int maxWidth, int maxHeight, @NonNull Priority priority) {
+        return get(requestUrl, imageListener, maxWidth, maxHeight, priority, null);
+    }
+
+    /**
+     * Like {@link #get(String, ImageListener, int, int, Priority)}, but tagged so that the
+     * request can be paused with {@link #pause(Object)}.
+     *
+     * @param requestUrl    The url of the remote image
+     * @param imageListener The listener to call when the remote image is loaded
+     * @param maxWidth      The maximum width of the returned image.
+     * @param maxHeight     The maximum height of the returned image.
+     * @param priority      The priority of the request.
+     * @param tag           The tag of the request, or null for none.
+     * @return A container object that contains all of the properties of the request, as well as
+     * the currently available image (default if remote is not loaded).
+     */
+    public ImageContainer get(String requestUrl, ImageListener imageListener,
+            int maxWidth, int maxHeight, @NonNull Priority priority, @Nullable Object tag) {
+        // only fulfill requests that were initiated from the main thread.
         throwIfNotOnMainThread();
 
-        final String cacheKey = getCacheKey(imageUrl, maxWidth, maxHeight);
-        return mCache.getImage(cacheKey) != null;
+        return get(requestUrl, imageListener, maxWidth, maxHeight, priority, tag, null);
+    }
+
+    /**
+     * Like {@link #get(String, ImageListener, int, int)}, but the listener is called on the
+     * executor instead of the main thread, and responses are not batched. May be called from any
+     * thread. Use a serial executor if the immediate response must arrive before the final one.
+     *
+     * @param requestUrl    The url of the remote image
+     * @param imageListener The listener to call when the remote image is loaded
+     * @param maxWidth      The maximum width of the returned image.
+     * @param maxHeight     The maximum height of the returned image.
+     * @param executor      The executor to call the listener on.
+     * @return A container object that contains all of the properties of the request, as well as
+     * the currently available image (default if remote is not loaded).
+     */
+    public ImageContainer get(String requestUrl, ImageListener imageListener,
+            int maxWidth, int maxHeight, @NonNull Executor executor) {
+        return get(requestUrl, imageListener, maxWidth, maxHeight, Priority.LOW, null,
+                executor);
+    }
+
+    /**
+     * Loads the image like {@link #get(String, ImageListener, int, int)} and returns a Future of
+     * it. May be called from any thread, but do not block the main thread on the Future, since
+     * the response is delivered there. Canceling the Future releases interest in the request.
+     *
+     * @param requestUrl The url of the remote image
+     * @param maxWidth   The maximum width of the returned image.
+     * @param maxHeight  The maximum height of the returned image.
+     * @return The Future of the image. It fails with the VolleyError if the image can not be
+     * loaded.
+     */
+    @NonNull
+    public Future<Drawable> getFuture(String requestUrl, int maxWidth, int maxHeight) {
+        final ImageFuture future = new ImageFuture();
+        future.setContainer(get(requestUrl, future, maxWidth, maxHeight, Priority.LOW, null,
+                DIRECT_EXECUTOR));
+        return future;
+    }
+
+    /**
+     * Implementation of the get variants.
+     *
+     * @param executor The executor to call the listener on, or null to call it on the main
+     *                 thread with batched delivery
+     */
+    private ImageContainer get(String requestUrl, final ImageListener imageListener,
+            int maxWidth, int maxHeight, @NonNull Priority priority, @Nullable Object tag,
+            @Nullable Executor executor) {
+        final String cacheKey = getCacheKey(requestUrl, maxWidth, maxHeight);
+
+        final ImageContainer imageContainer;
+        Drawable staleImage = null;
+        synchronized (mLock) {
+            // Images in use may have been evicted from the cache, but are still in memory.
+            Drawable cachedImage = mActiveDrawables.get(cacheKey);
+            if (cachedImage == null) {
+                // Try to look up the request in the cache of remote images.
+                cachedImage = mCache.getImage(cacheKey);
+            }
+            if (cachedImage == null) {
+                // Try a larger size of it. One that must be scaled down is requested instead.
+                cachedImage = getFromLargerVariant(requestUrl, maxWidth, maxHeight);
+            }
+            if (cachedImage != null && isStale(cacheKey)) {
+                staleImage = cachedImage;
+                if (!mStaleWhileRevalidate) {
+                    // Wait for the revalidation, which keeps the image if it was not modified.
+                    cachedImage = null;
+                }
+            }
+            final EventListener eventListener = mEventListener;
+            if (eventListener != null && requestUrl != null) {
+                if (cachedImage != null) {
+                    eventListener.cacheHit(requestUrl);
+                } else {
+                    eventListener.cacheMiss(requestUrl);
+                }
+            }
+            if (cachedImage != null) {
+                // Return the cached bitmap.
+                imageContainer = new ImageContainer(cachedImage, requestUrl, cacheKey, null);
+            } else {
+                // The bitmap did not exist in the cache, fetch it!
+                imageContainer = new ImageContainer(null, requestUrl, cacheKey, imageListener);
+                imageContainer.mPriority = priority;
+                imageContainer.mTag = tag;
+                imageContainer.mExecutor = executor;
+            }
+        }
+
+        // Update the caller with the cached bitmap, or to let them know that they should use
+        // the default bitmap.
+        if (executor == null) {
+            imageListener.onResponse(imageContainer, true);
+        } else {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    imageListener.onResponse(imageContainer, true);
+                }
+            });
+        }
+        if (imageContainer.mImage != null) {
+            if (staleImage != null) {
+                synchronized (mLock) {
+                    revalidateInBackground(requestUrl, maxWidth, maxHeight, cacheKey,
+                            staleImage);
+                }
+            }
+            return imageContainer;
+        }
+
+        synchronized (mLock) {
+            // Check to see if a request is already in-flight.
+            final BatchedImageRequest request = mInFlightRequests.get(cacheKey);
+            if (request != null) {
+                // If it is, add this request to the list of listeners.
+                request.addContainer(imageContainer);
+                if (mEventListener != null) {
+                    mEventListener.requestCoalesced(requestUrl);
+                }
+            } else {
+                // The request is not already in flight. Queue the new request for dispatch and
+                // track it.
+                startRequest(imageContainer, requestUrl, maxWidth, maxHeight, cacheKey,
+                        staleImage);
+            }
+        }
+        return imageContainer;
+    }
+
+    /**
+     * Loads the images into the L1 cache without delivering them anywhere, so that a later
+     * {@link #get(String, ImageListener, int, int)} for the same size is served immediately.
+     * Prefetches are dispatched after all other pending requests, and at most
+     * {@link #setMaxActivePrefetches(int)} of them at once. A prefetch of an image that is already
+     * being loaded joins that request. May be called from any thread.
+     *
+     * @param requestUrls The urls of the remote images
+     * @param maxWidth    The maximum width of the images.
+     * @param maxHeight   The maximum height of the images.
+     */
+    public void prefetch(@NonNull final Collection<String> requestUrls, final int maxWidth,
+            final int maxHeight) {
+        synchronized (mLock) {
+            for (final String requestUrl : requestUrls) {
+                final String cacheKey = getCacheKey(requestUrl, maxWidth, maxHeight);
+                if (cacheKey == null || mPrefetchContainers.containsKey(cacheKey)
+                        || isCached(requestUrl, maxWidth, maxHeight)) {
+                    continue;
+                }
+                final ImageContainer container =
+                        new ImageContainer(null, requestUrl, cacheKey, PREFETCH_LISTENER);
+                container.mPriority = Priority.LOW;
+                container.mPrefetch = true;
+                mPrefetchContainers.put(cacheKey, container);
+
+                final BatchedImageRequest request = mInFlightRequests.get(cacheKey);
+                if (request != null) {
+                    request.addContainer(container);
+                } else {
+                    startRequest(container, requestUrl, maxWidth, maxHeight, cacheKey, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels prefetches of the images made with
+     * {@link #prefetch(Collection, int, int)}. Requests that views are interested in are not
+     * canceled. May be called from any thread.
+     *
+     * @param requestUrls The urls of the remote images
+     * @param maxWidth    The maximum width the images were prefetched for.
+     * @param maxHeight   The maximum height the images were prefetched for.
+     */
+    public void cancelPrefetch(@NonNull final Collection<String> requestUrls, final int maxWidth,
+            final int maxHeight) {
+        synchronized (mLock) {
+            for (final String requestUrl : requestUrls) {
+                final ImageContainer container = mPrefetchContainers.remove(
+                        getCacheKey(requestUrl, maxWidth, maxHeight));
+                if (container != null) {
+                    container.cancelRequest();
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels all prefetches. Requests that views are interested in are not canceled. May be
+     * called from any thread.
+     */
+    public void cancelPrefetch() {
+        synchronized (mLock) {
+            final Collection<ImageContainer> containers =
+                    new ArrayList<>(mPrefetchContainers.values());
+            mPrefetchContainers.clear();
+            for (final ImageContainer container : containers) {
+                container.cancelRequest();
+            }
+        }
+    }
+
+    /**
+     * Sets the max number of prefetch requests dispatched at once. They also count against
+     * {@link #setMaxActiveRequests(int)}.
+     *
+     * @param maxActivePrefetches The max number of active prefetches, must be positive
+     */
+    public void setMaxActivePrefetches(final int maxActivePrefetches) {
+        if (maxActivePrefetches <= 0) {
+            throw new IllegalArgumentException("maxActivePrefetches <= 0");
+        }
+        synchronized (mLock) {
+            mMaxActivePrefetches = maxActivePrefetches;
+            dispatchPendingRequests();
+        }
+    }
+
+    /**
+     * Pauses dispatch of all requests. New requests are held until {@link #resume()}, while
+     * images in the L1 cache are still delivered immediately. Requests already dispatched are
+     * not affected.
+     */
+    public void pause() {
+        synchronized (mLock) {
+            mPaused = true;
+        }
+    }
+
+    /**
+     * Pauses dispatch of requests made with the tag, like {@link #pause()}. A request is held
+     * only if everyone interested in it is paused.
+     *
+     * @param tag The tag to pause
+     */
+    public void pause(@NonNull final Object tag) {
+        synchronized (mLock) {
+            mPausedTags.add(tag);
+        }
+    }
+
+    /**
+     * Resumes dispatch paused by {@link #pause()}. Held requests that were canceled in the
+     * meantime were already dropped.
+     */
+    public void resume() {
+        synchronized (mLock) {
+            if (mPaused) {
+                mPaused = false;
+                releaseHeldRequests();
+            }
+        }
+    }
+
+    /**
+     * Resumes dispatch of requests paused by {@link #pause(Object)}.
+     *
+     * @param tag The tag to resume
+     */
+    public void resume(@NonNull final Object tag) {
+        synchronized (mLock) {
+            if (mPausedTags.remove(tag)) {
+                releaseHeldRequests();
+            }
+        }
+    }
+
+    /**
+     * Returns true if dispatch is paused for all requests
+     */
+    public boolean isPaused() {
+        synchronized (mLock) {
+            return mPaused;
+        }
+    }
+
+    /**
+     * Returns the scheduler of the GIFs shown by {@link NetworkGifImageView}s of this loader. Use
+     * it on the main thread, for example to pause the GIFs while the activity is paused.
+     */
+    @NonNull
+    public AnimationScheduler getAnimationScheduler() {
+        return mAnimationScheduler;
+    }
+
+    /**
+     * Returns true if the request should be held back instead of dispatched
+     */
+    private boolean isHeld(@NonNull final BatchedImageRequest request) {
+        if (mPaused) {
+            return true;
+        }
+        if (mPausedTags.isEmpty()) {
+            return false;
+        }
+        for (final ImageContainer container : request.mContainers) {
+            if (container.mTag == null || !mPausedTags.contains(container.mTag)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Puts the held requests back in the pending requests. The ones still paused are held again
+     * on dispatch.
+     */
+    private void releaseHeldRequests() {
+        for (final BatchedImageRequest request : mHeldRequests) {
+            request.mHeld = false;
+            queueRequest(request);
+        }
+        mHeldRequests.clear();
+        dispatchPendingRequests();
+    }
+
+    /**
+     * Returns true if the image cached under the key has validators that say it is stale, and
+     * revalidation is enabled
+     */
+    private boolean isStale(final String cacheKey) {
+        if (!mRevalidationEnabled) {
+            return false;
+        }
+        final ImageValidators validators = mValidators.get(cacheKey);
+        return validators != null && validators.isStale(System.currentTimeMillis());
+    }
+
+    /**
+     * Revalidates a stale image that was delivered anyway, with a low priority request that has
+     * no listeners, like a prefetch. Does nothing if the image is already being loaded.
+     */
+    private void revalidateInBackground(final String requestUrl, final int maxWidth,
+            final int maxHeight, final String cacheKey, @NonNull final Drawable staleImage) {
+        if (mInFlightRequests.containsKey(cacheKey)
+                || mPrefetchContainers.containsKey(cacheKey)) {
+            return;
+        }
+        final ImageContainer container =
+                new ImageContainer(null, requestUrl, cacheKey, PREFETCH_LISTENER);
+        container.mPriority = Priority.LOW;
+        container.mPrefetch = true;
+        mPrefetchContainers.put(cacheKey, container);
+        startRequest(container, requestUrl, maxWidth, maxHeight, cacheKey, staleImage);
+    }
+
+    /**
+     * Creates and queues a request for the first container interested in an image
+     *
+     * @param staleImage The cached image to revalidate with a conditional request, if any
+     */
+    private void startRequest(@NonNull final ImageContainer container, final String requestUrl,
+            final int maxWidth, final int maxHeight, final String cacheKey,
+            @Nullable final Drawable staleImage) {
+        final Request<Drawable> newRequest =
+                makeImageRequest(requestUrl, maxWidth, maxHeight, cacheKey);
+        final ImageValidators validators = staleImage != null ? mValidators.get(cacheKey) : null;
+        if (validators != null && newRequest instanceof ImageRequest) {
+            ((ImageRequest) newRequest).setRevalidation(validators, staleImage);
+        }
+
+        final BatchedImageRequest request = new BatchedImageRequest(newRequest, container,
+                cacheKey, maxWidth, maxHeight);
+        if (staleImage == null && newRequest instanceof ImageRequest) {
+            // Scale a larger variant down instead of loading the image again. It is kept in use,
+            // so that its bitmap is not pooled while being read.
+            final CachedVariant variant = findLargerVariant(requestUrl, maxWidth, maxHeight);
+            final Drawable source = variant != null ? getVariantImage(variant) : null;
+            if (needsScaling(source, maxWidth, maxHeight)) {
+                mActiveDrawables.acquire(variant.mCacheKey, source);
+                request.mScaleSourceKey = variant.mCacheKey;
+                request.mScaleSource = (BitmapDrawable) source;
+            }
+        }
+        mInFlightRequests.put(cacheKey, request);
+        queueRequest(request);
+        dispatchPendingRequests();
+        if (!request.mDispatched && !request.mPrefetch) {
+            probeVolleyCache(request);
+        }
+    }
+
+    private void queueRequest(@NonNull final BatchedImageRequest request) {
+        if (request.mPrefetch) {
+            mPendingPrefetches.add(request);
+        } else {
+            mPendingRequests.add(request);
+        }
+    }
+
+    private boolean unqueueRequest(@NonNull final BatchedImageRequest request) {
+        if (request.mHeld) {
+            request.mHeld = false;
+            return mHeldRequests.remove(request);
+        }
+        return request.mPrefetch
+                ? mPendingPrefetches.remove(request) : mPendingRequests.remove(request);
+    }
+
+    /**
+     * Dispatches pending requests in priority order while fewer than the max number of requests
+     * are active. Prefetches go last, and only while fewer than the max number of prefetches are
+     * active.
+     */
+    private void dispatchPendingRequests() {
+        if (mPaused) {
+            return;
+        }
+        while (mActiveRequestCount < mMaxActiveRequests) {
+            final BatchedImageRequest request;
+            if (!mPendingRequests.isEmpty()) {
+                request = mPendingRequests.poll();
+            } else if (!mPendingPrefetches.isEmpty()
+                    && mActivePrefetchCount < mMaxActivePrefetches) {
+                request = mPendingPrefetches.poll();
+            } else {
+                break;
+            }
+            if (request.mRequest.isCanceled()) {
+                // Canceled while waiting, drop it before it reaches Volley.
+                releaseScaleSource(request);
+                continue;
+            }
+            if (isHeld(request)) {
+                request.mHeld = true;
+                mHeldRequests.add(request);
+                continue;
+            }
+            if (request.mPrefetch) {
+                request.mCountedAsPrefetch = true;
+                mActivePrefetchCount++;
+            }
+            mActiveRequestCount++;
+            dispatch(request);
+        }
+    }
+
+    /**
+     * Marks a request dispatched and sends it to the scaler, or the L2 cache and Volley. Called
+     * with mLock held.
+     */
+    private void dispatch(@NonNull final BatchedImageRequest request) {
+        request.mDispatched = true;
+        if (mEventListener != null) {
+            mEventListener.requestDispatched(request.mRequestUrl,
+                    System.nanoTime() - request.mStartNs);
+        }
+        if (request.mScaleSource != null) {
+            dispatchScale(request);
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        final Request<Drawable> imageRequest = (Request<Drawable>) request.mRequest;
+        dispatchRequest(imageRequest, request.mRequestUrl, request.mMaxWidth,
+                request.mMaxHeight, request.mCacheKey);
+    }
+
+    /**
+     * Checks on the disk executor whether Volley serves a pending request from its disk cache
+     * without a network request, and if so dispatches it without waiting for a slot, since it
+     * takes none of the network work the max number of active requests is for. Called with
+     * mLock held.
+     */
+    private void probeVolleyCache(@NonNull final BatchedImageRequest request) {
+        final Cache cache = mRequestQueue.getCache();
+        final Request<?> volleyRequest = request.mRequest;
+        if (request.mScaleSource != null || !(cache instanceof DiskBasedCache)
+                || !volleyRequest.shouldCache() || (volleyRequest instanceof ImageRequest
+                && ((ImageRequest) volleyRequest).isRevalidation())) {
+            return;
+        }
+        final DiskBasedCache volleyCache = (DiskBasedCache) cache;
+        getDiskExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (volleyRequest.isCanceled() || !VolleyCacheFiles.isFresh(volleyCache,
+                        volleyRequest.getCacheKey())) {
+                    return;
+                }
+                synchronized (mLock) {
+                    // It may have been dispatched, canceled or paused in the meantime.
+                    if (mPaused || request.mDispatched || request.mPrefetch
+                            || volleyRequest.isCanceled() || isHeld(request)
+                            || !mPendingRequests.remove(request)) {
+                        return;
+                    }
+                    request.mBypassedCap = true;
+                    dispatch(request);
+                }
+            }
+        });
+    }
+
+    /**
+     * Frees the slot of a request that finished or was canceled, or removes it from the pending
+     * requests if it was not dispatched yet, and dispatches the next ones.
+     */
+    private void onRequestFinished(@NonNull final BatchedImageRequest request) {
+        if (request.mDispatched) {
+            request.mDispatched = false;
+            if (request.mBypassedCap) {
+                request.mBypassedCap = false;
+            } else {
+                mActiveRequestCount--;
+            }
+            if (request.mCountedAsPrefetch) {
+                request.mCountedAsPrefetch = false;
+                mActivePrefetchCount--;
+            }
+        } else {
+            unqueueRequest(request);
+            releaseScaleSource(request);
+        }
+        dispatchPendingRequests();
+    }
+
+    /**
+     * Sets the max number of requests dispatched to the L2 cache and Volley at once. The rest
+     * wait in priority order, so that requests made or raised later can overtake them. The
+     * default matches the number of Volley network threads. Requests that Volley serves from its
+     * disk cache without a network request do not wait for a slot.
+     *
+     * @param maxActiveRequests The max number of active requests, must be positive
+     */
+    public void setMaxActiveRequests(final int maxActiveRequests) {
+        if (maxActiveRequests <= 0) {
+            throw new IllegalArgumentException("maxActiveRequests <= 0");
+        }
+        synchronized (mLock) {
+            mMaxActiveRequests = maxActiveRequests;
+            dispatchPendingRequests();
+        }
+    }
+
+    /**
+     * Looks the image up in the L2 cache, if any, then for a file-backed GIF in the Volley cache
+     * if enabled, and sends the request to the network only if it is not found there.
+     */
+    private void dispatchRequest(final Request<Drawable> request, final String requestUrl,
+            final int maxWidth, final int maxHeight, final String cacheKey) {
+        // A revalidation must reach the server, the L2 cache has the same stale image.
+        final DiskDrawableCache diskCache = request instanceof ImageRequest
+                && ((ImageRequest) request).isRevalidation() ? null : mDiskCache;
+        final DiskBasedCache volleyCache = mFileBackedGifsEnabled
+                && mRequestQueue.getCache() instanceof DiskBasedCache
+                && request.shouldCache() ? (DiskBasedCache) mRequestQueue.getCache() : null;
+        if (diskCache == null && volleyCache == null) {
+            mRequestQueue.add(request);
+            return;
+        }
+        getDiskExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (request.isCanceled()) {
+                    return;
+                }
+                Drawable found = null;
+                ImageValidators foundValidators = null;
+                if (diskCache != null) {
+                    final DiskDrawableCache.Hit hit =
+                            diskCache.getHit(requestUrl, maxWidth, maxHeight);
+                    if (hit != null) {
+                        found = hit.mDrawable;
+                        foundValidators = hit.mValidators;
+                    }
+                }
+                if (found == null && volleyCache != null) {
+                    found = openCachedGif(volleyCache, request, maxWidth, maxHeight);
+                }
+                final Drawable image = found;
+                final ImageValidators validators = foundValidators;
+                if (image == null) {
+                    mRequestQueue.add(request);
+                    return;
+                }
+                final EventListener eventListener = mEventListener;
+                if (eventListener != null) {
+                    eventListener.diskCacheHit(requestUrl);
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!request.isCanceled()) {
+                            if (diskCache != null) {
+                                rememberValidators(cacheKey, validators);
+                            }
+                            onGetImageSuccess(cacheKey, image);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Remembers the validators of an image put in the L1 cache, if revalidation is enabled
+     *
+     * @param validators The validators, or null if the image has none
+     */
+    private void rememberValidators(final String cacheKey,
+            @Nullable final ImageValidators validators) {
+        synchronized (mLock) {
+            if (!mRevalidationEnabled) {
+                return;
+            }
+            if (validators != null) {
+                mValidators.put(cacheKey, validators);
+            } else {
+                mValidators.remove(cacheKey);
+            }
+        }
+    }
+
+    /**
+     * Opens a GIF stored in the Volley disk cache from the cache file, so that its encoded data
+     * is not read into the heap. Static images are left to Volley.
+     */
+    @Nullable
+    private static Drawable openCachedGif(@NonNull final DiskBasedCache volleyCache,
+            @NonNull final Request<Drawable> request, final int maxWidth, final int maxHeight) {
+        try {
+            return VolleyCacheFiles.openGif(volleyCache, request.getCacheKey(), maxWidth,
+                    maxHeight);
+        } catch (IOException e) {
+            VolleyLog.d("Failed to open cached GIF: %s", e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Scales the larger variant of a request down on the scale executor, within the decode
+     * budget. If that fails, the image is loaded like any other. Called with mLock held.
+     */
+    private void dispatchScale(@NonNull final BatchedImageRequest request) {
+        final ImageRequest imageRequest = (ImageRequest) request.mRequest;
+        final Bitmap source = request.mScaleSource.getBitmap();
+        getScaleExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final Response<Drawable> response = imageRequest.scaleDown(source);
+                synchronized (mLock) {
+                    releaseScaleSource(request);
+                    if (!response.isSuccess()) {
+                        if (!imageRequest.isCanceled()) {
+                            dispatchRequest(imageRequest, request.mRequestUrl,
+                                    request.mMaxWidth, request.mMaxHeight, request.mCacheKey);
+                        }
+                        return;
+                    }
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!imageRequest.isCanceled()) {
+                            onGetImageSuccess(request.mCacheKey, response.result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Ends the use of the larger variant the request scales down from, if any. Called with
+     * mLock held.
+     */
+    private void releaseScaleSource(@NonNull final BatchedImageRequest request) {
+        if (request.mScaleSource != null) {
+            releaseActiveDrawable(request.mScaleSourceKey, request.mScaleSource);
+            request.mScaleSource = null;
+            request.mScaleSourceKey = null;
+        }
+    }
+
+    private ExecutorService getDiskExecutor() {
+        if (mDiskExecutor == null) {
+            mDiskExecutor = newWorkerExecutor("GifImageLoader-disk");
+        }
+        return mDiskExecutor;
+    }
+
+    private ExecutorService getScaleExecutor() {
+        if (mScaleExecutor == null) {
+            mScaleExecutor = newWorkerExecutor("GifImageLoader-scale");
+        }
+        return mScaleExecutor;
+    }
+
+    @NonNull
+    private static ExecutorService newWorkerExecutor(@NonNull final String name) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable r) {
+                final Thread thread = new Thread(r, name);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    protected Request<Drawable> makeImageRequest(String requestUrl, int maxWidth, int maxHeight,
+            final String cacheKey) {
+        final ImageRequest request = new ImageRequest(requestUrl,
+                new Response.Listener<Drawable>() {
+                    @Override
+                    public void onResponse(final Drawable response) {
+                        onGetImageSuccess(cacheKey, response);
+                    }
+                }, maxWidth, maxHeight,
+                Bitmap.Config.RGB_565, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                onGetImageError(cacheKey, error);
+            }
+        });
+        request.setStreaming(mStreamingEnabled);
+        if (mPreviewsEnabled) {
+            request.setPreviewListener(new Response.Listener<Drawable>() {
+                @Override
+                public void onResponse(final Drawable preview) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onGetImagePreview(cacheKey, preview);
+                        }
+                    });
+                }
+            });
+        }
+        request.setDecodeScheduler(mDecodeScheduler);
+        request.setResources(mResources);
+        request.setBitmapPool(mBitmapPool);
+        request.setDiskCache(mDiskCache);
+        if (mDiskCache != null) {
+            // Writes go after the lookups, off the network thread.
+            request.setDiskExecutor(getDiskExecutor());
+        }
+        request.setEventListener(mEventListener);
+        return request;
+    }
+
+    /**
+     * Sets the cache of downsampled images to use as an L2 cache. Images missing in the L1 cache
+     * are looked up there before dispatching to Volley, and decoded images are stored there.
+     *
+     * @param diskCache The disk cache to use, or null to disable the L2 cache
+     */
+    public void setDiskCache(@Nullable final DiskDrawableCache diskCache) {
+        mDiskCache = diskCache;
+    }
+
+    /**
+     * Sets whether GIFs already in the Volley {@link DiskBasedCache} are opened directly from the
+     * cache files. The decoder then reads the encoded data from the file on demand instead of
+     * keeping a copy on the heap, and only the frame buffer counts against the memory cache.
+     * Expired entries still go through Volley to be refreshed.
+     *
+     * @param fileBackedGifsEnabled True to open cached GIFs from file
+     */
+    public void setFileBackedGifsEnabled(final boolean fileBackedGifsEnabled) {
+        mFileBackedGifsEnabled = fileBackedGifsEnabled;
+    }
+
+    /**
+     * Sets the resources decoded bitmaps take their density from. By default
+     * {@link Resources#getSystem()} is used.
+     *
+     * @param resources The resources to use
+     */
+    public void setResources(@NonNull final Resources resources) {
+        mResources = resources;
+    }
+
+    /**
+     * Sets the pool that static image decodes take bitmaps from. To feed the pool, pass the same
+     * instance to {@link DrawableImageCache#setBitmapPool(BitmapPool)}.
+     *
+     * @param bitmapPool The pool to use, or null to always allocate new bitmaps
+     */
+    public void setBitmapPool(@Nullable final BitmapPool bitmapPool) {
+        mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * Sets the scheduler that limits the memory used by concurrent decodes of this loader's
+     * requests. By default {@link DecodeScheduler#getDefault()} is used.
+     *
+     * @param decodeScheduler The scheduler to use
+     */
+    public void setDecodeScheduler(@NonNull final DecodeScheduler decodeScheduler) {
+        mDecodeScheduler = decodeScheduler;
+    }
+
+    /**
+     * Returns the scheduler that limits the memory used by concurrent decodes. Use it to read the
+     * decode queue depth and the bytes currently in use.
+     */
+    @NonNull
+    public DecodeScheduler getDecodeScheduler() {
+        return mDecodeScheduler;
+    }
+
+    /**
+     * Sets whether response bodies should be streamed to the decoder instead of being buffered
+     * into a byte array first. This lowers peak heap usage for large images, but requires the
+     * RequestQueue to use a {@link StreamingNetwork}, and streamed responses are not stored in
+     * the Volley disk cache.
+     *
+     * @param streamingEnabled True to enable streaming
+     */
+    public void setStreamingEnabled(final boolean streamingEnabled) {
+        mStreamingEnabled = streamingEnabled;
+    }
+
+    /**
+     * Sets whether a static preview of a streamed GIF is delivered as soon as its first frame
+     * has arrived. The preview is passed to {@link ImageListener#onResponse(ImageContainer,
+     * boolean)} of main thread listeners with {@link ImageContainer#isPreview()} returning true,
+     * and the final response replaces it. Has effect only with streaming enabled, and previews
+     * are never cached.
+     *
+     * @param previewsEnabled True to deliver previews
+     */
+    public void setPreviewsEnabled(final boolean previewsEnabled) {
+        mPreviewsEnabled = previewsEnabled;
+    }
+
+    /**
+     * Sets whether cached images are revalidated with the server once their response headers say
+     * they are stale. The ETag and Last-Modified validators of loaded images are remembered, also
+     * for images from the L2 cache, which stores them. A request for a stale image is sent as a
+     * conditional request that bypasses the L2 and Volley caches. If the server answers 304 Not
+     * Modified, the cached image is delivered again without a decode and its L2 expiry is
+     * extended. Images without validators never go stale.
+     *
+     * @param revalidationEnabled True to revalidate stale images
+     */
+    public void setRevalidationEnabled(final boolean revalidationEnabled) {
+        synchronized (mLock) {
+            mRevalidationEnabled = revalidationEnabled;
+        }
+    }
+
+    /**
+     * Sets whether a stale image is delivered immediately while it is revalidated in the
+     * background, instead of after the revalidation. The background request has a low priority
+     * like a prefetch. If the image was modified, the new image replaces the stale one in the
+     * cache for later requests. Has effect only with revalidation enabled.
+     *
+     * @param staleWhileRevalidate True to deliver stale images while revalidating them
+     */
+    public void setStaleWhileRevalidate(final boolean staleWhileRevalidate) {
+        synchronized (mLock) {
+            mStaleWhileRevalidate = staleWhileRevalidate;
+        }
+    }
+
+    /**
+     * Sets the listener to receive the events of requests, for measuring cache efficiency and
+     * latency. Set it before making requests, since requests that are already in flight report
+     * to the previous listener or with incomplete timings.
+     *
+     * @param eventListener The listener to use, or null to not measure events
+     */
+    public void setEventListener(@Nullable final EventListener eventListener) {
+        mEventListener = eventListener;
     }
 
     /**
-     * Returns an ImageContainer for the requested URL.
+     * Sets the amount of time to wait after the first response arrives before delivering
+     * responses, to let more responses join the batch. By default it is 0, and responses are
+     * delivered on the next frame.
      *
-     * The ImageContainer will contain either the specified default bitmap or the loaded bitmap.
-     * If the default was returned, the {@link ImageLoader} will be invoked when the
-     * request is fulfilled.
+     * @param newBatchedResponseDelayMs The time in milliseconds to wait.
+     */
+    public void setBatchedResponseDelay(final int newBatchedResponseDelayMs) {
+        mBatchResponseDelayMs = newBatchedResponseDelayMs;
+    }
+
+    /**
+     * Sets the max time to spend delivering responses in one frame. Responses that do not fit
+     * are delivered on the following frames. At least one response is delivered per frame.
      *
-     * @param url The URL of the image to be loaded.
+     * @param budgetMs The time in milliseconds
      */
-    public ImageContainer get(String url, final ImageListener listener) {
-        return get(url, listener, 0, 0);
+    public void setFrameDeliveryBudget(final int budgetMs) {
+        mFrameDeliveryBudgetNs = budgetMs * 1000000L;
     }
 
     /**
-     * Issues a bitmap request with the given URL if that image is not available
-     * in the cache, and returns a bitmap container that contains all of the data
-     * relating to the request (as well as the default image if the requested
-     * image is not available).
+     * Handler for when an image was successfully loaded.
      *
-     * @param requestUrl    The url of the remote image
-     * @param imageListener The listener to call when the remote image is loaded
-     * @param maxWidth      The maximum width of the returned image.
-     * @param maxHeight     The maximum height of the returned image.
-     * @return A container object that contains all of the properties of the request, as well as
-     * the currently available image (default if remote is not loaded).
+     * @param cacheKey The cache key that is associated with the image request.
+     * @param response The bitmap that was returned from the network.
      */
-    public ImageContainer get(String requestUrl, ImageListener imageListener,
-            int maxWidth, int maxHeight) {
-        // only fulfill requests that were initiated from the main thread.
-        throwIfNotOnMainThread();
+    protected void onGetImageSuccess(String cacheKey, Drawable response) {
+        final List<ImageContainer> executorContainers;
+        synchronized (mLock) {
+            // cache the image that was fetched.
+            mCache.putImage(cacheKey, response);
+            mActiveDrawables.markCached(cacheKey, response);
 
-        final String cacheKey = getCacheKey(requestUrl, maxWidth, maxHeight);
+            // remove the request from the list of in-flight requests.
+            BatchedImageRequest request = mInFlightRequests.remove(cacheKey);
+            if (request == null) {
+                return;
+            }
+            onRequestFinished(request);
+            mPrefetchContainers.remove(cacheKey);
 
-        // Try to look up the request in the cache of remote images.
-        Drawable cachedImage = mCache.getImage(cacheKey);
-        if (cachedImage != null) {
-            // Return the cached bitmap.
-            ImageContainer container = new ImageContainer(cachedImage, requestUrl, null, null);
-            imageListener.onResponse(container, true);
-            return container;
-        }
+            // Remember the validators of responses from Volley. Images from the L2 cache were
+            // given the validators they were stored with by dispatchRequest().
+            if (request.mRequest instanceof ImageRequest
+                    && request.mRequest.hasHadResponseDelivered()) {
+                rememberValidators(cacheKey, ((ImageRequest) request.mRequest).getValidators());
+            }
 
-        // The bitmap did not exist in the cache, fetch it!
-        ImageContainer imageContainer =
-                new ImageContainer(null, requestUrl, cacheKey, imageListener);
+            // Remember the size so that smaller sizes can be derived from it.
+            addCachedVariant(request.mRequestUrl, request.mMaxWidth, request.mMaxHeight,
+                    cacheKey);
 
-        // Update the caller to let them know that they should use the default bitmap.
-        imageListener.onResponse(imageContainer, true);
+            // Update the response bitmap.
+            request.mResponseImage = response;
 
-        // Check to see if a request is already in-flight.
-        BatchedImageRequest request = mInFlightRequests.get(cacheKey);
-        if (request != null) {
-            // If it is, add this request to the list of listeners.
-            request.addContainer(imageContainer);
-            return imageContainer;
+            // Send the batched response to the main thread listeners, if any.
+            executorContainers = request.removeExecutorContainers();
+            if (request.hasListeners()) {
+                // In use until delivered, so that it is not pooled before the views acquire it.
+                mActiveDrawables.acquire(cacheKey, response);
+                batchResponse(cacheKey, request);
+            } else if (mEventListener != null) {
+                mEventListener.responseDelivered(request.mRequestUrl, 0,
+                        System.nanoTime() - request.mStartNs);
+            }
         }
-
-        // The request is not already in flight. Send the new request to the network and
-        // track it.
-        Request<Drawable> newRequest = makeImageRequest(requestUrl, maxWidth, maxHeight, cacheKey);
-
-        mRequestQueue.add(newRequest);
-        mInFlightRequests.put(cacheKey,
-                new BatchedImageRequest(newRequest, imageContainer));
-        return imageContainer;
+        deliverOnExecutors(executorContainers, response, null);
     }
 
-    protected Request<Drawable> makeImageRequest(String requestUrl, int maxWidth, int maxHeight,
-            final String cacheKey) {
-        return new ImageRequest(requestUrl, new Response.Listener<Drawable>() {
-            @Override
-            public void onResponse(final Drawable response) {
-                onGetImageSuccess(cacheKey, response);
+    /**
+     * Handler for when a preview of an image was decoded. Called on the main thread.
+     *
+     * @param cacheKey The cache key that is associated with the image request.
+     * @param preview  The preview of the image.
+     */
+    protected void onGetImagePreview(String cacheKey, Drawable preview) {
+        final List<ImageContainer> containers;
+        synchronized (mLock) {
+            // Too late if the final response has already arrived.
+            final BatchedImageRequest request = mInFlightRequests.get(cacheKey);
+            if (request == null) {
+                return;
             }
-        }, maxWidth, maxHeight,
-                Bitmap.Config.RGB_565, new Response.ErrorListener() {
-            @Override
-            public void onErrorResponse(VolleyError error) {
-                onGetImageError(cacheKey, error);
+            containers = new ArrayList<>(request.mContainers);
+        }
+        for (final ImageContainer container : containers) {
+            // Executor listeners, such as futures, expect a single final response.
+            if (container.mPrefetch || container.mExecutor != null || container.mCanceled) {
+                continue;
             }
-        });
+            container.mImage = preview;
+            container.mPreview = true;
+            container.mListener.onResponse(container, false);
+        }
     }
 
     /**
-     * Sets the amount of time to wait after the first response arrives before delivering all
-     * responses. Batching can be disabled entirely by passing in 0.
-     *
-     * @param newBatchedResponseDelayMs The time in milliseconds to wait.
+     * Returns a larger variant of the same URL that can be used as is for the requested size, or
+     * null if there is none. A GIF is used as is, since it can not be cheaply rescaled. A bitmap
+     * that must be scaled down is left to {@link #startRequest}.
      */
-    public void setBatchedResponseDelay(final int newBatchedResponseDelayMs) {
-        mBatchResponseDelayMs = newBatchedResponseDelayMs;
+    @Nullable
+    private Drawable getFromLargerVariant(final String requestUrl, final int maxWidth,
+            final int maxHeight) {
+        final CachedVariant variant = findLargerVariant(requestUrl, maxWidth, maxHeight);
+        final Drawable image = variant != null ? getVariantImage(variant) : null;
+        return needsScaling(image, maxWidth, maxHeight) ? null : image;
     }
 
     /**
-     * Handler for when an image was successfully loaded.
-     *
-     * @param cacheKey The cache key that is associated with the image request.
-     * @param response The bitmap that was returned from the network.
+     * Returns the image of the variant, in use or in the L1 cache, or null if it is gone
      */
-    protected void onGetImageSuccess(String cacheKey, Drawable response) {
-        // cache the image that was fetched.
-        mCache.putImage(cacheKey, response);
+    @Nullable
+    private Drawable getVariantImage(@NonNull final CachedVariant variant) {
+        final Drawable image = mActiveDrawables.get(variant.mCacheKey);
+        return image != null ? image : mCache.getImage(variant.mCacheKey);
+    }
 
-        // remove the request from the list of in-flight requests.
-        BatchedImageRequest request = mInFlightRequests.remove(cacheKey);
+    /**
+     * Returns true if the image is a bitmap larger than an image decoded for the given size
+     */
+    private static boolean needsScaling(@Nullable final Drawable image, final int maxWidth,
+            final int maxHeight) {
+        if (!(image instanceof BitmapDrawable)) {
+            return false;
+        }
+        final Bitmap source = ((BitmapDrawable) image).getBitmap();
+        final int desiredWidth = ImageRequest.getResizedDimension(maxWidth, maxHeight,
+                source.getWidth(), source.getHeight());
+        final int desiredHeight = ImageRequest.getResizedDimension(maxHeight, maxWidth,
+                source.getHeight(), source.getWidth());
+        return desiredWidth < source.getWidth() || desiredHeight < source.getHeight();
+    }
 
-        if (request != null) {
-            // Update the response bitmap.
-            request.mResponseImage = response;
+    /**
+     * Finds a variant of the URL in use or in the L1 cache that was decoded for a size at least
+     * as large as the requested size in both dimensions. Zero means unbounded. Forgets variants
+     * that are gone.
+     */
+    @Nullable
+    private CachedVariant findLargerVariant(final String requestUrl, final int maxWidth,
+            final int maxHeight) {
+        final LinkedList<CachedVariant> variants = mCachedVariants.get(requestUrl);
+        if (variants == null) {
+            return null;
+        }
+        final Iterator<CachedVariant> iterator = variants.iterator();
+        while (iterator.hasNext()) {
+            final CachedVariant variant = iterator.next();
+            if (variant.covers(maxWidth, maxHeight)) {
+                if (getVariantImage(variant) != null) {
+                    return variant;
+                }
+                iterator.remove();
+            }
+        }
+        if (variants.isEmpty()) {
+            mCachedVariants.remove(requestUrl);
+        }
+        return null;
+    }
+
+    private void addCachedVariant(final String requestUrl, final int maxWidth,
+            final int maxHeight, final String cacheKey) {
+        LinkedList<CachedVariant> variants = mCachedVariants.get(requestUrl);
+        if (variants == null) {
+            variants = new LinkedList<>();
+            mCachedVariants.put(requestUrl, variants);
+        }
+        for (final CachedVariant variant : variants) {
+            if (variant.mCacheKey.equals(cacheKey)) {
+                return;
+            }
+        }
+        variants.add(new CachedVariant(maxWidth, maxHeight, cacheKey));
+    }
 
-            // Send the batched response
-            batchResponse(cacheKey, request);
+    /**
+     * Ends a use of an image in {@link #mActiveDrawables}, and hands its bitmap to the pool if it
+     * is neither used nor cached anymore. Called with mLock held.
+     */
+    private void releaseActiveDrawable(final String cacheKey, final Drawable image) {
+        if (mActiveDrawables.release(cacheKey, image) && mCache instanceof DrawableImageCache) {
+            ((DrawableImageCache) mCache).recycle(image);
         }
     }
 
@@ -255,16 +1492,52 @@ public class GifImageLoader {
      * @param cacheKey The cache key that is associated with the image request.
      */
     protected void onGetImageError(String cacheKey, VolleyError error) {
-        // Notify the requesters that something failed via a null result.
-        // Remove this request from the list of in-flight requests.
-        BatchedImageRequest request = mInFlightRequests.remove(cacheKey);
+        final List<ImageContainer> executorContainers;
+        synchronized (mLock) {
+            // Notify the requesters that something failed via a null result.
+            // Remove this request from the list of in-flight requests.
+            BatchedImageRequest request = mInFlightRequests.remove(cacheKey);
+            if (request == null) {
+                return;
+            }
+            onRequestFinished(request);
+            mPrefetchContainers.remove(cacheKey);
 
-        if (request != null) {
             // Set the error for this request
             request.setError(error);
+            if (mEventListener != null) {
+                mEventListener.requestFailed(request.mRequestUrl, error);
+            }
+
+            // Send the batched response to the main thread listeners, if any.
+            executorContainers = request.removeExecutorContainers();
+            if (request.hasListeners()) {
+                batchResponse(cacheKey, request);
+            }
+        }
+        deliverOnExecutors(executorContainers, null, error);
+    }
 
-            // Send the batched response
-            batchResponse(cacheKey, request);
+    /**
+     * Calls the listeners of the containers on their executors, unless they were canceled.
+     */
+    private static void deliverOnExecutors(@NonNull final List<ImageContainer> containers,
+            @Nullable final Drawable response, @Nullable final VolleyError error) {
+        for (final ImageContainer container : containers) {
+            container.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (container.mCanceled) {
+                        return;
+                    }
+                    if (error == null) {
+                        container.mImage = response;
+                        container.mListener.onResponse(container, false);
+                    } else {
+                        container.mListener.onErrorResponse(error);
+                    }
+                }
+            });
         }
     }
 
@@ -277,7 +1550,7 @@ public class GifImageLoader {
          * The most relevant bitmap for the container. If the image was in cache, the
          * Holder to use for the final bitmap (the one that pairs to the requested URL).
          */
-        private Drawable mImage;
+        private volatile Drawable mImage;
 
         private final ImageListener mListener;
 
@@ -287,6 +1560,27 @@ public class GifImageLoader {
         /** The request URL that was specified */
         private final String mRequestUrl;
 
+        /** The priority this container wants its request to have */
+        private Priority mPriority = Priority.LOW;
+
+        /** True if this container was made by {@link #prefetch(Collection, int, int)} */
+        private boolean mPrefetch;
+
+        /** The tag for {@link #pause(Object)}, if any */
+        private Object mTag;
+
+        /** The executor to call the listener on, or null for batched main thread delivery */
+        private Executor mExecutor;
+
+        /** True once {@link #cancelRequest()} was called */
+        private volatile boolean mCanceled;
+
+        /** True while the image is a preview waiting for the final response */
+        private volatile boolean mPreview;
+
+        /** The image marked as in use by {@link #acquire()}, if any */
+        private Drawable mAcquiredImage;
+
         /**
          * Constructs a BitmapContainer object.
          *
@@ -304,30 +1598,76 @@ public class GifImageLoader {
 
         /**
          * Releases interest in the in-flight request (and cancels it if no one else is listening).
+         * Also releases the image if it was acquired.
          */
         public void cancelRequest() {
+            cancelRequest(true);
+        }
+
+        /**
+         * Like {@link #cancelRequest()}, but optionally keeps the image acquired, for a view that
+         * shows it until it is replaced
+         *
+         * @param release True to also release the image
+         */
+        void cancelRequest(final boolean release) {
+            mCanceled = true;
+            if (release) {
+                release();
+            }
             if (mListener == null) {
                 return;
             }
 
-            BatchedImageRequest request = mInFlightRequests.get(mCacheKey);
-            if (request != null) {
-                boolean canceled = request.removeContainerAndCancelIfNecessary(this);
-                if (canceled) {
-                    mInFlightRequests.remove(mCacheKey);
-                }
-            } else {
-                // check to see if it is already batched for delivery.
-                request = mBatchedResponses.get(mCacheKey);
+            synchronized (mLock) {
+                BatchedImageRequest request = mInFlightRequests.get(mCacheKey);
                 if (request != null) {
-                    request.removeContainerAndCancelIfNecessary(this);
-                    if (request.mContainers.size() == 0) {
-                        mBatchedResponses.remove(mCacheKey);
+                    boolean canceled = request.removeContainerAndCancelIfNecessary(this);
+                    if (canceled) {
+                        mInFlightRequests.remove(mCacheKey);
+                        onRequestFinished(request);
+                        if (mEventListener != null) {
+                            mEventListener.requestCanceled(mRequestUrl);
+                        }
+                    }
+                } else {
+                    // check to see if it is already batched for delivery.
+                    request = mBatchedResponses.get(mCacheKey);
+                    if (request != null) {
+                        request.removeContainerAndCancelIfNecessary(this);
+                        if (request.mContainers.size() == 0) {
+                            mBatchedResponses.remove(mCacheKey);
+                            if (request.getError() == null) {
+                                releaseActiveDrawable(mCacheKey, request.mResponseImage);
+                            }
+                        }
                     }
                 }
             }
         }
 
+        /**
+         * Changes the priority of the request if it is still waiting for dispatch. The request
+         * gets the highest priority of the containers interested in it.
+         *
+         * @param priority The new priority
+         */
+        public void setPriority(@NonNull final Priority priority) {
+            if (mListener == null) {
+                return;
+            }
+            synchronized (mLock) {
+                if (mPriority == priority) {
+                    return;
+                }
+                mPriority = priority;
+                final BatchedImageRequest request = mInFlightRequests.get(mCacheKey);
+                if (request != null) {
+                    request.updatePriority();
+                }
+            }
+        }
+
         /**
          * Returns the Drawable associated with the request URL if it has been loaded, null
          * otherwise.
@@ -336,6 +1676,45 @@ public class GifImageLoader {
             return mImage;
         }
 
+        /**
+         * Marks the loaded image as in use, for example while a view displays it. Until
+         * {@link #release()}, requests for the same URL and size get this image, even if the L1
+         * cache evicted it, instead of decoding it again, and its bitmap is kept out of the
+         * bitmap pool. Does nothing for previews or if no image is loaded.
+         */
+        public void acquire() {
+            synchronized (mLock) {
+                final Drawable image = mImage;
+                if (mAcquiredImage != null || image == null || mPreview || mCanceled
+                        || mCacheKey == null) {
+                    return;
+                }
+                mActiveDrawables.acquire(mCacheKey, image);
+                mAcquiredImage = image;
+            }
+        }
+
+        /**
+         * Ends the use of the image marked by {@link #acquire()}. If the L1 cache evicted the
+         * image and nothing else uses it, its bitmap goes to the pool.
+         */
+        public void release() {
+            synchronized (mLock) {
+                if (mAcquiredImage != null) {
+                    releaseActiveDrawable(mCacheKey, mAcquiredImage);
+                    mAcquiredImage = null;
+                }
+            }
+        }
+
+        /**
+         * Returns true if the image is a preview that the final response will replace. See
+         * {@link #setPreviewsEnabled(boolean)}.
+         */
+        public boolean isPreview() {
+            return mPreview;
+        }
+
         /**
          * Returns the requested URL for this container.
          */
@@ -353,12 +1732,57 @@ public class GifImageLoader {
         /** The request being tracked */
         private final Request<?> mRequest;
 
+        /** The requested URL */
+        private final String mRequestUrl;
+
+        /** The L1 cache key */
+        private final String mCacheKey;
+
+        /** The requested max-width */
+        private final int mMaxWidth;
+
+        /** The requested max-height */
+        private final int mMaxHeight;
+
         /** The result of the request being tracked by this item */
         private Drawable mResponseImage;
 
         /** Error if one occurred for this response */
         private VolleyError mError;
 
+        /** The highest priority of the interested ImageContainers */
+        private Priority mPriority;
+
+        /** Order in which the request was made */
+        private final int mSequence = ++mRequestSequence;
+
+        /** True if dispatched to the L2 cache or Volley and not finished yet */
+        private boolean mDispatched;
+
+        /** True if dispatched without a slot because Volley has it in its disk cache */
+        private boolean mBypassedCap;
+
+        /** True if only prefetch containers are interested in the request */
+        private boolean mPrefetch;
+
+        /** True if the request counts against the max number of active prefetches */
+        private boolean mCountedAsPrefetch;
+
+        /** True if held back in the held requests because it is paused */
+        private boolean mHeld;
+
+        /** The larger variant to scale down instead of loading the image, kept in use */
+        private BitmapDrawable mScaleSource;
+
+        /** The cache key of {@link #mScaleSource} */
+        private String mScaleSourceKey;
+
+        /** When the request was made, if an event listener is set */
+        private final long mStartNs = mEventListener != null ? System.nanoTime() : 0;
+
+        /** When the response was batched, if an event listener is set */
+        private long mBatchedNs;
+
         /** List of all of the active ImageContainers that are interested in the request */
         private final LinkedList<ImageContainer> mContainers = new LinkedList<>();
 
@@ -367,10 +1791,63 @@ public class GifImageLoader {
          *
          * @param request   The request being tracked
          * @param container The ImageContainer of the person who initiated the request.
+         * @param cacheKey  The L1 cache key
+         * @param maxWidth  The requested max-width
+         * @param maxHeight The requested max-height
          */
-        public BatchedImageRequest(Request<?> request, ImageContainer container) {
+        public BatchedImageRequest(Request<?> request, ImageContainer container,
+                String cacheKey, int maxWidth, int maxHeight) {
             mRequest = request;
+            mRequestUrl = container.mRequestUrl;
+            mCacheKey = cacheKey;
+            mMaxWidth = maxWidth;
+            mMaxHeight = maxHeight;
             mContainers.add(container);
+            mPriority = container.mPriority;
+            mPrefetch = container.mPrefetch;
+            setRequestPriority(mPriority);
+        }
+
+        /**
+         * Recomputes the priority from the interested containers, and reorders the request in
+         * the pending requests if it changed. Prefetch containers do not raise the priority.
+         */
+        void updatePriority() {
+            Priority priority = Priority.LOW;
+            boolean prefetch = true;
+            for (final ImageContainer container : mContainers) {
+                if (!container.mPrefetch) {
+                    prefetch = false;
+                    if (container.mPriority.ordinal() > priority.ordinal()) {
+                        priority = container.mPriority;
+                    }
+                }
+            }
+            if (priority == mPriority && prefetch == mPrefetch) {
+                return;
+            }
+            if (!mDispatched && unqueueRequest(this)) {
+                mPriority = priority;
+                mPrefetch = prefetch;
+                queueRequest(this);
+                dispatchPendingRequests();
+            } else {
+                mPriority = priority;
+                mPrefetch = prefetch;
+                if (!prefetch && mCountedAsPrefetch) {
+                    // A view is waiting for it now, so it no longer takes a prefetch slot.
+                    mCountedAsPrefetch = false;
+                    mActivePrefetchCount--;
+                    dispatchPendingRequests();
+                }
+            }
+            setRequestPriority(priority);
+        }
+
+        private void setRequestPriority(@NonNull final Priority priority) {
+            if (mRequest instanceof ImageRequest) {
+                ((ImageRequest) mRequest).setPriority(priority);
+            }
         }
 
         /**
@@ -387,12 +1864,48 @@ public class GifImageLoader {
             return mError;
         }
 
+        /**
+         * Removes and returns the containers with an executor, which are not batched
+         */
+        @NonNull
+        List<ImageContainer> removeExecutorContainers() {
+            final List<ImageContainer> result = new ArrayList<>();
+            final Iterator<ImageContainer> iterator = mContainers.iterator();
+            while (iterator.hasNext()) {
+                final ImageContainer container = iterator.next();
+                if (container.mExecutor != null) {
+                    iterator.remove();
+                    result.add(container);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns true if any container other than a prefetch is interested in the result
+         */
+        boolean hasListeners() {
+            for (final ImageContainer container : mContainers) {
+                if (!container.mPrefetch) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         /**
          * Adds another ImageContainer to the list of those interested in the results of
          * the request.
          */
         public void addContainer(ImageContainer container) {
             mContainers.add(container);
+            updatePriority();
+            if (mHeld) {
+                // The new container may not be paused, let dispatch decide again.
+                unqueueRequest(this);
+                queueRequest(this);
+                dispatchPendingRequests();
+            }
         }
 
         /**
@@ -408,47 +1921,142 @@ public class GifImageLoader {
                 mRequest.cancel();
                 return true;
             }
+            updatePriority();
             return false;
         }
     }
 
     /**
-     * Starts the runnable for batched delivery of responses if it is not already started.
+     * A size of a URL that was put in the L1 cache.
+     */
+    private static final class CachedVariant {
+
+        /** The max-width the variant was decoded for, or zero for unbounded */
+        final int mMaxWidth;
+
+        /** The max-height the variant was decoded for, or zero for unbounded */
+        final int mMaxHeight;
+
+        /** The L1 cache key of the variant */
+        final String mCacheKey;
+
+        CachedVariant(final int maxWidth, final int maxHeight, final String cacheKey) {
+            mMaxWidth = maxWidth;
+            mMaxHeight = maxHeight;
+            mCacheKey = cacheKey;
+        }
+
+        /**
+         * Returns true if this variant is at least as large as an image decoded for the given
+         * size.
+         */
+        boolean covers(final int maxWidth, final int maxHeight) {
+            return coversDimension(mMaxWidth, maxWidth) && coversDimension(mMaxHeight, maxHeight);
+        }
+
+        private static boolean coversDimension(final int variantMax, final int requestedMax) {
+            return variantMax == 0 || (requestedMax != 0 && variantMax >= requestedMax);
+        }
+    }
+
+    /**
+     * Schedules batched delivery of responses if it is not already scheduled.
      *
      * @param cacheKey The cacheKey of the response being delivered.
      * @param request  The BatchedImageRequest to be delivered.
      */
     private void batchResponse(final String cacheKey, BatchedImageRequest request) {
+        if (mEventListener != null) {
+            request.mBatchedNs = System.nanoTime();
+        }
         mBatchedResponses.put(cacheKey, request);
-        // If we don't already have a batch delivery runnable in flight, make a new one.
-        // Note that this will be used to deliver responses to all callers in mBatchedResponses.
-        if (mRunnable == null) {
-            mRunnable = new Runnable() {
-                @Override
-                public void run() {
-                    for (BatchedImageRequest bir : mBatchedResponses.values()) {
-                        for (ImageContainer container : bir.mContainers) {
-                            // If one of the callers in the batched request canceled the request
-                            // after the response was received but before it was delivered,
-                            // skip them.
-                            if (container.mListener == null) {
-                                continue;
-                            }
-                            if (bir.getError() == null) {
-                                container.mImage = bir.mResponseImage;
-                                container.mListener.onResponse(container, false);
-                            } else {
-                                container.mListener.onErrorResponse(bir.getError());
-                            }
-                        }
-                    }
-                    mBatchedResponses.clear();
-                    mRunnable = null;
+        // If we don't already have a batch delivery scheduled, schedule one.
+        // Note that it will deliver responses to all callers in mBatchedResponses.
+        if (!mDeliveryScheduled) {
+            mDeliveryScheduled = true;
+            if (mBatchResponseDelayMs > 0) {
+                mHandler.postDelayed(mDelayedDeliveryRunnable, mBatchResponseDelayMs);
+            } else {
+                postDeliveryFrame();
+            }
+        }
+    }
+
+    /**
+     * Runs {@link #deliverBatchedResponses()} on the next frame
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postDeliveryFrame() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if (mDeliveryFrameCallback == null) {
+                mDeliveryFrameCallback = new DeliveryFrameCallback();
+            }
+            Choreographer.getInstance().postFrameCallback(mDeliveryFrameCallback);
+        } else {
+            mHandler.post(mDeliveryRunnable);
+        }
+    }
+
+    /**
+     * Delivers batched responses in the order they arrived until the frame delivery budget is
+     * spent, and leaves the rest for the next frame.
+     */
+    private void deliverBatchedResponses() {
+        final long start = System.nanoTime();
+        while (true) {
+            final BatchedImageRequest bir;
+            final List<ImageContainer> containers;
+            synchronized (mLock) {
+                if (mBatchedResponses.isEmpty()) {
+                    mDeliveryScheduled = false;
+                    return;
+                }
+                if (System.nanoTime() - start >= mFrameDeliveryBudgetNs) {
+                    postDeliveryFrame();
+                    return;
+                }
+                // Remove before delivering, since listeners may make or cancel requests.
+                final Iterator<BatchedImageRequest> iterator =
+                        mBatchedResponses.values().iterator();
+                bir = iterator.next();
+                iterator.remove();
+                containers = new ArrayList<>(bir.mContainers);
+            }
+            for (ImageContainer container : containers) {
+                // If one of the callers in the batched request canceled the request
+                // after the response was received but before it was delivered,
+                // skip them.
+                if (container.mListener == null || container.mCanceled) {
+                    continue;
+                }
+                container.mPreview = false;
+                if (bir.getError() == null) {
+                    container.mImage = bir.mResponseImage;
+                    container.mListener.onResponse(container, false);
+                } else {
+                    container.mListener.onErrorResponse(bir.getError());
                 }
+            }
+            if (bir.getError() == null) {
+                synchronized (mLock) {
+                    releaseActiveDrawable(bir.mCacheKey, bir.mResponseImage);
+                }
+            }
+            final EventListener eventListener = mEventListener;
+            if (eventListener != null && bir.getError() == null) {
+                final long now = System.nanoTime();
+                eventListener.responseDelivered(bir.mRequestUrl, now - bir.mBatchedNs,
+                        now - bir.mStartNs);
+            }
+        }
+    }
 
-            };
-            // Post the runnable.
-            mHandler.postDelayed(mRunnable, mBatchResponseDelayMs);
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private final class DeliveryFrameCallback implements Choreographer.FrameCallback {
+
+        @Override
+        public void doFrame(final long frameTimeNanos) {
+            deliverBatchedResponses();
         }
     }
 
@@ -466,13 +2074,12 @@ public class GifImageLoader {
      * @param maxHeight The max-height of the output.
      */
     @Nullable
-    private static String getCacheKey(@Nullable final String url, final int maxWidth,
+    static String getCacheKey(@Nullable final String url, final int maxWidth,
             final int maxHeight) {
-//        return new StringBuilder(url.length() + 12).append("#W").append(maxWidth)
-//                .append("#H").append(maxHeight).append(url).toString();
         if (url == null) {
             return null;
         }
-        return (url.length() + 12) + url;
+        return new StringBuilder(url.length() + 12).append("#W").append(maxWidth)
+                .append("#H").append(maxHeight).append(url).toString();
     }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+
+import android.support.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Performs the HTTP requests of {@link StreamingNetwork}. Unlike Volley's HttpStack, the response
+ * body is handed over as a stream, so that it can be decoded as it arrives. Implementations may
+ * keep connections alive and share them between requests to the same host.
+ *
+ * @see HurlTransport
+ * @see OkHttpTransport
+ */
+public interface HttpTransport {
+
+    /**
+     * Performs a GET request with the request's headers and timeout, and returns as soon as the
+     * status line and headers have arrived. Called on a network thread.
+     *
+     * @param request The request to perform
+     * @return The response, which the caller closes after reading the body
+     * @throws IOException       if the connection failed. A read timeout is thrown as
+     *                           {@link java.net.SocketTimeoutException}.
+     * @throws AuthFailureError if the request headers could not be provided
+     */
+    @NonNull
+    StreamedResponse execute(@NonNull Request<?> request) throws IOException, AuthFailureError;
+
+    /**
+     * An HTTP response whose body has not been read yet
+     */
+    interface StreamedResponse extends Closeable {
+
+        /**
+         * Returns the HTTP status code
+         */
+        int getStatusCode();
+
+        /**
+         * Returns the response headers, with the first value of each
+         */
+        @NonNull
+        Map<String, String> getHeaders();
+
+        /**
+         * Returns the response body. May be called once.
+         */
+        @NonNull
+        InputStream getBody() throws IOException;
+
+        /**
+         * Releases the connection. Unread body bytes are discarded, and a pooling transport may
+         * give up the connection instead of reusing it.
+         */
+        @Override
+        void close();
+    }
+}
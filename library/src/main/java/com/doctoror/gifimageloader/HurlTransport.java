@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link HttpTransport} based on {@link HttpURLConnection}, which keeps connections alive in
+ * the platform's pool. HttpURLConnection is unreliable before Gingerbread.
+ */
+public class HurlTransport implements HttpTransport {
+
+    @NonNull
+    @Override
+    public StreamedResponse execute(@NonNull final Request<?> request)
+            throws IOException, AuthFailureError {
+        final HttpURLConnection connection = openConnection(request);
+        try {
+            final int statusCode = connection.getResponseCode();
+            if (statusCode == -1) {
+                throw new IOException(
+                        "Could not retrieve response code from HttpUrlConnection.");
+            }
+            return new HurlResponse(connection, statusCode,
+                    convertHeaders(connection.getHeaderFields()));
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        } catch (RuntimeException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates an {@link HttpURLConnection} for the specified URL. Override to configure the
+     * connection, for example with an SSLSocketFactory.
+     */
+    @NonNull
+    protected HttpURLConnection createConnection(@NonNull final URL url) throws IOException {
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    private HttpURLConnection openConnection(final Request<?> request)
+            throws IOException, AuthFailureError {
+        final HttpURLConnection connection = createConnection(new URL(request.getUrl()));
+        final int timeoutMs = request.getTimeoutMs();
+        connection.setConnectTimeout(timeoutMs);
+        connection.setReadTimeout(timeoutMs);
+        connection.setUseCaches(false);
+        connection.setDoInput(true);
+        connection.setRequestMethod("GET");
+        for (final Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            connection.addRequestProperty(header.getKey(), header.getValue());
+        }
+        return connection;
+    }
+
+    private static Map<String, String> convertHeaders(final Map<String, List<String>> fields) {
+        final Map<String, String> headers = new HashMap<>(fields.size());
+        for (final Map.Entry<String, List<String>> field : fields.entrySet()) {
+            // The status line is reported with a null key.
+            if (field.getKey() != null && !field.getValue().isEmpty()) {
+                headers.put(field.getKey(), field.getValue().get(0));
+            }
+        }
+        return headers;
+    }
+
+    private static final class HurlResponse implements StreamedResponse {
+
+        private final HttpURLConnection mConnection;
+        private final int mStatusCode;
+        private final Map<String, String> mHeaders;
+
+        private InputStream mBody;
+
+        HurlResponse(@NonNull final HttpURLConnection connection, final int statusCode,
+                @NonNull final Map<String, String> headers) {
+            mConnection = connection;
+            mStatusCode = statusCode;
+            mHeaders = headers;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        @NonNull
+        @Override
+        public Map<String, String> getHeaders() {
+            return mHeaders;
+        }
+
+        @NonNull
+        @Override
+        public InputStream getBody() throws IOException {
+            mBody = mConnection.getInputStream();
+            return mBody;
+        }
+
+        @Override
+        public void close() {
+            if (mBody != null) {
+                try {
+                    // Closing the fully read body returns the connection to the pool.
+                    mBody.close();
+                } catch (IOException e) {
+                    // The connection is broken, nothing to return.
+                }
+            }
+            mConnection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import com.android.volley.VolleyError;
+
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A Future of an image loaded by {@link GifImageLoader#getFuture(String, int, int)}. Like
+ * Volley's RequestFuture, but completed by an {@link GifImageLoader.ImageListener}.
+ */
+final class ImageFuture implements Future<Drawable>, GifImageLoader.ImageListener {
+
+    private GifImageLoader.ImageContainer mContainer;
+
+    private boolean mResultReceived;
+
+    private Drawable mResult;
+
+    private VolleyError mException;
+
+    private boolean mCanceled;
+
+    synchronized void setContainer(@NonNull final GifImageLoader.ImageContainer container) {
+        mContainer = container;
+        if (mCanceled) {
+            container.cancelRequest();
+        }
+    }
+
+    @Override
+    public synchronized void onResponse(final GifImageLoader.ImageContainer response,
+            final boolean isImmediate) {
+        final Drawable image = response.getImage();
+        if (image == null) {
+            // The immediate response of a request that is not cached yet.
+            return;
+        }
+        mResultReceived = true;
+        mResult = image;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onErrorResponse(final VolleyError error) {
+        mException = error;
+        notifyAll();
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        final GifImageLoader.ImageContainer container;
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            mCanceled = true;
+            container = mContainer;
+            notifyAll();
+        }
+        // Not under this lock, the loader calls this future while holding its own.
+        if (container != null) {
+            container.cancelRequest();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCanceled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mResultReceived || mException != null || mCanceled;
+    }
+
+    @Override
+    public Drawable get() throws InterruptedException, ExecutionException {
+        try {
+            return doGet(null);
+        } catch (TimeoutException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public Drawable get(final long timeout, @NonNull final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        return doGet(TimeUnit.MILLISECONDS.convert(timeout, unit));
+    }
+
+    private synchronized Drawable doGet(final Long timeoutMs)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (timeoutMs == null) {
+            while (!isDone()) {
+                wait();
+            }
+        } else if (!isDone()) {
+            final long deadline = System.currentTimeMillis() + timeoutMs;
+            long remaining = timeoutMs;
+            while (!isDone() && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        if (mCanceled) {
+            throw new CancellationException();
+        }
+        if (mException != null) {
+            throw new ExecutionException(mException);
+        }
+        if (!mResultReceived) {
+            throw new TimeoutException();
+        }
+        return mResult;
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Format, dimensions and frame count of an encoded image, read from its header bytes in place
+ * without decoding.
+ *
+ * The frame count is known only for GIF, where it is counted by skipping over the data
+ * sub-blocks. For other formats it is 1, or 0 if the format is unknown.
+ */
+public final class ImageHeader {
+
+    /**
+     * Encoded image formats recognized by {@link #probe(ByteBuffer)}
+     */
+    public enum Format {
+        GIF, PNG, JPEG, WEBP, BMP, UNKNOWN
+    }
+
+    /** Returned for sizes that could not be read */
+    public static final int SIZE_UNKNOWN = -1;
+
+    private static final ImageHeader UNKNOWN =
+            new ImageHeader(Format.UNKNOWN, SIZE_UNKNOWN, SIZE_UNKNOWN, 0);
+
+    private final Format mFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameCount;
+
+    private ImageHeader(@NonNull final Format format, final int width, final int height,
+            final int frameCount) {
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mFrameCount = frameCount;
+    }
+
+    /**
+     * Returns the encoded format
+     */
+    @NonNull
+    public Format getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Returns the width in pixels, or {@link #SIZE_UNKNOWN}
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns the height in pixels, or {@link #SIZE_UNKNOWN}
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns true if the size was read
+     */
+    public boolean hasSize() {
+        return mWidth > 0 && mHeight > 0;
+    }
+
+    /**
+     * Returns the number of frames. See the class description.
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Returns true if this is a GIF with more than one frame
+     */
+    public boolean isAnimated() {
+        return mFormat == Format.GIF && mFrameCount > 1;
+    }
+
+    /**
+     * Reads the header of an encoded image in place.
+     *
+     * @param data The encoded image
+     */
+    @NonNull
+    public static ImageHeader probe(@NonNull final byte[] data) {
+        return probe(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Reads the header of an encoded image file. The file is memory-mapped, not read into the
+     * heap.
+     *
+     * @param file The encoded image file
+     * @throws IOException if the file can not be read
+     */
+    @NonNull
+    public static ImageHeader probe(@NonNull final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return probe(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the header of an encoded image from the buffer's limit using absolute reads, so the
+     * buffer position is not changed.
+     *
+     * @param buffer The encoded image
+     */
+    @NonNull
+    public static ImageHeader probe(@NonNull final ByteBuffer buffer) {
+        try {
+            if (startsWith(buffer, 0, "GIF8")) {
+                return probeGif(buffer);
+            }
+            if (u8(buffer, 0) == 0x89 && startsWith(buffer, 1, "PNG")) {
+                // IHDR is always the first chunk.
+                return new ImageHeader(Format.PNG, u32be(buffer, 16), u32be(buffer, 20), 1);
+            }
+            if (u8(buffer, 0) == 0xFF && u8(buffer, 1) == 0xD8) {
+                return probeJpeg(buffer);
+            }
+            if (startsWith(buffer, 0, "RIFF") && startsWith(buffer, 8, "WEBP")) {
+                return probeWebp(buffer);
+            }
+            if (startsWith(buffer, 0, "BM")) {
+                return new ImageHeader(Format.BMP, u32le(buffer, 18),
+                        Math.abs(u32le(buffer, 22)), 1);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // Truncated header.
+        }
+        return UNKNOWN;
+    }
+
+    @NonNull
+    private static ImageHeader probeGif(@NonNull final ByteBuffer buffer) {
+        final int width = u16le(buffer, 6);
+        final int height = u16le(buffer, 8);
+        final int limit = buffer.limit();
+        int frames = 0;
+        int pos = 13 + colorTableSize(u8(buffer, 10));
+        try {
+            while (pos < limit) {
+                final int block = u8(buffer, pos++);
+                if (block == 0x2C) {
+                    // Image descriptor, then an optional local color table and the LZW code size.
+                    frames++;
+                    pos += 8;
+                    pos += 1 + colorTableSize(u8(buffer, pos));
+                    pos = skipSubBlocks(buffer, pos + 1);
+                } else if (block == 0x21) {
+                    // Extension label, then data sub-blocks.
+                    pos = skipSubBlocks(buffer, pos + 1);
+                } else {
+                    // Trailer or corrupt data.
+                    break;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // Truncated data, count the frames seen so far.
+        }
+        return new ImageHeader(Format.GIF, width, height, frames);
+    }
+
+    @NonNull
+    private static ImageHeader probeJpeg(@NonNull final ByteBuffer buffer) {
+        int pos = 2;
+        while (true) {
+            if (u8(buffer, pos) != 0xFF) {
+                return new ImageHeader(Format.JPEG, SIZE_UNKNOWN, SIZE_UNKNOWN, 1);
+            }
+            // Markers may be preceded by fill bytes.
+            int marker = u8(buffer, ++pos);
+            while (marker == 0xFF) {
+                marker = u8(buffer, ++pos);
+            }
+            pos++;
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD9)) {
+                // Standalone markers have no length.
+                continue;
+            }
+            if (marker >= 0xC0 && marker <= 0xCF
+                    && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                // Start of frame: length, precision, height, width.
+                return new ImageHeader(Format.JPEG, u16be(buffer, pos + 5), u16be(buffer, pos + 3),
+                        1);
+            }
+            pos += u16be(buffer, pos);
+        }
+    }
+
+    @NonNull
+    private static ImageHeader probeWebp(@NonNull final ByteBuffer buffer) {
+        if (startsWith(buffer, 12, "VP8 ")) {
+            return new ImageHeader(Format.WEBP, u16le(buffer, 26) & 0x3FFF,
+                    u16le(buffer, 28) & 0x3FFF, 1);
+        }
+        if (startsWith(buffer, 12, "VP8L")) {
+            final int b1 = u8(buffer, 22);
+            final int b2 = u8(buffer, 23);
+            final int width = 1 + (u8(buffer, 21) | ((b1 & 0x3F) << 8));
+            final int height = 1 + ((b1 >> 6) | (b2 << 2) | ((u8(buffer, 24) & 0x0F) << 10));
+            return new ImageHeader(Format.WEBP, width, height, 1);
+        }
+        if (startsWith(buffer, 12, "VP8X")) {
+            return new ImageHeader(Format.WEBP, 1 + u24le(buffer, 24), 1 + u24le(buffer, 27), 1);
+        }
+        return new ImageHeader(Format.WEBP, SIZE_UNKNOWN, SIZE_UNKNOWN, 1);
+    }
+
+    /**
+     * Returns the size of the color table described by a GIF packed fields byte
+     */
+    private static int colorTableSize(final int packed) {
+        return (packed & 0x80) != 0 ? 3 * (1 << ((packed & 0x07) + 1)) : 0;
+    }
+
+    /**
+     * Returns the position after the sub-blocks starting at pos
+     */
+    private static int skipSubBlocks(@NonNull final ByteBuffer buffer, int pos) {
+        int size;
+        while ((size = u8(buffer, pos)) != 0) {
+            pos += size + 1;
+        }
+        return pos + 1;
+    }
+
+    private static boolean startsWith(@NonNull final ByteBuffer buffer, final int offset,
+            @NonNull final String prefix) {
+        if (buffer.limit() < offset + prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer.get(offset + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int u8(@NonNull final ByteBuffer buffer, final int offset) {
+        return buffer.get(offset) & 0xFF;
+    }
+
+    private static int u16le(@NonNull final ByteBuffer buffer, final int offset) {
+        return u8(buffer, offset) | (u8(buffer, offset + 1) << 8);
+    }
+
+    private static int u16be(@NonNull final ByteBuffer buffer, final int offset) {
+        return (u8(buffer, offset) << 8) | u8(buffer, offset + 1);
+    }
+
+    private static int u24le(@NonNull final ByteBuffer buffer, final int offset) {
+        return u16le(buffer, offset) | (u8(buffer, offset + 2) << 16);
+    }
+
+    private static int u32le(@NonNull final ByteBuffer buffer, final int offset) {
+        return u16le(buffer, offset) | (u16le(buffer, offset + 2) << 16);
+    }
+
+    private static int u32be(@NonNull final ByteBuffer buffer, final int offset) {
+        return (u16be(buffer, offset) << 16) | u16be(buffer, offset + 2);
+    }
+
+    @Override
+    public String toString() {
+        return "ImageHeader[" + mFormat + ',' + mWidth + 'x' + mHeight + ",frames=" + mFrameCount
+                + ']';
+    }
+}
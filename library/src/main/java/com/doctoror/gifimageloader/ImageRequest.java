@@ -17,6 +17,8 @@
 
 package com.doctoror.gifimageloader;
 
+import com.android.volley.AuthFailureError;
+import com.android.volley.Cache;
 import com.android.volley.DefaultRetryPolicy;
 import com.android.volley.NetworkResponse;
 import com.android.volley.ParseError;
@@ -24,17 +26,34 @@ import com.android.volley.Request;
 import com.android.volley.Response;
 import com.android.volley.VolleyLog;
 import com.android.volley.toolbox.HttpHeaderParser;
-import com.doctoror.imagefactory.ImageFactory;
 
+import android.annotation.TargetApi;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pl.droidsonroids.gif.GifDrawable;
+import pl.droidsonroids.gif.GifDrawableBuilder;
 
 /**
  * Like a Volley {@link com.android.volley.toolbox.ImageRequest}, but works with Drawable
@@ -50,13 +69,61 @@ public class ImageRequest extends Request<Drawable> {
     /** Default backoff multiplier for image requests */
     private static final float IMAGE_BACKOFF_MULT = 2f;
 
+    /** Size of the buffer used for copying a streamed body to the spool file */
+    private static final int STREAM_BUFFER_SIZE = 8192;
+
+    /**
+     * Limit of the bitmap copies waiting to be written to the disk cache. Results decoded while
+     * it is reached are not stored.
+     */
+    private static final long MAX_PENDING_DISK_WRITE_BYTES = 4 * 1024 * 1024;
+
+    /** Total size of the bitmap copies waiting to be written to the disk cache */
+    private static final AtomicLong sPendingDiskWriteBytes = new AtomicLong();
+
     private final Response.Listener<Drawable> mListener;
     private final Bitmap.Config mDecodeConfig;
     private final int mMaxWidth;
     private final int mMaxHeight;
 
-    /** Decoding lock so that we don't decode more than one image at a time (to avoid OOM's) */
-    private static final Object sDecodeLock = new Object();
+    /** Priority of this request, LOW unless set */
+    private volatile Priority mPriority = Priority.LOW;
+
+    /** True if the body should be streamed by {@link StreamingNetwork} instead of buffered */
+    private boolean mStreaming;
+
+    /** The response decoded by {@link #parseNetworkStream(InputStream, Map, File)}, if any */
+    private volatile Response<Drawable> mStreamedResponse;
+
+    /** Limits the memory used by concurrent decodes (to avoid OOM's) */
+    private DecodeScheduler mDecodeScheduler = DecodeScheduler.getDefault();
+
+    /** The resources decoded bitmaps take their density from */
+    private Resources mResources = Resources.getSystem();
+
+    /** Pool of bitmaps to decode into, if any */
+    private BitmapPool mBitmapPool;
+
+    /** Disk cache to store the downsampled result in, if any */
+    private DiskDrawableCache mDiskCache;
+
+    /** Executor to write to the disk cache on, if any */
+    private Executor mDiskExecutor;
+
+    /** Receives the first frame preview of a streamed GIF, if set */
+    private Response.Listener<Drawable> mPreviewListener;
+
+    /** Receives network and decode events, if set */
+    private EventListener mEventListener;
+
+    /** The validators of the cached image this request revalidates, if any */
+    private ImageValidators mRevalidation;
+
+    /** The cached image to keep if the server answers 304 Not Modified */
+    private Drawable mRevalidatedImage;
+
+    /** The validators of the response, set when it is parsed */
+    private volatile ImageValidators mValidators;
 
     /**
      * Creates a new image request, decoding to a maximum specified width and
@@ -90,9 +157,156 @@ public class ImageRequest extends Request<Drawable> {
         mMaxHeight = maxHeight;
     }
 
+    @Override
+    public void cancel() {
+        super.cancel();
+        // Let a decode waiting for the memory budget give up.
+        mDecodeScheduler.onRequestCanceled();
+    }
+
     @Override
     public Priority getPriority() {
-        return Priority.LOW;
+        return mPriority;
+    }
+
+    /**
+     * Sets the priority of this request. Volley orders requests by priority when they are added
+     * to the RequestQueue, so changing it afterwards has no effect there.
+     *
+     * @param priority The priority to use
+     */
+    public void setPriority(@NonNull final Priority priority) {
+        mPriority = priority;
+    }
+
+    /**
+     * Sets the scheduler that limits the memory used by concurrent decodes. By default
+     * {@link DecodeScheduler#getDefault()} is used.
+     *
+     * @param decodeScheduler The scheduler to use
+     */
+    public void setDecodeScheduler(@NonNull final DecodeScheduler decodeScheduler) {
+        mDecodeScheduler = decodeScheduler;
+    }
+
+    /**
+     * Sets the resources decoded bitmaps take their density from. By default
+     * {@link Resources#getSystem()} is used.
+     *
+     * @param resources The resources to use
+     */
+    public void setResources(@NonNull final Resources resources) {
+        mResources = resources;
+    }
+
+    /**
+     * Sets the pool to take bitmaps for {@link BitmapFactory.Options#inBitmap} from. Bitmaps
+     * allocated while resizing are returned to it.
+     *
+     * @param bitmapPool The pool to use, or null to always allocate new bitmaps
+     */
+    public void setBitmapPool(@Nullable final BitmapPool bitmapPool) {
+        mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * Sets the disk cache the downsampled result is stored in after a successful decode.
+     *
+     * @param diskCache The disk cache to use, or null to not store the result
+     */
+    public void setDiskCache(@Nullable final DiskDrawableCache diskCache) {
+        mDiskCache = diskCache;
+    }
+
+    /**
+     * Sets the executor the result is written to the disk cache on, so that the network thread
+     * is free for the next request. By default the result is written on the network thread.
+     *
+     * @param diskExecutor The executor to use, or null to write on the network thread
+     */
+    public void setDiskExecutor(@Nullable final Executor diskExecutor) {
+        mDiskExecutor = diskExecutor;
+    }
+
+    /**
+     * Sets the listener to receive the network and decode events of this request.
+     *
+     * @param eventListener The listener to use, or null to not measure events
+     */
+    public void setEventListener(@Nullable final EventListener eventListener) {
+        mEventListener = eventListener;
+    }
+
+    /**
+     * Sets whether the response body should be streamed to the decoder instead of being buffered
+     * into a byte array. Has effect only when the {@link com.android.volley.RequestQueue} uses
+     * {@link StreamingNetwork}. Streamed responses bypass the Volley disk cache.
+     *
+     * @param streaming True to stream the response body
+     */
+    public void setStreaming(final boolean streaming) {
+        mStreaming = streaming;
+        setShouldCache(!streaming);
+    }
+
+    /**
+     * Returns true if the response body should be streamed to the decoder
+     */
+    public boolean isStreaming() {
+        return mStreaming;
+    }
+
+    /**
+     * Makes this a conditional request that revalidates a cached image. If the server answers
+     * 304 Not Modified, the cached image is delivered again without decoding anything.
+     * Conditional requests bypass the Volley disk cache, since Volley would otherwise answer
+     * them from its own cache entry.
+     *
+     * @param validators  The validators of the cached image
+     * @param cachedImage The cached image to deliver if it was not modified
+     */
+    void setRevalidation(@NonNull final ImageValidators validators,
+            @NonNull final Drawable cachedImage) {
+        mRevalidation = validators;
+        mRevalidatedImage = cachedImage;
+        setShouldCache(false);
+    }
+
+    /**
+     * Returns true if this is a conditional request revalidating a cached image
+     */
+    boolean isRevalidation() {
+        return mRevalidation != null;
+    }
+
+    /**
+     * Returns the validators of the response, or null if it had none or was not received yet
+     */
+    @Nullable
+    ImageValidators getValidators() {
+        return mValidators;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        final ImageValidators revalidation = mRevalidation;
+        if (revalidation == null) {
+            return super.getHeaders();
+        }
+        final Map<String, String> headers = new HashMap<>(super.getHeaders());
+        revalidation.addConditionalHeaders(headers);
+        return headers;
+    }
+
+    /**
+     * Sets the listener to receive a static preview of a streamed GIF, decoded from the first
+     * frame as soon as its bytes have arrived. The listener is called on the network thread,
+     * before the response is delivered. Has effect only for streamed responses.
+     *
+     * @param previewListener The listener to use, or null to not decode previews
+     */
+    public void setPreviewListener(@Nullable final Response.Listener<Drawable> previewListener) {
+        mPreviewListener = previewListener;
     }
 
     /**
@@ -106,7 +320,7 @@ public class ImageRequest extends Request<Drawable> {
      * @param actualPrimary   Actual size of the primary dimension
      * @param actualSecondary Actual size of the secondary dimension
      */
-    private static int getResizedDimension(int maxPrimary, int maxSecondary, int actualPrimary,
+    static int getResizedDimension(int maxPrimary, int maxSecondary, int actualPrimary,
             int actualSecondary) {
         // If no dominant value at all, just return the actual.
         if (maxPrimary == 0 && maxSecondary == 0) {
@@ -133,80 +347,616 @@ public class ImageRequest extends Request<Drawable> {
 
     @Override
     protected Response<Drawable> parseNetworkResponse(final NetworkResponse response) {
-        // Serialize all decode on a global lock to reduce concurrent heap usage.
-        synchronized (sDecodeLock) {
+        final Drawable revalidatedImage = mRevalidatedImage;
+        if (revalidatedImage != null && response.notModified) {
+            // The cached image is still valid, there is nothing to decode.
+            mValidators = mRevalidation.refresh(response);
+            refreshDiskCache(response);
+            if (mEventListener != null) {
+                mEventListener.networkEnd(getUrl(), response.networkTimeMs * 1000000L, 0);
+            }
+            return Response.success(revalidatedImage, null);
+        }
+        mValidators = ImageValidators.parse(response);
+
+        // The body was already decoded while it was being read from the connection.
+        final Response<Drawable> streamedResponse = mStreamedResponse;
+        if (streamedResponse != null) {
+            mStreamedResponse = null;
+            return streamedResponse;
+        }
+        if (mEventListener != null) {
+            mEventListener.networkEnd(getUrl(), response.networkTimeMs * 1000000L,
+                    response.data.length);
+        }
+        try {
+            return doParse(response.data, null,
+                    HttpHeaderParser.parseCacheHeaders(response), response);
+        } catch (OutOfMemoryError e) {
+            VolleyLog.e("Caught OOM for %d byte image, url=%s", response.data.length, getUrl());
+            return Response.error(new ParseError(e));
+        }
+    }
+
+    /**
+     * Reads the response body from the connection stream into a spool file through a fixed size
+     * buffer and decodes the image from that file, so the body is never held on the Java heap.
+     * The result is returned later from {@link #parseNetworkResponse(NetworkResponse)}.
+     *
+     * @param body     The response body stream
+     * @param headers  The response headers
+     * @param spoolDir The directory to spool the body to
+     * @throws IOException if reading the body or writing the spool file fails
+     */
+    void parseNetworkStream(final InputStream body, final Map<String, String> headers,
+            final File spoolDir) throws IOException {
+        if (!spoolDir.exists() && !spoolDir.mkdirs()) {
+            throw new IOException("Could not create spool directory " + spoolDir);
+        }
+        final File spoolFile = File.createTempFile("stream", null, spoolDir);
+        final long readStartNs = mEventListener != null ? System.nanoTime() : 0;
+        try {
+            final OutputStream out = new FileOutputStream(spoolFile);
+            try {
+                final byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                GifFrameScanner scanner = mPreviewListener != null ? new GifFrameScanner() : null;
+                boolean firstRead = true;
+                int read;
+                while ((read = body.read(buffer)) != -1) {
+                    if (isCanceled()) {
+                        // Nobody wants the image, stop downloading it.
+                        mStreamedResponse = abortDecode(null);
+                        return;
+                    }
+                    out.write(buffer, 0, read);
+                    if (scanner != null) {
+                        if (scanner.scan(buffer, 0, read)) {
+                            // A first frame that arrives with the first read belongs to a small
+                            // image, which will be decoded in full right away.
+                            if (!firstRead) {
+                                deliverPreview(spoolFile, scanner.getWidth(),
+                                        scanner.getHeight());
+                            }
+                            scanner = null;
+                        } else if (scanner.isInvalid()) {
+                            scanner = null;
+                        }
+                    }
+                    firstRead = false;
+                }
+            } finally {
+                out.close();
+            }
+            if (mEventListener != null) {
+                mEventListener.networkEnd(getUrl(), System.nanoTime() - readStartNs,
+                        spoolFile.length());
+            }
+
             try {
-                return doParse(response);
+                // Streamed responses are not cached by Volley. The entry is for the L2 cache.
+                final Cache.Entry cacheEntry = HttpHeaderParser.parseCacheHeaders(
+                        ImageValidators.withCaseInsensitiveHeaders(
+                                new NetworkResponse(HttpURLConnection.HTTP_OK, null, headers,
+                                        false)));
+                mStreamedResponse = doParse(null, spoolFile, cacheEntry, null);
             } catch (OutOfMemoryError e) {
-                VolleyLog.e("Caught OOM for %d byte image, url=%s", response.data.length, getUrl());
-                return Response.error(new ParseError(e));
+                VolleyLog.e("Caught OOM for %d byte image, url=%s", spoolFile.length(), getUrl());
+                mStreamedResponse = Response.error(new ParseError(e));
             }
+        } finally {
+            // A GifDrawable keeps the file open, so its data stays readable after unlinking.
+            //noinspection ResultOfMethodCallIgnored
+            spoolFile.delete();
+        }
+    }
+
+    /**
+     * Decodes the first frame of a partially spooled GIF to a static bitmap at the requested size
+     * and passes it to the preview listener. Failures are ignored, the full decode follows.
+     *
+     * @param spoolFile The spool file, holding at least the complete first frame
+     * @param width     The logical screen width of the GIF
+     * @param height    The logical screen height of the GIF
+     */
+    private void deliverPreview(@NonNull final File spoolFile, final int width,
+            final int height) {
+        final Response.Listener<Drawable> previewListener = mPreviewListener;
+        if (previewListener == null || width <= 0 || height <= 0) {
+            return;
+        }
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = getSampleSize(mMaxWidth, mMaxHeight, width, height);
+        options.inPreferredConfig = mDecodeConfig;
+        // The preview is optional, so it is skipped rather than waiting for the budget.
+        final long cost = DecodeScheduler.estimateDecodedBytes(width / options.inSampleSize,
+                height / options.inSampleSize, DecodeScheduler.getBytesPerPixel(mDecodeConfig));
+        final DecodeScheduler scheduler = mDecodeScheduler;
+        if (!scheduler.tryAcquire(cost)) {
+            return;
+        }
+        final Bitmap bitmap;
+        try {
+            // The decoder reads only the first frame, so the missing tail does not matter.
+            bitmap = BitmapFactory.decodeFile(spoolFile.getPath(), options);
+        } catch (OutOfMemoryError e) {
+            VolleyLog.e("Caught OOM for preview of %dx%d image, url=%s", width, height,
+                    getUrl());
+            return;
+        } finally {
+            scheduler.release(cost);
+        }
+        if (bitmap != null && !isCanceled()) {
+            previewListener.onResponse(new BitmapDrawable(mResources, bitmap));
         }
     }
 
     /**
      * The real guts of parseNetworkResponse. Broken out for readability.
+     *
+     * @param data       The encoded image, or null if decoding from file
+     * @param file       The file containing the encoded image, or null if decoding from data
+     * @param cacheEntry The cache entry for the successful response
+     * @param response   The network response to report in errors, if any
      */
-    private Response<Drawable> doParse(final NetworkResponse response) {
-        final byte[] data = response.data;
-        boolean isAnimated;
+    private Response<Drawable> doParse(final byte[] data, final File file,
+            final Cache.Entry cacheEntry, final NetworkResponse response) {
+        if (isCanceled()) {
+            return abortDecode(response);
+        }
+
+        // Read the format and natural bounds in one pass over the header bytes. They choose the
+        // decode path and estimate how much memory the decode takes.
+        final ImageHeader header;
         try {
-            isAnimated = ImageFactory.isAnimatedGif(new BufferedInputStream(new ByteArrayInputStream(data)));
+            header = data != null ? ImageHeader.probe(data) : ImageHeader.probe(file);
         } catch (IOException e) {
-            isAnimated = false;
+            return Response.error(new ParseError(e));
+        }
+        final boolean isAnimated = header.isAnimated();
+
+        final BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+        final int actualWidth;
+        final int actualHeight;
+        if (header.hasSize()) {
+            actualWidth = header.getWidth();
+            actualHeight = header.getHeight();
+        } else {
+            // A format the probe does not know, let the decoder read the bounds.
+            decodeOptions.inJustDecodeBounds = true;
+            decodeBitmap(data, file, decodeOptions);
+            actualWidth = decodeOptions.outWidth;
+            actualHeight = decodeOptions.outHeight;
+            decodeOptions.inJustDecodeBounds = false;
         }
+
+        final long cost;
+        final int gifSampleSize = isAnimated
+                ? getSampleSize(mMaxWidth, mMaxHeight, actualWidth, actualHeight) : 1;
         if (isAnimated) {
-            try {
-                return Response.success(ImageFactory.decodeByteArrayOrThrow(null, data, null),
-                        HttpHeaderParser.parseCacheHeaders(response));
-            } catch (Exception e) {
-                return Response.error(new ParseError());
+            // GifDrawable renders every frame into a single ARGB_8888 buffer.
+            cost = DecodeScheduler.estimateDecodedBytes(actualWidth / gifSampleSize,
+                    actualHeight / gifSampleSize,
+                    DecodeScheduler.getBytesPerPixel(Bitmap.Config.ARGB_8888));
+        } else {
+            cost = estimateStaticDecodeBytes(actualWidth, actualHeight);
+        }
+
+        // Wait until the decode fits the memory budget, unless the request was canceled in the
+        // meantime.
+        final DecodeScheduler scheduler = mDecodeScheduler;
+        if (isCanceled()) {
+            return abortDecode(response);
+        }
+        final EventListener eventListener = mEventListener;
+        final long waitStartNs = eventListener != null ? System.nanoTime() : 0;
+        try {
+            if (!scheduler.acquire(cost, this)) {
+                return abortDecode(response);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Response.error(new ParseError(e));
+        }
+        final long decodeStartNs = eventListener != null ? System.nanoTime() : 0;
+        final Response<Drawable> result;
+        try {
+            // The wait may have been long.
+            if (isCanceled()) {
+                return abortDecode(response);
             }
+            result = isAnimated
+                    ? decodeAnimated(data, file, gifSampleSize, cacheEntry)
+                    : decodeStatic(data, file, actualWidth, actualHeight, decodeOptions,
+                            cacheEntry, response);
+            if (eventListener != null) {
+                eventListener.decodeEnd(getUrl(), decodeStartNs - waitStartNs,
+                        System.nanoTime() - decodeStartNs);
+            }
+        } finally {
+            scheduler.release(cost);
+        }
+        // Stored outside of the budget, writing takes no decode memory.
+        if (result.isSuccess() && cacheEntry != null) {
+            storeInDiskCache(result.result, data, file, cacheEntry);
+        }
+        return result;
+    }
+
+    /**
+     * Extends the expiry of the image in the disk cache, if any, after a 304 Not Modified
+     * response, so that it is not loaded again when the expiry it was stored with passes
+     */
+    private void refreshDiskCache(@NonNull final NetworkResponse notModified) {
+        final DiskDrawableCache diskCache = mDiskCache;
+        if (diskCache == null) {
+            return;
+        }
+        final Cache.Entry cacheEntry = HttpHeaderParser.parseCacheHeaders(
+                ImageValidators.withCaseInsensitiveHeaders(notModified));
+        final String url = getUrl();
+        final int maxWidth = mMaxWidth;
+        final int maxHeight = mMaxHeight;
+        final Runnable refresh = new Runnable() {
+            @Override
+            public void run() {
+                diskCache.refresh(url, maxWidth, maxHeight, cacheEntry);
+            }
+        };
+        if (mDiskExecutor != null) {
+            mDiskExecutor.execute(refresh);
         } else {
-            final BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+            refresh.run();
+        }
+    }
+
+    /**
+     * Stores the decoded image in the disk cache, if any, on the disk executor if set
+     *
+     * @param drawable   The decoded image
+     * @param data       The encoded image, or null if decoded from file
+     * @param file       The file containing the encoded image, or null if decoded from data
+     * @param cacheEntry The cache entry for the successful response
+     */
+    private void storeInDiskCache(@NonNull final Drawable drawable, @Nullable final byte[] data,
+            @Nullable final File file, @NonNull final Cache.Entry cacheEntry) {
+        final DiskDrawableCache diskCache = mDiskCache;
+        if (diskCache == null) {
+            return;
+        }
+        final Executor diskExecutor = mDiskExecutor;
+        final String url = getUrl();
+        if (diskExecutor == null) {
+            if (drawable instanceof BitmapDrawable) {
+                diskCache.putBitmap(url, mMaxWidth, mMaxHeight,
+                        ((BitmapDrawable) drawable).getBitmap(), cacheEntry);
+            } else if (file != null) {
+                diskCache.putGif(url, mMaxWidth, mMaxHeight, file, cacheEntry);
+            } else if (data != null) {
+                diskCache.putGif(url, mMaxWidth, mMaxHeight, data, cacheEntry);
+            }
+            return;
+        }
+        final Runnable write = drawable instanceof BitmapDrawable
+                ? newBitmapWrite(diskCache, url, ((BitmapDrawable) drawable).getBitmap(),
+                        cacheEntry)
+                : newGifWrite(diskCache, url, data, file, cacheEntry);
+        if (write != null) {
+            diskExecutor.execute(write);
+        }
+    }
+
+    /**
+     * Returns a task that writes the GIF to the disk cache, or null if it can not be stored.
+     * A spool file is taken over by the task, the stream parser deletes it when the decode
+     * returns.
+     */
+    @Nullable
+    private Runnable newGifWrite(@NonNull final DiskDrawableCache diskCache,
+            @NonNull final String url, @Nullable final byte[] data, @Nullable final File file,
+            @NonNull final Cache.Entry cacheEntry) {
+        final int maxWidth = mMaxWidth;
+        final int maxHeight = mMaxHeight;
+        if (data != null) {
+            // The drawable keeps the data and never changes it.
+            return new Runnable() {
+                @Override
+                public void run() {
+                    diskCache.putGif(url, maxWidth, maxHeight, data, cacheEntry);
+                }
+            };
+        }
+        if (file == null) {
+            return null;
+        }
+        final File taken = new File(file.getPath() + ".l2");
+        if (!file.renameTo(taken)) {
+            return null;
+        }
+        return new Runnable() {
+            @Override
+            public void run() {
+                diskCache.putGif(url, maxWidth, maxHeight, taken, cacheEntry);
+                //noinspection ResultOfMethodCallIgnored
+                taken.delete();
+            }
+        };
+    }
+
+    /**
+     * Returns a task that writes the bitmap to the disk cache, or null if it should not be
+     * stored. A mutable bitmap may go to the bitmap pool and be decoded into before the task
+     * runs, so an immutable copy is written instead, within {@link #MAX_PENDING_DISK_WRITE_BYTES}.
+     */
+    @Nullable
+    private Runnable newBitmapWrite(@NonNull final DiskDrawableCache diskCache,
+            @NonNull final String url, @NonNull final Bitmap bitmap,
+            @NonNull final Cache.Entry cacheEntry) {
+        final int maxWidth = mMaxWidth;
+        final int maxHeight = mMaxHeight;
+        if (!bitmap.isMutable()) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    diskCache.putBitmap(url, maxWidth, maxHeight, bitmap, cacheEntry);
+                }
+            };
+        }
+        final Bitmap.Config config = bitmap.getConfig();
+        final long bytes = (long) bitmap.getRowBytes() * bitmap.getHeight();
+        if (config == null || sPendingDiskWriteBytes.addAndGet(bytes)
+                > MAX_PENDING_DISK_WRITE_BYTES) {
+            sPendingDiskWriteBytes.addAndGet(-bytes);
+            return null;
+        }
+        final Bitmap copy;
+        try {
+            copy = bitmap.copy(config, false);
+        } catch (OutOfMemoryError e) {
+            sPendingDiskWriteBytes.addAndGet(-bytes);
+            return null;
+        }
+        if (copy == null) {
+            sPendingDiskWriteBytes.addAndGet(-bytes);
+            return null;
+        }
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    diskCache.putBitmap(url, maxWidth, maxHeight, copy, cacheEntry);
+                } finally {
+                    sPendingDiskWriteBytes.addAndGet(-bytes);
+                    copy.recycle();
+                }
+            }
+        };
+    }
+
+    /**
+     * Scales a larger decoded variant of the image down to the requested size instead of loading
+     * it, within the decode budget and into a pooled bitmap if possible. Blocks while waiting for
+     * the budget.
+     *
+     * @param source The bitmap of the larger variant, which must not be recycled meanwhile
+     */
+    @NonNull
+    Response<Drawable> scaleDown(@NonNull final Bitmap source) {
+        final int desiredWidth = getResizedDimension(mMaxWidth, mMaxHeight,
+                source.getWidth(), source.getHeight());
+        final int desiredHeight = getResizedDimension(mMaxHeight, mMaxWidth,
+                source.getHeight(), source.getWidth());
+        final long cost = DecodeScheduler.estimateDecodedBytes(desiredWidth, desiredHeight,
+                DecodeScheduler.getBytesPerPixel(source.getConfig()));
+        final DecodeScheduler scheduler = mDecodeScheduler;
+        if (isCanceled()) {
+            return abortDecode(null);
+        }
+        final EventListener eventListener = mEventListener;
+        final long waitStartNs = eventListener != null ? System.nanoTime() : 0;
+        try {
+            if (!scheduler.acquire(cost, this)) {
+                return abortDecode(null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Response.error(new ParseError(e));
+        }
+        final long decodeStartNs = eventListener != null ? System.nanoTime() : 0;
+        try {
+            if (isCanceled()) {
+                return abortDecode(null);
+            }
             final Bitmap bitmap;
-            if (mMaxWidth == 0 && mMaxHeight == 0) {
-                decodeOptions.inPreferredConfig = mDecodeConfig;
-                bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
+            try {
+                bitmap = scaleBitmap(source, desiredWidth, desiredHeight);
+            } catch (OutOfMemoryError e) {
+                VolleyLog.e("Caught OOM for scaling to %dx%d, url=%s", desiredWidth,
+                        desiredHeight, getUrl());
+                return Response.error(new ParseError(e));
+            }
+            if (eventListener != null) {
+                eventListener.decodeEnd(getUrl(), decodeStartNs - waitStartNs,
+                        System.nanoTime() - decodeStartNs);
+            }
+            return Response.success((Drawable) new BitmapDrawable(mResources, bitmap),
+                    null);
+        } finally {
+            scheduler.release(cost);
+        }
+    }
+
+    /**
+     * Counts a decode abandoned because the request was canceled, and returns an error response
+     * for it. Volley does not deliver responses of canceled requests.
+     */
+    private Response<Drawable> abortDecode(final NetworkResponse response) {
+        mDecodeScheduler.onDecodeAborted();
+        return Response.error(new ParseError(response));
+    }
+
+    private Response<Drawable> decodeAnimated(final byte[] data, final File file,
+            final int sampleSize, final Cache.Entry cacheEntry) {
+        try {
+            // Frames are decoded at the reduced size, like the sampled static decode.
+            final GifDrawableBuilder builder = new GifDrawableBuilder().sampleSize(sampleSize);
+            final GifDrawable drawable;
+            if (file != null) {
+                drawable = builder.from(file).build();
+                FileBackedGifs.mark(drawable);
             } else {
-                // If we have to resize this image, first get the natural bounds.
-                decodeOptions.inJustDecodeBounds = true;
-                BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
-                int actualWidth = decodeOptions.outWidth;
-                int actualHeight = decodeOptions.outHeight;
-
-                // Then compute the dimensions we would ideally like to decode to.
-                int desiredWidth = getResizedDimension(mMaxWidth, mMaxHeight,
-                        actualWidth, actualHeight);
-                int desiredHeight = getResizedDimension(mMaxHeight, mMaxWidth,
-                        actualHeight, actualWidth);
-
-                // Decode to the nearest power of two scaling factor.
-                decodeOptions.inJustDecodeBounds = false;
-                decodeOptions.inSampleSize =
-                        findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
-                Bitmap tempBitmap =
-                        BitmapFactory.decodeByteArray(data, 0, data.length, decodeOptions);
-
-                // If necessary, scale down to the maximal acceptable size.
-                if (tempBitmap != null && (tempBitmap.getWidth() > desiredWidth ||
-                        tempBitmap.getHeight() > desiredHeight)) {
-                    bitmap = Bitmap.createScaledBitmap(tempBitmap,
-                            desiredWidth, desiredHeight, true);
-                    tempBitmap.recycle();
-                } else {
-                    bitmap = tempBitmap;
-                }
+                drawable = builder.from(data).build();
             }
+            return Response.<Drawable>success(drawable, cacheEntry);
+        } catch (Exception e) {
+            return Response.error(new ParseError());
+        }
+    }
 
-            if (bitmap == null) {
-                return Response.error(new ParseError(response));
+    private Response<Drawable> decodeStatic(final byte[] data, final File file,
+            final int actualWidth, final int actualHeight,
+            final BitmapFactory.Options decodeOptions,
+            final Cache.Entry cacheEntry, final NetworkResponse response) {
+        final Bitmap bitmap;
+        if (mMaxWidth == 0 && mMaxHeight == 0) {
+            decodeOptions.inPreferredConfig = mDecodeConfig;
+            bitmap = decodeBitmapReusing(data, file, decodeOptions, actualWidth, actualHeight);
+        } else {
+            // Compute the dimensions we would ideally like to decode to.
+            int desiredWidth = getResizedDimension(mMaxWidth, mMaxHeight,
+                    actualWidth, actualHeight);
+            int desiredHeight = getResizedDimension(mMaxHeight, mMaxWidth,
+                    actualHeight, actualWidth);
+
+            // Decode to the nearest power of two scaling factor.
+            decodeOptions.inSampleSize =
+                    findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
+            final int sampleSize = decodeOptions.inSampleSize;
+            Bitmap tempBitmap = decodeBitmapReusing(data, file, decodeOptions,
+                    (actualWidth + sampleSize - 1) / sampleSize,
+                    (actualHeight + sampleSize - 1) / sampleSize);
+
+            // If necessary, scale down to the maximal acceptable size.
+            if (tempBitmap != null && (tempBitmap.getWidth() > desiredWidth ||
+                    tempBitmap.getHeight() > desiredHeight)) {
+                if (isCanceled()) {
+                    if (mBitmapPool == null || !mBitmapPool.put(tempBitmap)) {
+                        tempBitmap.recycle();
+                    }
+                    return abortDecode(response);
+                }
+                bitmap = scaleBitmap(tempBitmap, desiredWidth, desiredHeight);
+                if (mBitmapPool == null || !mBitmapPool.put(tempBitmap)) {
+                    tempBitmap.recycle();
+                }
             } else {
-                return Response
-                        .success((Drawable) new BitmapDrawable(Resources.getSystem(), bitmap),
-                                HttpHeaderParser.parseCacheHeaders(response));
+                bitmap = tempBitmap;
             }
         }
+
+        if (bitmap == null) {
+            return Response.error(new ParseError(response));
+        } else {
+            return Response
+                    .success((Drawable) new BitmapDrawable(mResources, bitmap),
+                            cacheEntry);
+        }
+    }
+
+    /**
+     * Estimates the peak memory of a static decode. When resizing, both the sampled bitmap and
+     * the scaled bitmap exist at the same time.
+     */
+    private long estimateStaticDecodeBytes(final int actualWidth, final int actualHeight) {
+        if (actualWidth <= 0 || actualHeight <= 0) {
+            return 0;
+        }
+        if (mMaxWidth == 0 && mMaxHeight == 0) {
+            return DecodeScheduler.estimateDecodedBytes(actualWidth, actualHeight,
+                    DecodeScheduler.getBytesPerPixel(mDecodeConfig));
+        }
+        // The resize path decodes with the default config.
+        final int bytesPerPixel = DecodeScheduler.getBytesPerPixel(null);
+        final int desiredWidth = getResizedDimension(mMaxWidth, mMaxHeight,
+                actualWidth, actualHeight);
+        final int desiredHeight = getResizedDimension(mMaxHeight, mMaxWidth,
+                actualHeight, actualWidth);
+        final int sampleSize =
+                findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
+        return DecodeScheduler.estimateDecodedBytes(actualWidth / sampleSize,
+                actualHeight / sampleSize, bytesPerPixel)
+                + DecodeScheduler.estimateDecodedBytes(desiredWidth, desiredHeight,
+                bytesPerPixel);
+    }
+
+    /**
+     * Decodes a bitmap into a pooled bitmap if the pool has one that fits, falling back to a new
+     * allocation if the pooled bitmap can not be reused for this image.
+     *
+     * @param width  The expected decoded width
+     * @param height The expected decoded height
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private Bitmap decodeBitmapReusing(final byte[] data, final File file,
+            final BitmapFactory.Options options, final int width, final int height) {
+        final BitmapPool pool = mBitmapPool;
+        if (pool == null || !BitmapPool.isReuseSupported()) {
+            return decodeBitmap(data, file, options);
+        }
+        // Pooled bitmaps must be mutable.
+        options.inMutable = true;
+        // Before KitKat only exact size bitmaps can be reused, which sampling does not produce.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT && options.inSampleSize > 1) {
+            return decodeBitmap(data, file, options);
+        }
+        final Bitmap reusable = pool.get(width, height, options.inPreferredConfig != null
+                ? options.inPreferredConfig : Bitmap.Config.ARGB_8888);
+        if (reusable == null) {
+            return decodeBitmap(data, file, options);
+        }
+        options.inBitmap = reusable;
+        Bitmap bitmap;
+        try {
+            bitmap = decodeBitmap(data, file, options);
+        } catch (IllegalArgumentException e) {
+            bitmap = null;
+        }
+        if (bitmap == null) {
+            // The pooled bitmap could not be reused for this image, so give it back.
+            options.inBitmap = null;
+            pool.put(reusable);
+            bitmap = decodeBitmap(data, file, options);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Scales the bitmap into a pooled bitmap if the pool has one that fits, or into a new one.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private Bitmap scaleBitmap(@NonNull final Bitmap source, final int width, final int height) {
+        final BitmapPool pool = mBitmapPool;
+        final Bitmap.Config config = source.getConfig();
+        final Bitmap target = pool != null && config != null
+                ? pool.get(width, height, config) : null;
+        if (target == null) {
+            return Bitmap.createScaledBitmap(source, width, height, true);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Since KitKat the pooled bitmap may be larger than requested.
+            target.reconfigure(width, height, config);
+        }
+        target.eraseColor(Color.TRANSPARENT);
+        final Rect dst = new Rect(0, 0, width, height);
+        new Canvas(target).drawBitmap(source, null, dst, new Paint(Paint.FILTER_BITMAP_FLAG));
+        return target;
+    }
+
+    private static Bitmap decodeBitmap(final byte[] data, final File file,
+            final BitmapFactory.Options options) {
+        if (file != null) {
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        }
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
     }
 
     @Override
@@ -214,6 +964,27 @@ public class ImageRequest extends Request<Drawable> {
         mListener.onResponse(response);
     }
 
+    /**
+     * Returns the sample size to decode an image of the actual size to fit the max size, or 1 if
+     * the max size is unbounded or the actual size is unknown.
+     *
+     * @param maxWidth     Maximum width to decode to, or zero for none
+     * @param maxHeight    Maximum height to decode to, or zero for none
+     * @param actualWidth  Actual width of the image
+     * @param actualHeight Actual height of the image
+     */
+    static int getSampleSize(final int maxWidth, final int maxHeight, final int actualWidth,
+            final int actualHeight) {
+        if ((maxWidth == 0 && maxHeight == 0) || actualWidth <= 0 || actualHeight <= 0) {
+            return 1;
+        }
+        final int desiredWidth = getResizedDimension(maxWidth, maxHeight,
+                actualWidth, actualHeight);
+        final int desiredHeight = getResizedDimension(maxHeight, maxWidth,
+                actualHeight, actualWidth);
+        return findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
+    }
+
     /**
      * Returns the largest power-of-two divisor for use in downscaling a bitmap
      * that will not result in the scaling past the desired dimensions.
@@ -223,7 +994,7 @@ public class ImageRequest extends Request<Drawable> {
      * @param desiredWidth  Desired width of the bitmap
      * @param desiredHeight Desired height of the bitmap
      */
-    private static int findBestSampleSize(
+    static int findBestSampleSize(
             int actualWidth, int actualHeight, int desiredWidth, int desiredHeight) {
         double wr = (double) actualWidth / desiredWidth;
         double hr = (double) actualHeight / desiredHeight;
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The ETag and Last-Modified validators of a decoded image and the time it goes stale, taken from
+ * the response headers, for revalidating the image with a conditional request instead of loading
+ * and decoding it again.
+ */
+final class ImageValidators {
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+    private final String mETag;
+    private final String mLastModified;
+
+    /** When the image goes stale, in {@link System#currentTimeMillis()} time */
+    private final long mStaleAtMs;
+
+    private ImageValidators(@Nullable final String eTag, @Nullable final String lastModified,
+            final long staleAtMs) {
+        mETag = eTag;
+        mLastModified = lastModified;
+        mStaleAtMs = staleAtMs;
+    }
+
+    /**
+     * Returns the validators of the response, or null if it has none and so can not be
+     * revalidated. The freshness lifetime is computed like Volley does for its cache entries.
+     */
+    @Nullable
+    static ImageValidators parse(@NonNull final NetworkResponse response) {
+        final NetworkResponse headers = withCaseInsensitiveHeaders(response);
+        final String eTag = headers.headers.get(HEADER_ETAG);
+        final String lastModified = headers.headers.get(HEADER_LAST_MODIFIED);
+        if (eTag == null && lastModified == null) {
+            return null;
+        }
+        return new ImageValidators(eTag, lastModified,
+                HttpHeaderParser.parseCacheHeaders(headers).softTtl);
+    }
+
+    /**
+     * Returns validators stored with an image, or null if there are none
+     *
+     * @param eTag         The ETag, or null
+     * @param lastModified The Last-Modified date, or null
+     * @param staleAtMs    When the image goes stale, in {@link System#currentTimeMillis()} time
+     */
+    @Nullable
+    static ImageValidators create(@Nullable final String eTag,
+            @Nullable final String lastModified, final long staleAtMs) {
+        if (eTag == null && lastModified == null) {
+            return null;
+        }
+        return new ImageValidators(eTag, lastModified, staleAtMs);
+    }
+
+    /**
+     * Returns the validators after a 304 Not Modified response. The lifetime starts over, and
+     * validators the response does not repeat are kept.
+     */
+    @NonNull
+    ImageValidators refresh(@NonNull final NetworkResponse notModified) {
+        final NetworkResponse headers = withCaseInsensitiveHeaders(notModified);
+        final String eTag = headers.headers.get(HEADER_ETAG);
+        final String lastModified = headers.headers.get(HEADER_LAST_MODIFIED);
+        return new ImageValidators(eTag != null ? eTag : mETag,
+                lastModified != null ? lastModified : mLastModified,
+                HttpHeaderParser.parseCacheHeaders(headers).softTtl);
+    }
+
+    /**
+     * Returns the response with its headers in a case insensitive map. Volley looks headers up
+     * by their usual case, but servers and HTTP/2 may send them in any case.
+     */
+    @NonNull
+    static NetworkResponse withCaseInsensitiveHeaders(
+            @NonNull final NetworkResponse response) {
+        final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        headers.putAll(response.headers);
+        return new NetworkResponse(response.statusCode, null, headers, response.notModified);
+    }
+
+    /**
+     * Returns true if the image should be revalidated before use
+     */
+    boolean isStale(final long nowMs) {
+        return nowMs >= mStaleAtMs;
+    }
+
+    /**
+     * Adds the If-None-Match and If-Modified-Since headers of a conditional request
+     */
+    void addConditionalHeaders(@NonNull final Map<String, String> headers) {
+        if (mETag != null) {
+            headers.put("If-None-Match", mETag);
+        }
+        if (mLastModified != null) {
+            headers.put("If-Modified-Since", mLastModified);
+        }
+    }
+}
@@ -17,19 +17,26 @@
 
 package com.doctoror.gifimageloader;
 
+import com.android.volley.Request;
 import com.android.volley.VolleyError;
 import com.android.volley.toolbox.NetworkImageView;
 
 import android.annotation.TargetApi;
 import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.os.Build;
 import android.support.annotation.DrawableRes;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.AttributeSet;
+import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 
+import pl.droidsonroids.gif.GifDrawable;
 import pl.droidsonroids.gif.GifImageView;
 
 /**
@@ -56,6 +63,46 @@ public class NetworkGifImageView extends GifImageView {
     /** Current ImageContainer. (either in-flight or finished) */
     private GifImageLoader.ImageContainer mImageContainer;
 
+    /**
+     * The container whose acquired image the view shows, released when the image is replaced.
+     * May outlive {@link #mImageContainer}, since the image stays until the next one is set.
+     */
+    private GifImageLoader.ImageContainer mDisplayedContainer;
+
+    /** Tag of the requests of this view, for {@link GifImageLoader#pause(Object)} */
+    private Object mRequestTag;
+
+    /** Rect for visibility checks, reused to avoid allocations while scrolling */
+    private final Rect mVisibleRect = new Rect();
+
+    /** True while attached to a window */
+    private boolean mAttached;
+
+    /** The GIF this view shows through a {@link SharedDrawableCallback}, if any */
+    private Drawable mSharedDrawable;
+
+    /** The bounds this view gave the shared GIF, which other views showing it may change */
+    private final Rect mSharedBounds = new Rect();
+
+    /** The GIF this view reported on screen to {@link #mAnimationScheduler}, if any */
+    private GifDrawable mScheduledDrawable;
+
+    /** The scheduler of the loader that was used when the GIF was reported */
+    private AnimationScheduler mAnimationScheduler;
+
+    /**
+     * Raises the priority of the pending request while the view is in the viewport and lowers it
+     * when the view scrolls out. Runs the GIF only while it is in the viewport.
+     */
+    private final ViewTreeObserver.OnScrollChangedListener mScrollChangedListener =
+            new ViewTreeObserver.OnScrollChangedListener() {
+                @Override
+                public void onScrollChanged() {
+                    updateRequestPriority();
+                    updateAnimation();
+                }
+            };
+
     public NetworkGifImageView(Context context) {
         super(context);
     }
@@ -96,6 +143,17 @@ public class NetworkGifImageView extends GifImageView {
         mImageLoader = imageLoader;
         // The URL has potentially changed. See if we need to load it.
         loadImageIfNecessary(false);
+        updateAnimation();
+    }
+
+    /**
+     * Sets the tag of the image requests of this view, so that they can be paused with
+     * {@link GifImageLoader#pause(Object)}. Takes effect for the next request.
+     *
+     * @param tag The tag, or null for none
+     */
+    public void setRequestTag(@Nullable final Object tag) {
+        mRequestTag = tag;
     }
 
     /**
@@ -122,7 +180,7 @@ public class NetworkGifImageView extends GifImageView {
         // currently loaded image.
         if (isNullOrEmpty(mImageUrl)) {
             if (mImageContainer != null) {
-                mImageContainer.cancelRequest();
+                mImageContainer.cancelRequest(false);
                 mImageContainer = null;
             }
             setDefaultImageOrNull();
@@ -156,7 +214,7 @@ public class NetworkGifImageView extends GifImageView {
                 return;
             } else {
                 // if there is a pre-existing request, cancel it if it's fetching a different URL.
-                mImageContainer.cancelRequest();
+                mImageContainer.cancelRequest(false);
                 if (!mImageLoader.isCached(mImageUrl, maxWidth, maxHeight)) {
                     setDefaultImageOrNull();
                 }
@@ -191,9 +249,92 @@ public class NetworkGifImageView extends GifImageView {
                             return;
                         }
 
+                        // Keep the image findable while it is shown, even if the cache evicts it.
+                        // It is released when the view shows something else.
+                        response.acquire();
                         onLoadFinished(response.getImage(), response.getRequestUrl());
+                        holdDisplayedImage(response);
                     }
-                }, maxWidth, maxHeight);
+                }, maxWidth, maxHeight, getRequestPriority(), mRequestTag);
+    }
+
+    /**
+     * Keeps the image of the container acquired while the view shows it, or releases it right
+     * away if it is not shown
+     */
+    private void holdDisplayedImage(@NonNull final GifImageLoader.ImageContainer container) {
+        final Drawable image = container.getImage();
+        if (image == null || container.isPreview() || getDrawable() != image) {
+            container.release();
+            return;
+        }
+        if (mDisplayedContainer != container) {
+            if (mDisplayedContainer != null) {
+                mDisplayedContainer.release();
+            }
+            mDisplayedContainer = container;
+        }
+    }
+
+    /**
+     * Releases the image of {@link #mDisplayedContainer} once the view no longer shows it, so
+     * that its bitmap is not decoded into while still drawn
+     */
+    private void releaseReplacedImage() {
+        if (mDisplayedContainer != null && mDisplayedContainer.getImage() != getDrawable()) {
+            mDisplayedContainer.release();
+            mDisplayedContainer = null;
+        }
+    }
+
+    /**
+     * Returns the priority for a request of this view: HIGH if any part of it is in the viewport,
+     * LOW otherwise
+     */
+    @NonNull
+    private Request.Priority getRequestPriority() {
+        return isShown() && getGlobalVisibleRect(mVisibleRect)
+                ? Request.Priority.HIGH : Request.Priority.LOW;
+    }
+
+    /**
+     * Returns true if any part of the view is in the viewport of a visible window
+     */
+    private boolean isOnScreen() {
+        return mAttached && getWindowVisibility() == VISIBLE && isShown()
+                && getGlobalVisibleRect(mVisibleRect);
+    }
+
+    /**
+     * Reports the GIF this view shows to the {@link AnimationScheduler} of the loader, so that it
+     * runs only while on screen. The GIF that was replaced is reported as not shown.
+     */
+    private void updateAnimation() {
+        final Drawable drawable = getDrawable();
+        final AnimationScheduler scheduler = mImageLoader != null
+                && drawable instanceof GifDrawable ? mImageLoader.getAnimationScheduler() : null;
+        final boolean onScreen = scheduler != null && isOnScreen();
+        if (mScheduledDrawable != null && (mScheduledDrawable != drawable || !onScreen
+                || mAnimationScheduler != scheduler)) {
+            mAnimationScheduler.setOnScreen(mScheduledDrawable, this, false);
+            mScheduledDrawable = null;
+            mAnimationScheduler = null;
+        }
+        if (scheduler != null) {
+            final GifDrawable gif = (GifDrawable) drawable;
+            scheduler.setOnScreen(gif, this, onScreen);
+            if (onScreen) {
+                mScheduledDrawable = gif;
+                mAnimationScheduler = scheduler;
+            }
+        }
+    }
+
+    private void updateRequestPriority() {
+        if (mImageContainer != null
+                && (mImageContainer.getImage() == null || mImageContainer.isPreview())) {
+            mImageContainer.setPriority(getRequestPriority());
+        }
     }
 
     private void setDefaultImageOrNull() {
@@ -204,23 +345,117 @@ public class NetworkGifImageView extends GifImageView {
         }
     }
 
+    @Override
+    public void setImageDrawable(@Nullable final Drawable drawable) {
+        super.setImageDrawable(drawable);
+        releaseReplacedImage();
+        updateSharedDrawable();
+        updateAnimation();
+    }
+
+    @Override
+    public void setImageResource(final int resId) {
+        super.setImageResource(resId);
+        releaseReplacedImage();
+        updateSharedDrawable();
+        updateAnimation();
+    }
+
+    @Override
+    public void setImageURI(@Nullable final Uri uri) {
+        super.setImageURI(uri);
+        releaseReplacedImage();
+        updateSharedDrawable();
+        updateAnimation();
+    }
+
+    /**
+     * Attaches this view to the shared callback of the GIF it shows, so that the same cached GIF
+     * animates in every view showing it, or detaches it when the GIF was replaced or the view
+     * left the window.
+     */
+    private void updateSharedDrawable() {
+        final Drawable drawable = getDrawable();
+        final Drawable shared = mAttached && drawable instanceof GifDrawable ? drawable : null;
+        if (shared == mSharedDrawable) {
+            return;
+        }
+        if (mSharedDrawable != null) {
+            SharedDrawableCallback.detach(mSharedDrawable, this);
+        }
+        mSharedDrawable = shared;
+        if (shared != null) {
+            SharedDrawableCallback.attach(shared, this);
+            mSharedBounds.set(shared.getBounds());
+        }
+    }
+
     @Override
     protected void onLayout(final boolean changed, int left, int top, int right, int bottom) {
         super.onLayout(changed, left, top, right, bottom);
+        if (mSharedDrawable != null) {
+            mSharedBounds.set(mSharedDrawable.getBounds());
+        }
         loadImageIfNecessary(true);
+        updateAnimation();
+    }
+
+    @Override
+    protected void onDraw(@NonNull final Canvas canvas) {
+        if (mSharedDrawable != null) {
+            // Another view showing the same GIF may have sized it to itself.
+            mSharedDrawable.setBounds(mSharedBounds);
+        }
+        super.onDraw(canvas);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        getViewTreeObserver().addOnScrollChangedListener(mScrollChangedListener);
+        mAttached = true;
+        updateSharedDrawable();
+        updateAnimation();
+    }
+
+    @Override
+    public void setVisibility(final int visibility) {
+        super.setVisibility(visibility);
+        if (mSharedDrawable != null) {
+            // Keep the GIF animating if another view still shows it.
+            SharedDrawableCallback.onVisibilityChanged(mSharedDrawable);
+        }
+        updateAnimation();
+    }
+
+    @Override
+    protected void onVisibilityChanged(@NonNull final View changedView, final int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateRequestPriority();
+        updateAnimation();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(final int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateAnimation();
     }
 
     @Override
     protected void onDetachedFromWindow() {
+        getViewTreeObserver().removeOnScrollChangedListener(mScrollChangedListener);
         if (mImageContainer != null) {
             // If the view was bound to an image request, cancel it and clear
-            // out the image from the view.
-            mImageContainer.cancelRequest();
+            // out the image from the view, which releases it.
+            mImageContainer.cancelRequest(false);
             setImageDrawable(null);
             // also clear out the container so we can reload the image if necessary.
             mImageContainer = null;
         }
         super.onDetachedFromWindow();
+        mAttached = false;
+        updateSharedDrawable();
+        updateAnimation();
     }
 
     @Override
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import com.android.volley.AuthFailureError;
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.ResponseBody;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link HttpTransport} based on an {@link OkHttpClient}, so that images share its connection
+ * pool and, with SPDY or HTTP/2 enabled on the client, multiplexed connections to the same host.
+ * <p>
+ * OkHttp is not a dependency of this library. Add "com.squareup.okhttp:okhttp:2.4.0" or a later
+ * 2.x version to the application's dependencies to use this class.
+ */
+public class OkHttpTransport implements HttpTransport {
+
+    private final OkHttpClient mClient;
+
+    /**
+     * Creates an OkHttpTransport with a new client
+     */
+    public OkHttpTransport() {
+        this(new OkHttpClient());
+    }
+
+    /**
+     * Creates an OkHttpTransport sharing the given client and its connection pool. The client's
+     * timeouts are replaced with the timeout of each request.
+     *
+     * @param client The client to perform requests with
+     */
+    public OkHttpTransport(@NonNull final OkHttpClient client) {
+        mClient = client;
+    }
+
+    @NonNull
+    @Override
+    public StreamedResponse execute(@NonNull final com.android.volley.Request<?> request)
+            throws IOException, AuthFailureError {
+        final com.squareup.okhttp.Request.Builder builder =
+                new com.squareup.okhttp.Request.Builder().url(request.getUrl()).get();
+        for (final Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+
+        // The retry policy grows the timeout between attempts. A clone shares the connection
+        // pool of the original client.
+        final int timeoutMs = request.getTimeoutMs();
+        OkHttpClient client = mClient;
+        if (client.getConnectTimeout() != timeoutMs || client.getReadTimeout() != timeoutMs) {
+            client = client.clone();
+            client.setConnectTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+            client.setReadTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        return new OkHttpResponse(client.newCall(builder.build()).execute());
+    }
+
+    private static final class OkHttpResponse implements StreamedResponse {
+
+        private final com.squareup.okhttp.Response mResponse;
+
+        OkHttpResponse(@NonNull final com.squareup.okhttp.Response response) {
+            mResponse = response;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mResponse.code();
+        }
+
+        @NonNull
+        @Override
+        public Map<String, String> getHeaders() {
+            final Headers headers = mResponse.headers();
+            final int size = headers.size();
+            final Map<String, String> result = new HashMap<>(size);
+            for (int i = 0; i < size; i++) {
+                // Keep the first value of repeated headers, like HurlTransport.
+                final String name = headers.name(i);
+                if (!result.containsKey(name)) {
+                    result.put(name, headers.value(i));
+                }
+            }
+            return result;
+        }
+
+        @NonNull
+        @Override
+        public InputStream getBody() throws IOException {
+            return mResponse.body().byteStream();
+        }
+
+        @Override
+        public void close() {
+            final ResponseBody body = mResponse.body();
+            try {
+                body.close();
+            } catch (IOException e) {
+                // The connection is broken, nothing to return to the pool.
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.widget.AbsListView;
+
+/**
+ * {@link AbsListView.OnScrollListener} that pauses a {@link GifImageLoader} while the list is
+ * flung, and optionally while it is dragged, so that requests of rows that scroll past are not
+ * started. Dispatch resumes when the list settles.
+ */
+public class PauseOnScrollListener implements AbsListView.OnScrollListener {
+
+    private final GifImageLoader mImageLoader;
+    private final Object mTag;
+    private final boolean mPauseOnTouchScroll;
+    private final AbsListView.OnScrollListener mDelegate;
+
+    /**
+     * Constructs a new PauseOnScrollListener that pauses all requests while flinging.
+     *
+     * @param imageLoader The loader to pause
+     */
+    public PauseOnScrollListener(@NonNull final GifImageLoader imageLoader) {
+        this(imageLoader, null, false, null);
+    }
+
+    /**
+     * Constructs a new PauseOnScrollListener.
+     *
+     * @param imageLoader        The loader to pause
+     * @param tag                The tag of the requests to pause, or null to pause all requests
+     * @param pauseOnTouchScroll True to also pause while the list is dragged
+     * @param delegate           Listener to forward scroll events to, or null
+     */
+    public PauseOnScrollListener(@NonNull final GifImageLoader imageLoader,
+            @Nullable final Object tag, final boolean pauseOnTouchScroll,
+            @Nullable final AbsListView.OnScrollListener delegate) {
+        mImageLoader = imageLoader;
+        mTag = tag;
+        mPauseOnTouchScroll = pauseOnTouchScroll;
+        mDelegate = delegate;
+    }
+
+    @Override
+    public void onScrollStateChanged(final AbsListView view, final int scrollState) {
+        switch (scrollState) {
+            case SCROLL_STATE_FLING:
+                pause();
+                break;
+
+            case SCROLL_STATE_TOUCH_SCROLL:
+                if (mPauseOnTouchScroll) {
+                    pause();
+                } else {
+                    resume();
+                }
+                break;
+
+            default:
+                resume();
+                break;
+        }
+        if (mDelegate != null) {
+            mDelegate.onScrollStateChanged(view, scrollState);
+        }
+    }
+
+    @Override
+    public void onScroll(final AbsListView view, final int firstVisibleItem,
+            final int visibleItemCount, final int totalItemCount) {
+        if (mDelegate != null) {
+            mDelegate.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+        }
+    }
+
+    private void pause() {
+        if (mTag != null) {
+            mImageLoader.pause(mTag);
+        } else {
+            mImageLoader.pause();
+        }
+    }
+
+    private void resume() {
+        if (mTag != null) {
+            mImageLoader.resume(mTag);
+        } else {
+            mImageLoader.resume();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v7.widget.RecyclerView;
+
+/**
+ * Like {@link PauseOnScrollListener}, but for a {@link RecyclerView}. Pauses a
+ * {@link GifImageLoader} while the RecyclerView settles after a fling, and optionally while it is
+ * dragged.
+ *
+ * Requires the recyclerview-v7 library, which this library does not depend on at runtime.
+ */
+public class RecyclerPauseOnScrollListener extends RecyclerView.OnScrollListener {
+
+    private final GifImageLoader mImageLoader;
+    private final Object mTag;
+    private final boolean mPauseOnTouchScroll;
+
+    /**
+     * Constructs a new RecyclerPauseOnScrollListener that pauses all requests while flinging.
+     *
+     * @param imageLoader The loader to pause
+     */
+    public RecyclerPauseOnScrollListener(@NonNull final GifImageLoader imageLoader) {
+        this(imageLoader, null, false);
+    }
+
+    /**
+     * Constructs a new RecyclerPauseOnScrollListener.
+     *
+     * @param imageLoader        The loader to pause
+     * @param tag                The tag of the requests to pause, or null to pause all requests
+     * @param pauseOnTouchScroll True to also pause while the RecyclerView is dragged
+     */
+    public RecyclerPauseOnScrollListener(@NonNull final GifImageLoader imageLoader,
+            @Nullable final Object tag, final boolean pauseOnTouchScroll) {
+        mImageLoader = imageLoader;
+        mTag = tag;
+        mPauseOnTouchScroll = pauseOnTouchScroll;
+    }
+
+    @Override
+    public void onScrollStateChanged(final RecyclerView recyclerView, final int newState) {
+        switch (newState) {
+            case RecyclerView.SCROLL_STATE_SETTLING:
+                pause();
+                break;
+
+            case RecyclerView.SCROLL_STATE_DRAGGING:
+                if (mPauseOnTouchScroll) {
+                    pause();
+                } else {
+                    resume();
+                }
+                break;
+
+            default:
+                resume();
+                break;
+        }
+    }
+
+    private void pause() {
+        if (mTag != null) {
+            mImageLoader.pause(mTag);
+        } else {
+            mImageLoader.pause();
+        }
+    }
+
+    private void resume() {
+        if (mTag != null) {
+            mImageLoader.resume(mTag);
+        } else {
+            mImageLoader.resume();
+        }
+    }
+}
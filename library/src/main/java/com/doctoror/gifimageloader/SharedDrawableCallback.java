@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+import android.view.View;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A {@link Drawable.Callback} that forwards to every view showing the drawable. A drawable has a
+ * single callback, so a cached GIF shown by several views would otherwise animate only in the
+ * view that set it last, and stop animating everywhere once any of the views lets it go. Sharing
+ * the drawable keeps one decoder and frame buffer no matter how many views show it.
+ * <p>
+ * Used on the main thread only.
+ */
+final class SharedDrawableCallback implements Drawable.Callback {
+
+    private static final Map<Drawable, SharedDrawableCallback> sCallbacks = new WeakHashMap<>();
+
+    /** The views showing the drawable, in the order they attached */
+    private final List<WeakReference<View>> mViews = new ArrayList<>(2);
+
+    private SharedDrawableCallback() {
+    }
+
+    /**
+     * Adds the view to those the drawable invalidates, and makes the drawable visible if the view
+     * is. Call after the view has set the drawable.
+     */
+    static void attach(@NonNull final Drawable drawable, @NonNull final View view) {
+        SharedDrawableCallback callback = sCallbacks.get(drawable);
+        if (callback == null) {
+            callback = new SharedDrawableCallback();
+            sCallbacks.put(drawable, callback);
+        }
+        if (!callback.contains(view)) {
+            callback.mViews.add(new WeakReference<>(view));
+        }
+        drawable.setCallback(callback);
+        callback.updateVisibility(drawable);
+    }
+
+    /**
+     * Removes the view from those the drawable invalidates. Call after the view has let the
+     * drawable go, which clears the callback and may have hidden the drawable, so that both are
+     * restored for the views that still show it.
+     */
+    static void detach(@NonNull final Drawable drawable, @NonNull final View view) {
+        final SharedDrawableCallback callback = sCallbacks.get(drawable);
+        if (callback == null) {
+            return;
+        }
+        callback.remove(view);
+        if (callback.mViews.isEmpty()) {
+            sCallbacks.remove(drawable);
+            return;
+        }
+        drawable.setCallback(callback);
+        callback.updateVisibility(drawable);
+    }
+
+    /**
+     * Makes the drawable visible if any of the views showing it is visible, like a single
+     * ImageView does for its drawable. Call after a view's visibility has changed.
+     */
+    static void onVisibilityChanged(@NonNull final Drawable drawable) {
+        final SharedDrawableCallback callback = sCallbacks.get(drawable);
+        if (callback != null) {
+            callback.updateVisibility(drawable);
+        }
+    }
+
+    private void updateVisibility(@NonNull final Drawable drawable) {
+        boolean visible = false;
+        for (final WeakReference<View> reference : mViews) {
+            final View view = reference.get();
+            if (view != null && view.getVisibility() == View.VISIBLE) {
+                visible = true;
+                break;
+            }
+        }
+        drawable.setVisible(visible, false);
+    }
+
+    private boolean contains(@NonNull final View view) {
+        for (final WeakReference<View> reference : mViews) {
+            if (reference.get() == view) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void remove(@NonNull final View view) {
+        final Iterator<WeakReference<View>> iterator = mViews.iterator();
+        while (iterator.hasNext()) {
+            final View attached = iterator.next().get();
+            if (attached == null || attached == view) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public void invalidateDrawable(@NonNull final Drawable who) {
+        final Iterator<WeakReference<View>> iterator = mViews.iterator();
+        while (iterator.hasNext()) {
+            final View view = iterator.next().get();
+            if (view == null) {
+                iterator.remove();
+            } else {
+                view.invalidateDrawable(who);
+            }
+        }
+    }
+
+    @Override
+    public void scheduleDrawable(@NonNull final Drawable who, @NonNull final Runnable what,
+            final long when) {
+        // Scheduled once, on the first view that still exists, or the frame would advance once
+        // per view.
+        for (final WeakReference<View> reference : mViews) {
+            final View view = reference.get();
+            if (view != null) {
+                view.scheduleDrawable(who, what, when);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void unscheduleDrawable(@NonNull final Drawable who, @NonNull final Runnable what) {
+        for (final WeakReference<View> reference : mViews) {
+            final View view = reference.get();
+            if (view != null) {
+                view.unscheduleDrawable(who, what);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Network;
+import com.android.volley.NetworkError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.Request;
+import com.android.volley.RetryPolicy;
+import com.android.volley.ServerError;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A {@link Network} that hands the response body of streaming {@link ImageRequest}s to the
+ * request as it arrives instead of buffering it into a byte array. Streaming requests are
+ * performed by an {@link HttpTransport}, and all other requests by the wrapped {@link Network}.
+ */
+public class StreamingNetwork implements Network {
+
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    /** The network to perform non-streaming requests with */
+    private final Network mFallback;
+
+    /** The transport to perform streaming requests with */
+    private final HttpTransport mTransport;
+
+    /** The directory for spooling streamed bodies */
+    private final File mSpoolDir;
+
+    /**
+     * Constructs a new StreamingNetwork that performs streaming requests with a
+     * {@link HurlTransport}.
+     *
+     * @param fallback The network to perform non-streaming requests with
+     * @param spoolDir The directory for spooling streamed bodies
+     */
+    public StreamingNetwork(@NonNull final Network fallback, @NonNull final File spoolDir) {
+        this(fallback, new HurlTransport(), spoolDir);
+    }
+
+    /**
+     * Constructs a new StreamingNetwork.
+     *
+     * @param fallback  The network to perform non-streaming requests with
+     * @param transport The transport to perform streaming requests with
+     * @param spoolDir  The directory for spooling streamed bodies
+     */
+    public StreamingNetwork(@NonNull final Network fallback,
+            @NonNull final HttpTransport transport, @NonNull final File spoolDir) {
+        mFallback = fallback;
+        mTransport = transport;
+        mSpoolDir = spoolDir;
+    }
+
+    @Override
+    public NetworkResponse performRequest(final Request<?> request) throws VolleyError {
+        if (!(request instanceof ImageRequest) || !((ImageRequest) request).isStreaming()) {
+            return mFallback.performRequest(request);
+        }
+        final ImageRequest imageRequest = (ImageRequest) request;
+        final long requestStart = SystemClock.elapsedRealtime();
+        while (true) {
+            HttpTransport.StreamedResponse response = null;
+            Map<String, String> responseHeaders = Collections.emptyMap();
+            int statusCode = 0;
+            try {
+                response = mTransport.execute(imageRequest);
+                statusCode = response.getStatusCode();
+                responseHeaders = response.getHeaders();
+                if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    // A conditional request of a revalidated image, there is no body.
+                    return new NetworkResponse(statusCode, EMPTY_BODY, responseHeaders, true,
+                            SystemClock.elapsedRealtime() - requestStart);
+                }
+                if (statusCode < 200 || statusCode > 299) {
+                    throw new IOException("Unexpected response code " + statusCode);
+                }
+
+                final InputStream body = response.getBody();
+                try {
+                    imageRequest.parseNetworkStream(body, responseHeaders, mSpoolDir);
+                } finally {
+                    body.close();
+                }
+                return new NetworkResponse(statusCode, EMPTY_BODY, responseHeaders, false,
+                        SystemClock.elapsedRealtime() - requestStart);
+            } catch (SocketTimeoutException e) {
+                attemptRetryOnException(request, new TimeoutError());
+            } catch (MalformedURLException e) {
+                throw new RuntimeException("Bad URL " + request.getUrl(), e);
+            } catch (IOException e) {
+                if (statusCode == 0) {
+                    throw new NoConnectionError(e);
+                }
+                final NetworkResponse networkResponse = new NetworkResponse(statusCode, null,
+                        responseHeaders, false, SystemClock.elapsedRealtime() - requestStart);
+                if (statusCode == HttpURLConnection.HTTP_UNAUTHORIZED ||
+                        statusCode == HttpURLConnection.HTTP_FORBIDDEN) {
+                    attemptRetryOnException(request, new AuthFailureError(networkResponse));
+                } else if (statusCode >= 200 && statusCode <= 299) {
+                    // The connection broke while reading the body.
+                    throw new NetworkError(networkResponse);
+                } else {
+                    throw new ServerError(networkResponse);
+                }
+            } finally {
+                if (response != null) {
+                    response.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Attempts to prepare the request for a retry. If there are no more attempts remaining in the
+     * request's retry policy, the given exception is thrown.
+     */
+    private static void attemptRetryOnException(final Request<?> request,
+            final VolleyError exception) throws VolleyError {
+        final RetryPolicy retryPolicy = request.getRetryPolicy();
+        retryPolicy.retry(exception);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.gifimageloader;
+
+import com.android.volley.toolbox.DiskBasedCache;
+
+import android.content.res.AssetFileDescriptor;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import pl.droidsonroids.gif.GifDrawable;
+import pl.droidsonroids.gif.GifDrawableBuilder;
+
+/**
+ * Opens GIFs stored in a Volley {@link DiskBasedCache} directly from the cache file, so that the
+ * encoded data is read by the decoder from the file instead of being copied into a byte array,
+ * and tells which entries Volley serves without a network request.
+ *
+ * The entry header layout is the one written by the bundled Volley version.
+ */
+final class VolleyCacheFiles {
+
+    /** Magic number of a Volley cache entry */
+    private static final int CACHE_MAGIC = 0x20140623;
+
+    /** Logical screen size offset in GIF data, and the number of bytes needed to read it */
+    private static final int GIF_SCREEN_SIZE_OFFSET = 6;
+    private static final int GIF_HEADER_SIZE = 10;
+
+    private VolleyCacheFiles() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Opens a file-backed {@link GifDrawable} for the cache entry with the given key.
+     *
+     * @param cache     The Volley cache
+     * @param cacheKey  The Volley cache key of the request
+     * @param maxWidth  Maximum width to decode to, or zero for none
+     * @param maxHeight Maximum height to decode to, or zero for none
+     * @return The drawable, or null if there is no unexpired GIF entry for the key
+     * @throws IOException if the entry can not be read
+     */
+    @Nullable
+    static GifDrawable openGif(@NonNull final DiskBasedCache cache,
+            @NonNull final String cacheKey, final int maxWidth, final int maxHeight)
+            throws IOException {
+        final File file = cache.getFileForKey(cacheKey);
+        if (!file.exists()) {
+            return null;
+        }
+        final long dataOffset;
+        final byte[] gifHeader = new byte[GIF_HEADER_SIZE];
+        final InputStream is = new BufferedInputStream(new FileInputStream(file));
+        try {
+            final CountingReader reader = new CountingReader(is);
+            if (!readKey(reader, cacheKey)) {
+                return null;
+            }
+            final long ttl = reader.readLong();
+            reader.readLong(); // softTtl
+            if (ttl < System.currentTimeMillis()) {
+                // Expired, let Volley refresh it.
+                return null;
+            }
+            final int headerCount = reader.readInt();
+            for (int i = 0; i < headerCount; i++) {
+                reader.readString();
+                reader.readString();
+            }
+            dataOffset = reader.mPosition;
+            reader.readFully(gifHeader);
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            is.close();
+        }
+        if (gifHeader[0] != 'G' || gifHeader[1] != 'I' || gifHeader[2] != 'F') {
+            return null;
+        }
+        final int width = (gifHeader[GIF_SCREEN_SIZE_OFFSET] & 0xFF)
+                | ((gifHeader[GIF_SCREEN_SIZE_OFFSET + 1] & 0xFF) << 8);
+        final int height = (gifHeader[GIF_SCREEN_SIZE_OFFSET + 2] & 0xFF)
+                | ((gifHeader[GIF_SCREEN_SIZE_OFFSET + 3] & 0xFF) << 8);
+
+        // The decoder takes over the descriptor and reads from the data offset on demand.
+        final AssetFileDescriptor afd = new AssetFileDescriptor(
+                ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY),
+                dataOffset, file.length() - dataOffset);
+        final GifDrawable drawable = new GifDrawableBuilder()
+                .sampleSize(ImageRequest.getSampleSize(maxWidth, maxHeight, width, height))
+                .from(afd)
+                .build();
+        FileBackedGifs.mark(drawable);
+        return drawable;
+    }
+
+    /**
+     * Returns true if the cache holds an entry for the key that Volley serves without a network
+     * request, one that is neither expired nor needs a refresh. Performs disk I/O.
+     *
+     * @param cache    The Volley cache
+     * @param cacheKey The Volley cache key of the request
+     */
+    static boolean isFresh(@NonNull final DiskBasedCache cache, @NonNull final String cacheKey) {
+        final File file = cache.getFileForKey(cacheKey);
+        if (!file.exists()) {
+            return false;
+        }
+        try {
+            final InputStream is = new BufferedInputStream(new FileInputStream(file));
+            try {
+                final CountingReader reader = new CountingReader(is);
+                if (!readKey(reader, cacheKey)) {
+                    return false;
+                }
+                final long ttl = reader.readLong();
+                final long softTtl = reader.readLong();
+                final long now = System.currentTimeMillis();
+                return ttl >= now && softTtl >= now;
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the entry header up to the expiry times
+     *
+     * @return False if the file is not an entry for the key
+     */
+    private static boolean readKey(@NonNull final CountingReader reader,
+            @NonNull final String cacheKey) throws IOException {
+        if (reader.readInt() != CACHE_MAGIC) {
+            return false;
+        }
+        // Entry file names are derived from key hashes, so they may collide.
+        if (!cacheKey.equals(reader.readString())) {
+            return false;
+        }
+        reader.readString(); // etag
+        reader.readLong(); // serverDate
+        return true;
+    }
+
+    /**
+     * Reads values in the little-endian layout written by {@link DiskBasedCache}, counting the
+     * bytes read.
+     */
+    private static final class CountingReader {
+
+        private final InputStream mIn;
+
+        long mPosition;
+
+        CountingReader(@NonNull final InputStream in) {
+            mIn = in;
+        }
+
+        int read() throws IOException {
+            final int b = mIn.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            mPosition++;
+            return b;
+        }
+
+        int readInt() throws IOException {
+            return read() | (read() << 8) | (read() << 16) | (read() << 24);
+        }
+
+        long readLong() throws IOException {
+            return (readInt() & 0xFFFFFFFFL) | ((long) readInt() << 32);
+        }
+
+        String readString() throws IOException {
+            final long length = readLong();
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new IOException("Invalid string length " + length);
+            }
+            final byte[] bytes = new byte[(int) length];
+            readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+
+        void readFully(@NonNull final byte[] buffer) throws IOException {
+            int offset = 0;
+            while (offset < buffer.length) {
+                final int read = mIn.read(buffer, offset, buffer.length - offset);
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                offset += read;
+            }
+            mPosition += buffer.length;
+        }
+    }
+}